@@ -335,6 +335,16 @@ public abstract class AudioFloatConverter {
             return out_buff;
         }
 
+        @Override
+        public float[] toFloatArray(ByteBuffer in_buff, int in_offset,
+                                    float[] out_buff, int out_offset, int out_len) {
+            int ix = in_offset;
+            int ox = out_offset;
+            for (int i = 0; i < out_len; i++)
+                out_buff[ox++] = in_buff.get(ix++) * (1.0f / 127.0f);
+            return out_buff;
+        }
+
         @Override
         public byte[] toByteArray(float[] in_buff, int in_offset, int in_len,
                                   byte[] out_buff, int out_offset) {
@@ -359,6 +369,17 @@ public abstract class AudioFloatConverter {
             return out_buff;
         }
 
+        @Override
+        public float[] toFloatArray(ByteBuffer in_buff, int in_offset,
+                                    float[] out_buff, int out_offset, int out_len) {
+            int ix = in_offset;
+            int ox = out_offset;
+            for (int i = 0; i < out_len; i++)
+                out_buff[ox++] = ((in_buff.get(ix++) & 0xFF) - 127)
+                        * (1.0f / 127.0f);
+            return out_buff;
+        }
+
         @Override
         public byte[] toByteArray(float[] in_buff, int in_offset, int in_len,
                                   byte[] out_buff, int out_offset) {
@@ -391,6 +412,20 @@ public abstract class AudioFloatConverter {
             return out_buff;
         }
 
+        @Override
+        public float[] toFloatArray(ByteBuffer in_buff, int in_offset,
+                                    float[] out_buff, int out_offset, int out_len) {
+            if (in_buff.order() != ByteOrder.LITTLE_ENDIAN)
+                in_buff = in_buff.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            int ix = in_offset;
+            int len = out_offset + out_len;
+            for (int ox = out_offset; ox < len; ox++) {
+                out_buff[ox] = in_buff.getShort(ix) * (1.0f / 32767.0f);
+                ix += 2;
+            }
+            return out_buff;
+        }
+
         @Override
         public byte[] toByteArray(float[] in_buff, int in_offset, int in_len,
                                   byte[] out_buff, int out_offset) {
@@ -419,6 +454,20 @@ public abstract class AudioFloatConverter {
             return out_buff;
         }
 
+        @Override
+        public float[] toFloatArray(ByteBuffer in_buff, int in_offset,
+                                    float[] out_buff, int out_offset, int out_len) {
+            if (in_buff.order() != ByteOrder.BIG_ENDIAN)
+                in_buff = in_buff.duplicate().order(ByteOrder.BIG_ENDIAN);
+            int ix = in_offset;
+            int len = out_offset + out_len;
+            for (int ox = out_offset; ox < len; ox++) {
+                out_buff[ox] = in_buff.getShort(ix) * (1.0f / 32767.0f);
+                ix += 2;
+            }
+            return out_buff;
+        }
+
         @Override
         public byte[] toByteArray(float[] in_buff, int in_offset, int in_len,
                                   byte[] out_buff, int out_offset) {
@@ -1060,6 +1109,24 @@ public abstract class AudioFloatConverter {
     public abstract float[] toFloatArray(byte[] in_buff, int in_offset,
             float[] out_buff, int out_offset, int out_len);
 
+    private byte[] bbuffer;
+
+    /*
+     * Converts out_len samples starting at absolute index in_offset of
+     * in_buff, the position of in_buff is not changed. Formats without
+     * a direct conversion are copied through a byte array.
+     */
+    public float[] toFloatArray(ByteBuffer in_buff, int in_offset,
+            float[] out_buff, int out_offset, int out_len) {
+        int b_len = out_len * (format.getFrameSize() / format.getChannels());
+        if (bbuffer == null || bbuffer.length < b_len)
+            bbuffer = new byte[b_len];
+        ByteBuffer dup = in_buff.duplicate();
+        dup.position(in_offset);
+        dup.get(bbuffer, 0, b_len);
+        return toFloatArray(bbuffer, 0, out_buff, out_offset, out_len);
+    }
+
     public final float[] toFloatArray(byte[] in_buff, float[] out_buff,
             int out_offset, int out_len) {
         return toFloatArray(in_buff, 0, out_buff, out_offset, out_len);
@@ -29,6 +29,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import gervill.javax.sound.sampled.AudioFormat;
 import gervill.javax.sound.sampled.AudioInputStream;
@@ -131,6 +133,295 @@ public abstract class AudioFloatInputStream {
         }
     }
 
+    private static class FloatArrayAudioFloatInputStream
+            extends AudioFloatInputStream {
+
+        private int pos = 0;
+        private int markpos = 0;
+        private final AudioFormat format;
+        private final float[] buffer;
+
+        FloatArrayAudioFloatInputStream(AudioFormat format, float[] buffer) {
+            this.format = format;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public AudioFormat getFormat() {
+            return format;
+        }
+
+        @Override
+        public long getFrameLength() {
+            return buffer.length;
+        }
+
+        @Override
+        public int read(float[] b, int off, int len) throws IOException {
+            if (b == null)
+                throw new NullPointerException();
+            if (off < 0 || len < 0 || len > b.length - off)
+                throw new IndexOutOfBoundsException();
+            if (pos >= buffer.length)
+                return -1;
+            if (len == 0)
+                return 0;
+            if (pos + len > buffer.length)
+                len = buffer.length - pos;
+            System.arraycopy(buffer, pos, b, off, len);
+            pos += len;
+            return len;
+        }
+
+        @Override
+        public long skip(long len) throws IOException {
+            if (pos >= buffer.length)
+                return -1;
+            if (len <= 0)
+                return 0;
+            if (pos + len > buffer.length)
+                len = buffer.length - pos;
+            pos += len;
+            return len;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return buffer.length - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+
+        @Override
+        public void mark(int readlimit) {
+            markpos = pos;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            pos = markpos;
+        }
+    }
+
+    // Reads interleaved samples from one array per channel
+    private static class ChannelArrayAudioFloatInputStream
+            extends AudioFloatInputStream {
+
+        private int pos = 0;
+        private int markpos = 0;
+        private final AudioFormat format;
+        private final float[][] buffers;
+        private final int offset;
+        private final int len;
+
+        ChannelArrayAudioFloatInputStream(AudioFormat format,
+                float[][] buffers, int offset, int frames) {
+            this.format = format;
+            this.buffers = buffers;
+            this.offset = offset;
+            this.len = frames * buffers.length;
+        }
+
+        @Override
+        public AudioFormat getFormat() {
+            return format;
+        }
+
+        @Override
+        public long getFrameLength() {
+            return len;
+        }
+
+        @Override
+        public int read(float[] b, int off, int len) throws IOException {
+            if (b == null)
+                throw new NullPointerException();
+            if (off < 0 || len < 0 || len > b.length - off)
+                throw new IndexOutOfBoundsException();
+            if (pos >= this.len)
+                return -1;
+            if (len == 0)
+                return 0;
+            if (pos + len > this.len)
+                len = this.len - pos;
+            int channels = buffers.length;
+            if (channels == 1) {
+                System.arraycopy(buffers[0], offset + pos, b, off, len);
+            } else {
+                int c = pos % channels;
+                int ix = offset + pos / channels;
+                for (int i = 0; i < len; i++) {
+                    b[off + i] = buffers[c][ix];
+                    if (++c == channels) {
+                        c = 0;
+                        ix++;
+                    }
+                }
+            }
+            pos += len;
+            return len;
+        }
+
+        @Override
+        public long skip(long len) throws IOException {
+            if (pos >= this.len)
+                return -1;
+            if (len <= 0)
+                return 0;
+            if (pos + len > this.len)
+                len = this.len - pos;
+            pos += len;
+            return len;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return len - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+
+        @Override
+        public void mark(int readlimit) {
+            markpos = pos;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            pos = markpos;
+        }
+    }
+
+    private static class MappedAudioFloatInputStream
+            extends AudioFloatInputStream {
+
+        private long pos = 0;
+        private long markpos = 0;
+        private final AudioFloatConverter converter;
+        private final AudioFormat format;
+        private final ModelByteBuffer buffer;
+        private final ByteBuffer[] views;
+        private final long buffer_len;
+        private final int framesize_pc;
+        private byte[] bbuffer;
+
+        MappedAudioFloatInputStream(AudioFloatConverter converter,
+                ModelByteBuffer buffer, ByteBuffer[] views) {
+            this.converter = converter;
+            this.format = converter.getFormat();
+            this.buffer = buffer;
+            this.views = views;
+            ByteOrder order = format.isBigEndian() ? ByteOrder.BIG_ENDIAN
+                    : ByteOrder.LITTLE_ENDIAN;
+            for (ByteBuffer view : views)
+                view.order(order);
+            framesize_pc = format.getFrameSize() / format.getChannels();
+            this.buffer_len = buffer.capacity() / framesize_pc;
+        }
+
+        @Override
+        public AudioFormat getFormat() {
+            return format;
+        }
+
+        @Override
+        public long getFrameLength() {
+            return buffer_len;
+        }
+
+        @Override
+        public int read(float[] b, int off, int len) throws IOException {
+            if (b == null)
+                throw new NullPointerException();
+            if (off < 0 || len < 0 || len > b.length - off)
+                throw new IndexOutOfBoundsException();
+            if (pos >= buffer_len)
+                return -1;
+            if (len == 0)
+                return 0;
+            if (pos + len > buffer_len)
+                len = (int)(buffer_len - pos);
+            int ret = len;
+            while (len > 0) {
+                // Convert directly from the mapping, a frame split
+                // between two chunks is copied out first
+                long p = buffer.arrayOffset() + pos * framesize_pc;
+                ByteBuffer view = views[(int)(p
+                        >>> ModelByteBuffer.MAP_CHUNK_BITS)];
+                int chunkpos = (int)(p & (ModelByteBuffer.MAP_CHUNK_SIZE - 1));
+                int n = Math.min(len, (view.limit() - chunkpos) / framesize_pc);
+                if (n > 0) {
+                    converter.toFloatArray(view, chunkpos, b, off, n);
+                } else {
+                    n = 1;
+                    if (bbuffer == null)
+                        bbuffer = new byte[framesize_pc];
+                    buffer.readMapped(views, pos * framesize_pc, bbuffer, 0,
+                            framesize_pc);
+                    converter.toFloatArray(bbuffer, b, off, 1);
+                }
+                pos += n;
+                off += n;
+                len -= n;
+            }
+            return ret;
+        }
+
+        @Override
+        public long skip(long len) throws IOException {
+            if (pos >= buffer_len)
+                return -1;
+            if (len <= 0)
+                return 0;
+            if (pos + len > buffer_len)
+                len = buffer_len - pos;
+            pos += len;
+            return len;
+        }
+
+        @Override
+        public int available() throws IOException {
+            long left = buffer_len - pos;
+            if (left > Integer.MAX_VALUE)
+                return Integer.MAX_VALUE;
+            return (int)left;
+        }
+
+        @Override
+        public void close() throws IOException {
+            ModelByteBuffer.releaseMappedViews(views);
+        }
+
+        @Override
+        public void mark(int readlimit) {
+            markpos = pos;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            pos = markpos;
+        }
+    }
+
     private static class DirectAudioFloatInputStream
             extends AudioFloatInputStream {
 
@@ -267,6 +558,43 @@ public abstract class AudioFloatInputStream {
         return getInputStream(astream);
     }
 
+    public static AudioFloatInputStream getInputStream(AudioFormat format,
+            ModelByteBuffer buffer) {
+        ModelCompressedSamples compressed = buffer.getCompressed();
+        if (compressed != null && compressed.isCompatible(format)) {
+            AudioFloatInputStream stream = compressed.getInputStream(format,
+                    buffer.arrayOffset(), buffer.capacity());
+            if (stream != null)
+                return stream;
+        }
+        AudioFloatConverter converter = AudioFloatConverter
+                .getConverter(format);
+        if (converter != null) {
+            ByteBuffer[] views = buffer.getMappedViews();
+            if (views != null)
+                return new MappedAudioFloatInputStream(converter, buffer,
+                        views);
+        }
+        long aLen = format.getFrameSize() == AudioSystem.NOT_SPECIFIED
+                ? AudioSystem.NOT_SPECIFIED
+                : buffer.capacity() / format.getFrameSize();
+        return getInputStream(new AudioInputStream(buffer.getInputStream(),
+                format, aLen));
+    }
+
+    // Stream over already decoded samples, format describes their source
+    public static AudioFloatInputStream getInputStream(AudioFormat format,
+            float[] buffer) {
+        return new FloatArrayAudioFloatInputStream(format, buffer);
+    }
+
+    // Stream over frames offset to offset + frames of one array per channel
+    public static AudioFloatInputStream getInputStream(AudioFormat format,
+            float[][] buffers, int offset, int frames) {
+        return new ChannelArrayAudioFloatInputStream(format, buffers, offset,
+                frames);
+    }
+
     public abstract AudioFormat getFormat();
 
     public abstract long getFrameLength();
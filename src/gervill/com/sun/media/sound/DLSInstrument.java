@@ -24,6 +24,7 @@
  */
 package gervill.com.sun.media.sound;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -49,6 +50,9 @@ public final class DLSInstrument extends ModelInstrument {
     DLSInfo info = new DLSInfo();
     List<DLSRegion> regions = new ArrayList<DLSRegion>();
     List<DLSModulator> modulators = new ArrayList<DLSModulator>();
+    // Instrument chunk of a lazily read soundbank, read on first use
+    ByteBuffer hydra = null;
+    volatile boolean loaded = true;
 
     public DLSInstrument() {
         super(null, null, null, null);
@@ -94,13 +98,20 @@ public final class DLSInstrument extends ModelInstrument {
     }
 
     public List<DLSRegion> getRegions() {
+        load();
         return regions;
     }
 
     public List<DLSModulator> getModulators() {
+        load();
         return modulators;
     }
 
+    private void load() {
+        if (!loaded)
+            ((DLSSoundbank)getSoundbank()).loadInstrument(this);
+    }
+
     @Override
     public String toString() {
         if (druminstrument)
@@ -368,6 +379,7 @@ public final class DLSInstrument extends ModelInstrument {
 
     @Override
     public ModelPerformer[] getPerformers() {
+        load();
         List<ModelPerformer> performers = new ArrayList<ModelPerformer>();
 
         Map<String, DLSModulator> modmap = new HashMap<String, DLSModulator>();
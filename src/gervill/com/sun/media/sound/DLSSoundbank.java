@@ -30,6 +30,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -184,6 +185,8 @@ public final class DLSSoundbank implements Soundbank {
 
     private boolean largeFormat = false;
     private File sampleFile;
+    // Only read instrument headers when opened, see loadInstrument
+    private boolean lazy = false;
 
     public DLSSoundbank() {
     }
@@ -191,29 +194,58 @@ public final class DLSSoundbank implements Soundbank {
     public DLSSoundbank(URL url) throws IOException {
         InputStream is = url.openStream();
         try {
-            readSoundbank(is);
+            readSoundbank(new RIFFReader(is));
         } finally {
             is.close();
         }
     }
 
     public DLSSoundbank(File file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Opens a soundbank file. If lazy is true only the instrument headers
+     * are read, the regions and articulators of an instrument are read
+     * when it is first used.
+     */
+    public DLSSoundbank(File file, boolean lazy) throws IOException {
+        this.lazy = lazy;
         largeFormat = true;
         sampleFile = file;
+        // Parse the chunks straight from a mapping of the file
+        ByteBuffer buffer = RIFFReader.mapFile(file);
+        if (buffer != null) {
+            readSoundbank(new RIFFReader(buffer));
+            return;
+        }
         InputStream is = new FileInputStream(file);
         try {
-            readSoundbank(is);
+            readSoundbank(new RIFFReader(is));
         } finally {
             is.close();
         }
     }
 
     public DLSSoundbank(InputStream inputstream) throws IOException {
-        readSoundbank(inputstream);
+        readSoundbank(new RIFFReader(inputstream));
+    }
+
+    /**
+     * Reads a soundbank from a heap or mapped ByteBuffer. Sample data is
+     * shared with the array of a heap buffer and copied from other
+     * buffers.
+     */
+    public DLSSoundbank(ByteBuffer buffer) throws IOException {
+        this(buffer, false);
+    }
+
+    public DLSSoundbank(ByteBuffer buffer, boolean lazy) throws IOException {
+        this.lazy = lazy;
+        readSoundbank(new RIFFReader(buffer));
     }
 
-    private void readSoundbank(InputStream inputstream) throws IOException {
-        RIFFReader riff = new RIFFReader(inputstream);
+    private void readSoundbank(RIFFReader riff) throws IOException {
         if (!riff.getFormat().equals("RIFF")) {
             throw new RIFFInvalidFormatException(
                     "Input stream is not a valid RIFF stream!");
@@ -448,43 +480,81 @@ public final class DLSSoundbank implements Soundbank {
 
     private void readLinsChunk(RIFFReader riff) throws IOException {
         while (riff.hasNextChunk()) {
+            // Instrument chunk, kept to read it later in lazy mode
+            ByteBuffer data = lazy ? riff.getByteBuffer() : null;
             RIFFReader chunk = riff.nextChunk();
             if (chunk.getFormat().equals("LIST")) {
-                if (chunk.getType().equals("ins "))
-                    readInsChunk(chunk);
+                if (chunk.getType().equals("ins ")) {
+                    DLSInstrument instrument = new DLSInstrument(this);
+                    readInsChunk(instrument, chunk, data == null);
+                    if (data != null) {
+                        instrument.hydra = data;
+                        instrument.loaded = false;
+                    }
+                    instruments.add(instrument);
+                }
             }
         }
     }
 
-    private void readInsChunk(RIFFReader riff) throws IOException {
-        DLSInstrument instrument = new DLSInstrument(this);
+    // Reads the regions and articulators of a lazily read instrument
+    synchronized void loadInstrument(DLSInstrument instrument) {
+        if (instrument.loaded)
+            return;
+        temp_rgnassign = new HashMap<DLSRegion, Long>();
+        try {
+            readInsChunk(instrument, new RIFFReader(instrument.hydra), true);
+            for (Map.Entry<DLSRegion, Long> entry
+                    : temp_rgnassign.entrySet()) {
+                long sampleid = entry.getValue();
+                if (sampleid < 0 || sampleid >= samples.size())
+                    throw new RIFFInvalidDataException();
+                entry.getKey().sample = samples.get((int)sampleid);
+            }
+        } catch (IOException e) {
+            //e.printStackTrace();
+            instrument.regions.clear();
+            instrument.modulators.clear();
+        }
+        temp_rgnassign = null;
+        instrument.hydra = null;
+        instrument.loaded = true;
+    }
+
+    /*
+     * Reads an instrument chunk. The header and info are read if the
+     * instrument is new, the regions and articulators if regions is true.
+     */
+    private void readInsChunk(DLSInstrument instrument, RIFFReader riff,
+            boolean regions) throws IOException {
+        boolean header = instrument.loaded;
 
         while (riff.hasNextChunk()) {
             RIFFReader chunk = riff.nextChunk();
             String format = chunk.getFormat();
             if (format.equals("LIST")) {
-                if (chunk.getType().equals("INFO")) {
+                if (header && chunk.getType().equals("INFO")) {
                     readInsInfoChunk(instrument, chunk);
                 }
-                if (chunk.getType().equals("lrgn")) {
+                if (regions && chunk.getType().equals("lrgn")) {
                     while (chunk.hasNextChunk()) {
                         RIFFReader subchunk = chunk.nextChunk();
                         if (subchunk.getFormat().equals("LIST")) {
                             if (subchunk.getType().equals("rgn ")) {
                                 DLSRegion split = new DLSRegion();
                                 if (readRgnChunk(split, subchunk))
-                                    instrument.getRegions().add(split);
+                                    instrument.regions.add(split);
                             }
                             if (subchunk.getType().equals("rgn2")) {
                                 // support for DLS level 2 regions
                                 DLSRegion split = new DLSRegion();
                                 if (readRgnChunk(split, subchunk))
-                                    instrument.getRegions().add(split);
+                                    instrument.regions.add(split);
                             }
                         }
                     }
                 }
-                if (chunk.getType().equals("lart")) {
+                if (regions && chunk.getType().equals("lart")) {
                     List<DLSModulator> modlist = new ArrayList<DLSModulator>();
                     while (chunk.hasNextChunk()) {
                         RIFFReader subchunk = chunk.nextChunk();
@@ -497,9 +567,9 @@ public final class DLSSoundbank implements Soundbank {
                         if (subchunk.getFormat().equals("art1"))
                             readArt1Chunk(modlist, subchunk);
                     }
-                    instrument.getModulators().addAll(modlist);
+                    instrument.modulators.addAll(modlist);
                 }
-                if (chunk.getType().equals("lar2")) {
+                if (regions && chunk.getType().equals("lar2")) {
                     // support for DLS level 2 ART
                     List<DLSModulator> modlist = new ArrayList<DLSModulator>();
                     while (chunk.hasNextChunk()) {
@@ -513,9 +583,9 @@ public final class DLSSoundbank implements Soundbank {
                         if (subchunk.getFormat().equals("art2"))
                             readArt2Chunk(modlist, subchunk);
                     }
-                    instrument.getModulators().addAll(modlist);
+                    instrument.modulators.addAll(modlist);
                 }
-            } else {
+            } else if (header) {
                 if (format.equals("dlid")) {
                     instrument.guid = new byte[16];
                     chunk.readFully(instrument.guid);
@@ -542,7 +612,6 @@ public final class DLSSoundbank implements Soundbank {
 
             }
         }
-        instruments.add(instrument);
     }
 
     private void readArt1Chunk(List<DLSModulator> modulators, RIFFReader riff)
@@ -796,21 +865,7 @@ public final class DLSSoundbank implements Soundbank {
                         sample.setData(new ModelByteBuffer(sampleFile,
                                 chunk.getFilePointer(), chunk.available()));
                     } else {
-                        byte[] buffer = new byte[chunk.available()];
-                        //  chunk.read(buffer);
-                        sample.setData(buffer);
-
-                        int read = 0;
-                        int avail = chunk.available();
-                        while (read != avail) {
-                            if (avail - read > 65536) {
-                                chunk.readFully(buffer, read, 65536);
-                                read += 65536;
-                            } else {
-                                chunk.readFully(buffer, read, avail - read);
-                                read = avail;
-                            }
-                        }
+                        sample.setData(readSampleData(chunk));
                     }
                 }
 
@@ -825,6 +880,33 @@ public final class DLSSoundbank implements Soundbank {
 
     }
 
+    // Reads sample data, without copying if it is in a heap ByteBuffer
+    private static ModelByteBuffer readSampleData(RIFFReader chunk)
+            throws IOException {
+        ByteBuffer slice = chunk.getByteBuffer();
+        if (slice != null && slice.hasArray()) {
+            return new ModelByteBuffer(slice.array(),
+                    slice.arrayOffset(), slice.remaining());
+        }
+        byte[] data = new byte[chunk.available()];
+        if (slice != null) {
+            slice.get(data);
+            return new ModelByteBuffer(data);
+        }
+        int read = 0;
+        int avail = chunk.available();
+        while (read != avail) {
+            if (avail - read > 65536) {
+                chunk.readFully(data, read, 65536);
+                read += 65536;
+            } else {
+                chunk.readFully(data, read, avail - read);
+                read = avail;
+            }
+        }
+        return new ModelByteBuffer(data);
+    }
+
     private void readWaveInfoChunk(DLSSample dlssample, RIFFReader riff)
             throws IOException {
         dlssample.info.name = null;
@@ -26,12 +26,19 @@ package gervill.com.sun.media.sound;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import gervill.javax.sound.sampled.AudioFormat;
 
 /**
  * This class is a pointer to a binary array either in memory or on disk.
@@ -46,6 +53,118 @@ public final class ModelByteBuffer {
     private byte[] buffer;
     private long offset;
     private final long len;
+    // Read-only mapping of the file, split into chunks of MAP_CHUNK_SIZE
+    private volatile ByteBuffer[] mapped;
+    // Chunks of mapped allocated from ModelByteBufferArena
+    private OffHeapChunks offheap;
+    // Loaded data kept compressed instead of in buffer
+    private volatile ModelCompressedSamples compressed;
+    static final int MAP_CHUNK_BITS = 30;
+    static final long MAP_CHUNK_SIZE = 1L << MAP_CHUNK_BITS;
+
+    // Off-heap data of a root. The chunks are returned to
+    // ModelByteBufferArena once the root is unloaded and no reader
+    // holds views of them, so voices still playing the data after
+    // unload never read memory reused for other data.
+    private static final class OffHeapChunks {
+
+        final ByteBuffer[] chunks;
+        int readers = 0;
+        boolean unloaded = false;
+
+        OffHeapChunks(ByteBuffer[] chunks) {
+            this.chunks = chunks;
+        }
+
+        void freeIfUnused() {
+            if (!unloaded || readers != 0)
+                return;
+            for (ByteBuffer chunk : chunks)
+                ModelByteBufferArena.free(chunk);
+        }
+    }
+
+    // Off-heap data by the views handed out to its readers, also used
+    // to guard the OffHeapChunks fields
+    private static final Map<ByteBuffer[], OffHeapChunks> readers
+            = new IdentityHashMap<ByteBuffer[], OffHeapChunks>();
+
+    private class MappedInputStream extends InputStream {
+
+        private final ByteBuffer[] views;
+        private long pos = 0;
+        private long mark = 0;
+
+        MappedInputStream(ByteBuffer[] views) {
+            this.views = views;
+        }
+
+        @Override
+        public int available() throws IOException {
+            long left = capacity() - pos;
+            if (left > Integer.MAX_VALUE)
+                return Integer.MAX_VALUE;
+            return (int)left;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mark = pos;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            pos = mark;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n < 0)
+                return 0;
+            long left = capacity() - pos;
+            if (n > left)
+                n = left;
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long left = capacity() - pos;
+            if (left == 0)
+                return -1;
+            if (len > left)
+                len = (int)left;
+            readMapped(views, pos, b, off, len);
+            pos += len;
+            return len;
+        }
+
+        @Override
+        public int read(byte[] b) throws IOException {
+            return read(b, 0, b.length);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == capacity())
+                return -1;
+            long p = arrayOffset() + pos;
+            pos++;
+            return views[(int)(p >>> MAP_CHUNK_BITS)]
+                    .get((int)(p & (MAP_CHUNK_SIZE - 1))) & 0xFF;
+        }
+
+        @Override
+        public void close() throws IOException {
+            releaseMappedViews(views);
+        }
+    }
 
     private class RandomFileInputStream extends InputStream {
 
@@ -210,6 +329,9 @@ public final class ModelByteBuffer {
 
     public InputStream getInputStream() {
         if (root.file != null && root.buffer == null) {
+            ByteBuffer[] views = getMappedViews();
+            if (views != null)
+                return new MappedInputStream(views);
             try {
                 return new RandomFileInputStream();
             } catch (IOException e) {
@@ -304,6 +426,102 @@ public final class ModelByteBuffer {
         }
     }
 
+    /*
+     * Reads the data of the buffers into direct memory from
+     * ModelByteBufferArena, it is then read like a mapping of the file.
+     */
+    public static void loadAllOffHeap(Collection<ModelByteBuffer> col)
+            throws IOException {
+        File selfile = null;
+        RandomAccessFile raf = null;
+        try {
+            for (ModelByteBuffer mbuff : col) {
+                mbuff = mbuff.root;
+                if (mbuff.file == null)
+                    continue;
+                if (mbuff.buffer != null)
+                    continue;
+                synchronized (mbuff) {
+                    if (mbuff.offheap != null)
+                        continue;
+                }
+                if (selfile == null || !selfile.equals(mbuff.file)) {
+                    if (raf != null) {
+                        raf.close();
+                        raf = null;
+                    }
+                    selfile = mbuff.file;
+                    raf = new RandomAccessFile(mbuff.file, "r");
+                }
+                FileChannel channel = raf.getChannel();
+                int count = (int)((mbuff.len + MAP_CHUNK_SIZE - 1)
+                        >>> MAP_CHUNK_BITS);
+                ByteBuffer[] chunks = new ByteBuffer[count];
+                try {
+                    for (int i = 0; i < count; i++) {
+                        long pos = (long)i << MAP_CHUNK_BITS;
+                        chunks[i] = ModelByteBufferArena.allocate(
+                                (int)Math.min(MAP_CHUNK_SIZE, mbuff.len - pos));
+                        ByteBuffer dst = chunks[i].duplicate();
+                        while (dst.hasRemaining()) {
+                            if (channel.read(dst, mbuff.fileoffset + pos
+                                    + dst.position()) < 0)
+                                throw new EOFException();
+                        }
+                    }
+                } catch (IOException e) {
+                    for (ByteBuffer chunk : chunks)
+                        if (chunk != null)
+                            ModelByteBufferArena.free(chunk);
+                    throw e;
+                }
+                synchronized (mbuff) {
+                    mbuff.offheap = new OffHeapChunks(chunks);
+                    mbuff.mapped = chunks;
+                }
+            }
+        } finally {
+            if (raf != null)
+                raf.close();
+        }
+    }
+
+    /*
+     * Replaces the loaded data of the roots with compressed data, the
+     * format of the samples is given for each root. Roots loaded with
+     * the same array share the compressed data.
+     */
+    public static void compressAll(Map<ModelByteBuffer, AudioFormat> roots) {
+        Map<byte[], ModelCompressedSamples> done
+                = new IdentityHashMap<byte[], ModelCompressedSamples>();
+        for (Map.Entry<ModelByteBuffer, AudioFormat> entry : roots.entrySet()) {
+            ModelByteBuffer mbuff = entry.getKey().root;
+            AudioFormat format = entry.getValue();
+            if (mbuff.file == null || mbuff.buffer == null)
+                continue;
+            ModelCompressedSamples samples = done.get(mbuff.buffer);
+            if (samples == null || !samples.isCompatible(format)) {
+                samples = ModelCompressedSamples.compress(mbuff.buffer,
+                        (int)mbuff.offset, (int)mbuff.len, format);
+                if (samples == null)
+                    continue;
+                done.put(mbuff.buffer, samples);
+            }
+            ModelByteBufferRegistry.release(mbuff.buffer);
+            mbuff.compressed = samples;
+            mbuff.buffer = null;
+            mbuff.offset = 0;
+        }
+    }
+
+    public ModelCompressedSamples getCompressed() {
+        return root.compressed;
+    }
+
+    public boolean isOffHeap() {
+        return root.offheap != null;
+    }
+
     public void load() throws IOException {
         if (root != this) {
             root.load();
@@ -333,6 +551,132 @@ public final class ModelByteBuffer {
             throw new IllegalStateException(
                     "No file associated with this ByteBuffer!");
         }
+        if (root.buffer != null)
+            ModelByteBufferRegistry.release(root.buffer);
         root.buffer = null;
+        root.compressed = null;
+        synchronized (this) {
+            // Freed once the readers still holding views are closed
+            if (offheap != null) {
+                synchronized (readers) {
+                    offheap.unloaded = true;
+                    offheap.freeIfUnused();
+                }
+            }
+            offheap = null;
+            mapped = null;
+        }
+    }
+
+    // Replaces the loaded data of a root with an array of equal content
+    void setArray(byte[] buffer) {
+        if (root != this || this.buffer == null
+                || buffer.length != this.buffer.length)
+            throw new IllegalStateException();
+        this.buffer = buffer;
+        this.offset = 0;
+    }
+
+    public static void mapAll(Collection<ModelByteBuffer> col)
+            throws IOException {
+        for (ModelByteBuffer mbuff : col) {
+            mbuff = mbuff.root;
+            if (mbuff.file == null)
+                continue;
+            if (mbuff.buffer != null)
+                continue;
+            mbuff.map();
+        }
+    }
+
+    /*
+     * Maps the file into memory, streams opened afterwards read from
+     * the mapping instead of opening the file.
+     */
+    public void map() throws IOException {
+        if (root != this) {
+            root.map();
+            return;
+        }
+        if (file == null) {
+            throw new IllegalStateException(
+                    "No file associated with this ByteBuffer!");
+        }
+        synchronized (this) {
+            if (mapped != null)
+                return;
+            int count = (int)((len + MAP_CHUNK_SIZE - 1) >>> MAP_CHUNK_BITS);
+            ByteBuffer[] chunks = new ByteBuffer[count];
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                for (int i = 0; i < count; i++) {
+                    long pos = (long)i << MAP_CHUNK_BITS;
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                            fileoffset + pos, Math.min(MAP_CHUNK_SIZE,
+                                    len - pos));
+                }
+            } finally {
+                raf.close();
+            }
+            mapped = chunks;
+        }
+    }
+
+    public boolean isMapped() {
+        return root.mapped != null;
+    }
+
+    /*
+     * Views of the mapping private to one reader, or null if not mapped.
+     * Off-heap data stays allocated until the views are passed to
+     * releaseMappedViews, also when the buffer is unloaded meanwhile.
+     */
+    ByteBuffer[] getMappedViews() {
+        synchronized (root) {
+            ByteBuffer[] chunks = root.mapped;
+            if (chunks == null)
+                return null;
+            ByteBuffer[] views = new ByteBuffer[chunks.length];
+            for (int i = 0; i < chunks.length; i++)
+                views[i] = chunks[i].duplicate();
+            if (root.offheap != null) {
+                synchronized (readers) {
+                    root.offheap.readers++;
+                    readers.put(views, root.offheap);
+                }
+            }
+            return views;
+        }
+    }
+
+    // Called by readers when they are done with views from getMappedViews
+    static void releaseMappedViews(ByteBuffer[] views) {
+        if (views == null)
+            return;
+        synchronized (readers) {
+            OffHeapChunks offheap = readers.remove(views);
+            if (offheap == null)
+                return;
+            offheap.readers--;
+            offheap.freeIfUnused();
+        }
+    }
+
+    // Copies len bytes from position pos of this buffer using views
+    // returned by getMappedViews
+    void readMapped(ByteBuffer[] views, long pos, byte[] b, int off,
+            int len) {
+        long p = arrayOffset() + pos;
+        while (len > 0) {
+            ByteBuffer view = views[(int)(p >>> MAP_CHUNK_BITS)];
+            int chunkpos = (int)(p & (MAP_CHUNK_SIZE - 1));
+            int n = Math.min(len, view.limit() - chunkpos);
+            view.position(chunkpos);
+            view.get(b, off, n);
+            p += n;
+            off += n;
+            len -= n;
+        }
     }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2007, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package gervill.com.sun.media.sound;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A process-wide arena of direct memory for sample data. Memory is handed
+ * out from large blocks by bumping a pointer, a block is reused once all
+ * allocations in it have been freed. Sample data kept here doesn't add to
+ * the garbage collected heap.
+ * <p>
+ * Emptied blocks beyond the one spare block are dropped, their direct
+ * memory is only returned to the system when the garbage collector
+ * collects the block, not when free is called.
+ */
+public final class ModelByteBufferArena {
+
+    private static final class Block {
+
+        final ByteBuffer data;
+        int top = 0;
+        int live = 0;
+
+        Block(int size) {
+            data = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    private static final int BLOCK_SIZE = 64 << 20;
+    private static final int ALIGN = 64;
+
+    // Block new allocations are taken from
+    private static Block current = null;
+    // One empty block kept for reuse
+    private static Block spare = null;
+    // Blocks of the allocations that have not been freed
+    private static final Map<ByteBuffer, Block> blocks
+            = new IdentityHashMap<ByteBuffer, Block>();
+    private static long allocated = 0;
+    private static long reserved = 0;
+
+    private ModelByteBufferArena() {
+    }
+
+    /**
+     * Allocates len bytes of direct memory, the memory must be returned
+     * with free.
+     */
+    public static synchronized ByteBuffer allocate(int len) {
+        if (len < 0)
+            throw new IllegalArgumentException();
+        Block block;
+        int pos;
+        if (len > BLOCK_SIZE) {
+            // Large allocations get a block of their own
+            block = new Block(len);
+            reserved += len;
+            pos = 0;
+        } else {
+            if (current == null || current.top + len > BLOCK_SIZE) {
+                if (spare != null) {
+                    current = spare;
+                    spare = null;
+                } else {
+                    current = new Block(BLOCK_SIZE);
+                    reserved += BLOCK_SIZE;
+                }
+            }
+            block = current;
+            pos = block.top;
+            block.top = Math.min(BLOCK_SIZE,
+                    (pos + len + ALIGN - 1) & ~(ALIGN - 1));
+        }
+        ByteBuffer dup = block.data.duplicate();
+        dup.position(pos);
+        dup.limit(pos + len);
+        ByteBuffer slice = dup.slice();
+        block.live++;
+        blocks.put(slice, block);
+        allocated += len;
+        return slice;
+    }
+
+    /**
+     * Returns memory obtained from allocate to the arena. The memory may
+     * be handed out again right away, ModelByteBuffer only frees it once
+     * no reader holds views of it.
+     */
+    public static synchronized void free(ByteBuffer buffer) {
+        Block block = blocks.remove(buffer);
+        if (block == null)
+            return;
+        allocated -= buffer.capacity();
+        block.live--;
+        if (block.live != 0)
+            return;
+        if (block == current) {
+            block.top = 0;
+            return;
+        }
+        if (spare == null && block.data.capacity() == BLOCK_SIZE) {
+            block.top = 0;
+            spare = block;
+        } else {
+            // Released by the garbage collector, no longer counted
+            reserved -= block.data.capacity();
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently allocated from the arena.
+     */
+    public static synchronized long getAllocatedBytes() {
+        return allocated;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory held by the arena.
+     */
+    public static synchronized long getReservedBytes() {
+        return reserved;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2007, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package gervill.com.sun.media.sound;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A process-wide registry of loaded sample data. Roots with identical
+ * content share one array, so samples that appear in several soundbanks
+ * are only held in memory once. Only roots that own their whole array,
+ * like samples loaded from a soundbank file, can be shared.
+ */
+public final class ModelByteBufferRegistry {
+
+    private static final class Entry {
+
+        final WeakReference<byte[]> data;
+        final long hash;
+        int refs = 1;
+
+        Entry(byte[] data, long hash) {
+            this.data = new WeakReference<byte[]>(data);
+            this.hash = hash;
+        }
+    }
+
+    // Entries by content hash
+    private static final Map<Long, List<Entry>> hashes
+            = new HashMap<Long, List<Entry>>();
+    // Entries by shared array
+    private static final Map<byte[], Entry> entries
+            = new WeakHashMap<byte[], Entry>();
+
+    private ModelByteBufferRegistry() {
+    }
+
+    /**
+     * Makes loaded roots of the buffers with the same content share one
+     * array.
+     */
+    public static synchronized void share(Collection<ModelByteBuffer> col) {
+        for (ModelByteBuffer mbuff : col) {
+            ModelByteBuffer root = mbuff.getRoot();
+            byte[] data = root.array();
+            if (data == null || root.arrayOffset() != 0
+                    || data.length != root.capacity())
+                continue;
+            if (entries.containsKey(data))
+                continue;
+            Entry entry = null;
+            long hash = hash(data);
+            List<Entry> list = hashes.get(hash);
+            if (list == null) {
+                list = new ArrayList<Entry>(1);
+                hashes.put(hash, list);
+            }
+            byte[] shared = null;
+            Iterator<Entry> iter = list.iterator();
+            while (iter.hasNext()) {
+                Entry e = iter.next();
+                byte[] d = e.data.get();
+                if (d == null) {
+                    iter.remove();
+                } else if (shared == null && Arrays.equals(d, data)) {
+                    shared = d;
+                    entry = e;
+                }
+            }
+            if (shared == null) {
+                entry = new Entry(data, hash);
+                list.add(entry);
+                entries.put(data, entry);
+            } else {
+                entry.refs++;
+                root.setArray(shared);
+            }
+        }
+    }
+
+    // Called when a root holding the array is unloaded
+    static synchronized void release(byte[] data) {
+        Entry entry = entries.get(data);
+        if (entry == null)
+            return;
+        entry.refs--;
+        if (entry.refs > 0)
+            return;
+        entries.remove(data);
+        List<Entry> list = hashes.get(entry.hash);
+        if (list != null) {
+            list.remove(entry);
+            if (list.isEmpty())
+                hashes.remove(entry.hash);
+        }
+    }
+
+    /**
+     * Returns the number of bytes not held in memory because roots share
+     * arrays.
+     */
+    public static synchronized long getBytesSaved() {
+        long saved = 0;
+        for (Map.Entry<byte[], Entry> e : entries.entrySet())
+            saved += (long)(e.getValue().refs - 1) * e.getKey().length;
+        return saved;
+    }
+
+    // Returns the number of distinct arrays in the registry
+    public static synchronized int getSharedCount() {
+        return entries.size();
+    }
+
+    // 64 bit FNV-1a hash of the array, mixed with its length
+    private static long hash(byte[] data) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < data.length; i++) {
+            h ^= data[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h ^ ((long)data.length << 32);
+    }
+}
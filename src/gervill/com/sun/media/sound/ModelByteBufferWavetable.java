@@ -26,6 +26,8 @@ package gervill.com.sun.media.sound;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import gervill.javax.sound.sampled.AudioFormat;
 import gervill.javax.sound.sampled.AudioInputStream;
 import gervill.javax.sound.sampled.AudioSystem;
@@ -46,6 +48,10 @@ public final class ModelByteBufferWavetable implements ModelWavetable {
         int pos2 = 0;
         int markpos = 0;
         int markpos2 = 0;
+        private ByteBuffer[] views1;
+        private ByteBuffer[] views2;
+        private byte[] tmp1;
+        private byte[] tmp2;
 
         Buffer8PlusInputStream() {
             framesize_pc = format.getFrameSize() / format.getChannels();
@@ -59,30 +65,55 @@ public final class ModelByteBufferWavetable implements ModelWavetable {
                 return -1;
             if (len > avail)
                 len = avail;
+            int frames = (len + framesize_pc) / (framesize_pc + 1);
             byte[] buff1 = buffer.array();
             byte[] buff2 = buffer8.array();
-            pos += buffer.arrayOffset();
-            pos2 += buffer8.arrayOffset();
+            int p1 = pos + (int)buffer.arrayOffset();
+            int p2 = pos2 + (int)buffer8.arrayOffset();
+            // Samples in direct memory are copied out first
+            if (buff1 == null) {
+                if (views1 == null)
+                    views1 = buffer.getMappedViews();
+                tmp1 = readDirect(buffer, views1, pos,
+                        frames * framesize_pc, tmp1);
+                buff1 = tmp1;
+                p1 = 0;
+            }
+            if (buff2 == null) {
+                if (views2 == null)
+                    views2 = buffer8.getMappedViews();
+                tmp2 = readDirect(buffer8, views2, pos2, frames, tmp2);
+                buff2 = tmp2;
+                p2 = 0;
+            }
             if (bigendian) {
                 for (int i = 0; i < len; i += (framesize_pc + 1)) {
-                    System.arraycopy(buff1, pos, b, i, framesize_pc);
-                    System.arraycopy(buff2, pos2, b, i + framesize_pc, 1);
-                    pos += framesize_pc;
-                    pos2 += 1;
+                    System.arraycopy(buff1, p1, b, i, framesize_pc);
+                    System.arraycopy(buff2, p2, b, i + framesize_pc, 1);
+                    p1 += framesize_pc;
+                    p2 += 1;
                 }
             } else {
                 for (int i = 0; i < len; i += (framesize_pc + 1)) {
-                    System.arraycopy(buff2, pos2, b, i, 1);
-                    System.arraycopy(buff1, pos, b, i + 1, framesize_pc);
-                    pos += framesize_pc;
-                    pos2 += 1;
+                    System.arraycopy(buff2, p2, b, i, 1);
+                    System.arraycopy(buff1, p1, b, i + 1, framesize_pc);
+                    p1 += framesize_pc;
+                    p2 += 1;
                 }
             }
-            pos -= buffer.arrayOffset();
-            pos2 -= buffer8.arrayOffset();
+            pos += frames * framesize_pc;
+            pos2 += frames;
             return len;
         }
 
+        private byte[] readDirect(ModelByteBuffer buff, ByteBuffer[] views,
+                int pos, int len, byte[] tmp) {
+            if (tmp == null || tmp.length < len)
+                tmp = new byte[len];
+            buff.readMapped(views, pos, tmp, 0, len);
+            return tmp;
+        }
+
         @Override
         public long skip(long n) throws IOException {
             int avail = available();
@@ -95,6 +126,14 @@ public final class ModelByteBufferWavetable implements ModelWavetable {
             return super.skip(n);
         }
 
+        @Override
+        public void close() throws IOException {
+            ModelByteBuffer.releaseMappedViews(views1);
+            ModelByteBuffer.releaseMappedViews(views2);
+            views1 = null;
+            views2 = null;
+        }
+
         @Override
         public int read(byte[] b) throws IOException {
             return read(b, 0, b.length);
@@ -141,6 +180,15 @@ public final class ModelByteBufferWavetable implements ModelWavetable {
     private float pitchcorrection = 0;
     private float attenuation = 0;
     private int loopType = LOOP_TYPE_OFF;
+    private SoftFloatSampleCache.Key cache_key = null;
+    // Set while queued for SoftFloatSampleCache, guarded by its lock
+    boolean cache_requested = false;
+    // Start of a sample stored on disk, held in memory while streaming
+    private byte[] stream_head = null;
+    // Band-limited copies of the sample decimated by 2, 4 and 8, laid
+    // out like getResidentChannels
+    private float[][][] mipmaps = null;
+    public static final int MIPMAP_LEVELS = 3;
 
     public ModelByteBufferWavetable(ModelByteBuffer buffer) {
         this.buffer = buffer;
@@ -176,6 +224,201 @@ public final class ModelByteBufferWavetable implements ModelWavetable {
         return buffer;
     }
 
+    /*
+     * Keeps the first ms milliseconds of a sample stored on disk in memory,
+     * the rest of it is then streamed from disk by SoftDiskStreamer.
+     */
+    public void loadStreamingHead(float ms) throws IOException {
+        if (buffer == null || buffer.array() != null || format == null)
+            return;
+        if (stream_head != null)
+            return;
+        int framesize = format.getFrameSize();
+        if (framesize <= 0)
+            return;
+        long bytes = (long)(format.getSampleRate() * ms / 1000f) * framesize;
+        if (bytes > buffer.capacity())
+            bytes = buffer.capacity();
+        byte[] head = new byte[(int)bytes];
+        InputStream is = buffer.getInputStream();
+        if (is == null)
+            return;
+        try {
+            int read = 0;
+            while (read < head.length) {
+                int ret = is.read(head, read, head.length - read);
+                if (ret < 0)
+                    break;
+                read += ret;
+            }
+        } finally {
+            is.close();
+        }
+        stream_head = head;
+    }
+
+    public byte[] getStreamingHead() {
+        return stream_head;
+    }
+
+    public void setStreamingHead(byte[] head) {
+        stream_head = head;
+    }
+
+    public void unloadStreamingHead() {
+        stream_head = null;
+    }
+
+    /*
+     * Builds copies of the sample decimated by 2, 4 and 8 for playing it
+     * transposed far upward. Each level is filtered directly from the
+     * sample, inside a forward loop the filter wraps around the loop.
+     */
+    public void loadMipmaps() throws IOException {
+        if (mipmaps != null || buffer == null || format == null)
+            return;
+        int channels = format.getChannels();
+        int framesize_pc = format.getFrameSize() / channels;
+        if (framesize_pc <= 0)
+            return;
+        long samples = buffer.capacity() / framesize_pc;
+        if (samples > Integer.MAX_VALUE)
+            return;
+        // Decoded directly, the sample isn't put in the float cache
+        AudioFloatInputStream stream = openDecodingStream();
+        if (stream == null)
+            return;
+        float[] data;
+        try {
+            data = new float[(int)samples];
+            int pos = 0;
+            while (pos < data.length) {
+                int ret = stream.read(data, pos, data.length - pos);
+                if (ret <= 0)
+                    break;
+                pos += ret;
+            }
+            if (pos < data.length)
+                data = Arrays.copyOf(data, pos);
+        } finally {
+            stream.close();
+        }
+        int frames = data.length / channels;
+        int ls = 0;
+        int le = 0;
+        if (loopType != LOOP_TYPE_OFF && (loopType & (LOOP_TYPE_PINGPONG
+                | LOOP_TYPE_REVERSE)) == 0 && loopLength > 0) {
+            ls = Math.max(0, (int)loopStart);
+            le = Math.min(frames, (int)(loopStart + loopLength));
+        }
+        // Each channel zero padded, and the loop repeated, by the widest
+        // filter on both sides
+        int pad = 32 << MIPMAP_LEVELS;
+        float[][] plain = new float[channels][frames + 2 * pad];
+        float[][] looped = new float[channels][];
+        for (int c = 0; c < channels; c++)
+            for (int i = 0; i < frames; i++)
+                plain[c][pad + i] = data[i * channels + c];
+        if (le > ls) {
+            int looplen = le - ls;
+            for (int c = 0; c < channels; c++) {
+                float[] buff = new float[looplen + 2 * pad];
+                for (int i = 0; i < buff.length; i++) {
+                    int k = (i - pad) % looplen;
+                    if (k < 0)
+                        k += looplen;
+                    buff[i] = plain[c][pad + ls + k];
+                }
+                looped[c] = buff;
+            }
+        }
+        float[][][] levels = new float[MIPMAP_LEVELS][][];
+        for (int i = 0; i < MIPMAP_LEVELS; i++)
+            levels[i] = decimate(plain, looped, pad, frames, 2 << i, ls, le);
+        mipmaps = levels;
+    }
+
+    // Lowpass filters with a Blackman windowed sinc and keeps every
+    // factor:th frame, frames inside the loop are filtered from the
+    // repeated loop
+    private static float[][] decimate(float[][] plain, float[][] looped,
+            int pad, int frames, int factor, int ls, int le) {
+        int taps = 64 * factor + 1;
+        int center = taps / 2;
+        double fc = 0.45 / factor;
+        float[] h = new float[taps];
+        double sum = 0;
+        for (int t = 0; t < taps; t++) {
+            double x = t - center;
+            double w = 0.42 - 0.5 * Math.cos(2 * Math.PI * t / (taps - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * t / (taps - 1));
+            double v = (x == 0) ? 2 * fc
+                    : Math.sin(2 * Math.PI * fc * x) / (Math.PI * x);
+            h[t] = (float)(v * w);
+            sum += h[t];
+        }
+        for (int t = 0; t < taps; t++)
+            h[t] /= sum;
+        int channels = plain.length;
+        int outframes = (frames + factor - 1) / factor;
+        int opad = SoftFloatSampleCache.PADDING;
+        float[][] out = new float[channels][outframes + 2 * opad];
+        for (int c = 0; c < channels; c++) {
+            float[] o = out[c];
+            for (int j = 0; j < outframes; j++) {
+                int p = j * factor;
+                float[] src;
+                int off;
+                if (p >= ls && p < le) {
+                    src = looped[c];
+                    off = pad + p - ls - center;
+                } else {
+                    src = plain[c];
+                    off = pad + p - center;
+                }
+                float y0 = 0;
+                float y1 = 0;
+                int t = 0;
+                for (; t < taps - 1; t += 2) {
+                    y0 += h[t] * src[off + t];
+                    y1 += h[t + 1] * src[off + t + 1];
+                }
+                y0 += h[t] * src[off + t];
+                o[opad + j] = y0 + y1;
+            }
+        }
+        return out;
+    }
+
+    public float[][][] getMipmaps() {
+        return mipmaps;
+    }
+
+    public void setMipmaps(float[][][] mipmaps) {
+        this.mipmaps = mipmaps;
+    }
+
+    public void unloadMipmaps() {
+        mipmaps = null;
+    }
+
+    // Stream over mipmap level 1 to MIPMAP_LEVELS, its sample rate is
+    // that of the sample divided by 2^level
+    public AudioFloatInputStream openMipmapStream(int level) {
+        float[][][] levels = mipmaps;
+        if (levels == null || level < 1 || level > levels.length)
+            return null;
+        float[][] channels = levels[level - 1];
+        AudioFormat f = getFormat();
+        float rate = f.getSampleRate() / (1 << level);
+        AudioFormat mformat = new AudioFormat(f.getEncoding(), rate,
+                f.getSampleSizeInBits(), f.getChannels(), f.getFrameSize(),
+                rate, f.isBigEndian());
+        return AudioFloatInputStream.getInputStream(mformat, channels,
+                SoftFloatSampleCache.PADDING,
+                channels[0].length - 2 * SoftFloatSampleCache.PADDING);
+    }
+
     public AudioFormat getFormat() {
         if (format == null) {
             if (buffer == null)
@@ -199,6 +442,15 @@ public final class ModelByteBufferWavetable implements ModelWavetable {
 
     @Override
     public AudioFloatInputStream openStream() {
+        return openStream(false);
+    }
+
+    /*
+     * Same as openStream(), a sample streamed from disk returns silence
+     * when the disk falls behind if realtime is true, and waits for it
+     * otherwise.
+     */
+    AudioFloatInputStream openStream(boolean realtime) {
         if (buffer == null)
             return null;
         if (format == null) {
@@ -213,10 +465,114 @@ public final class ModelByteBufferWavetable implements ModelWavetable {
             return AudioFloatInputStream.getInputStream(ais);
         }
         if (buffer.array() == null) {
-            return AudioFloatInputStream.getInputStream(new AudioInputStream(
-                    buffer.getInputStream(), format,
-                    buffer.capacity() / format.getFrameSize()));
+            byte[] head = stream_head;
+            if (head != null) {
+                InputStream is = new SoftStreamingInputStream(buffer, head,
+                        format, realtime);
+                return AudioFloatInputStream.getInputStream(new AudioInputStream(
+                        is, format, buffer.capacity() / format.getFrameSize()));
+            }
+            // 24 bit samples in direct memory are combined while read
+            if (buffer8 != null && buffer.isOffHeap())
+                return openDecodingStream();
+            return AudioFloatInputStream.getInputStream(format, buffer);
+        }
+        AudioFloatInputStream stream = openCachedStream();
+        if (stream != null)
+            return stream;
+        return openDecodingStream();
+    }
+
+    // Returns a stream over the decoded sample, or null if the sample
+    // is not in the float sample cache
+    private AudioFloatInputStream openCachedStream() {
+        SoftFloatSampleCache.Entry entry = getCacheEntry();
+        if (entry == null)
+            return null;
+        return AudioFloatInputStream.getInputStream(entry.format, entry.data,
+                SoftFloatSampleCache.PADDING, entry.frames);
+    }
+
+    // Decoded sample from the float sample cache. A missing sample is
+    // requested from the cache's filler thread and null is returned,
+    // it is never decoded here as this runs on the audio thread.
+    private SoftFloatSampleCache.Entry getCacheEntry() {
+        SoftFloatSampleCache.Key key = getCacheKey();
+        if (key == null)
+            return null;
+        SoftFloatSampleCache.Entry entry = SoftFloatSampleCache.get(key);
+        if (entry == null)
+            SoftFloatSampleCache.request(this);
+        return entry;
+    }
+
+    // Key of the sample in the float sample cache, or null if it
+    // can't be cached
+    SoftFloatSampleCache.Key getCacheKey() {
+        if (buffer == null || format == null || buffer.array() == null)
+            return null;
+        int framesize_pc = format.getFrameSize() / format.getChannels();
+        if (framesize_pc <= 0)
+            return null;
+        if (!SoftFloatSampleCache.fits(buffer.capacity() / framesize_pc))
+            return null;
+        if (cache_key == null)
+            cache_key = new SoftFloatSampleCache.Key(buffer, buffer8, format);
+        return cache_key;
+    }
+
+    // Decodes the sample straight into padded per-channel arrays,
+    // called by the float sample cache's filler thread
+    SoftFloatSampleCache.Entry decodeCacheEntry() {
+        int channels = format.getChannels();
+        int frames = (int)(buffer.capacity() / format.getFrameSize());
+        int pad = SoftFloatSampleCache.PADDING;
+        float[][] data = new float[channels][frames + 2 * pad];
+        AudioFloatInputStream stream = openDecodingStream();
+        float[] buff = new float[1024 * channels];
+        int pos = 0;
+        try {
+            while (pos < frames) {
+                int len = Math.min(buff.length, (frames - pos) * channels);
+                int ret = stream.read(buff, 0, len);
+                if (ret <= 0)
+                    break;
+                int n = ret / channels;
+                for (int c = 0; c < channels; c++) {
+                    float[] o = data[c];
+                    for (int i = 0, ix = c; i < n; i++, ix += channels)
+                        o[pad + pos + i] = buff[ix];
+                }
+                pos += n;
+            }
+        } catch (IOException e) {
+            //e.printStackTrace();
+            return null;
+        }
+        if (pos < frames) {
+            for (int c = 0; c < channels; c++)
+                data[c] = Arrays.copyOf(data[c], pos + 2 * pad);
+        }
+        return new SoftFloatSampleCache.Entry(stream.getFormat(), data, pos);
+    }
+
+    /*
+     * The decoded sample, or mipmap level, as one array per channel with
+     * SoftFloatSampleCache.PADDING zero frames on both sides. Returns null
+     * if the sample is only available as a stream.
+     */
+    public float[][] getResidentChannels(int level) {
+        if (level != 0) {
+            float[][][] levels = mipmaps;
+            if (levels == null || level < 1 || level > levels.length)
+                return null;
+            return levels[level - 1];
         }
+        SoftFloatSampleCache.Entry entry = getCacheEntry();
+        return entry == null ? null : entry.data;
+    }
+
+    private AudioFloatInputStream openDecodingStream() {
         if (buffer8 != null) {
             if (format.getEncoding().equals(Encoding.PCM_SIGNED)
                     || format.getEncoding().equals(Encoding.PCM_UNSIGNED)) {
@@ -235,6 +591,8 @@ public final class ModelByteBufferWavetable implements ModelWavetable {
                 return AudioFloatInputStream.getInputStream(ais);
             }
         }
+        if (buffer.array() == null)
+            return AudioFloatInputStream.getInputStream(format, buffer);
         return AudioFloatInputStream.getInputStream(format, buffer.array(),
                 (int)buffer.arrayOffset(), (int)buffer.capacity());
     }
@@ -0,0 +1,519 @@
+/*
+ * Copyright (c) 2007, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package gervill.com.sun.media.sound;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import gervill.javax.sound.sampled.AudioFormat;
+import gervill.javax.sound.sampled.AudioFormat.Encoding;
+
+/**
+ * Losslessly compressed 8 or 16 bit PCM sample data. The data is split
+ * into blocks of BLOCK_FRAMES frames that are decoded independently, each
+ * channel of a block is coded with a fixed polynomial predictor of order
+ * 0 to 4 and the residuals are Rice coded in partitions of PARTITION
+ * samples. Streams decode one block at a time while they are read.
+ */
+public final class ModelCompressedSamples {
+
+    private static final class BitWriter {
+
+        private byte[] buf = new byte[4096];
+        private int len = 0;
+        private long acc = 0;
+        private int nacc = 0;
+
+        void write(int value, int n) {
+            acc = (acc << n) | (value & (0xFFFFFFFFL >>> (32 - n)));
+            nacc += n;
+            while (nacc >= 8) {
+                nacc -= 8;
+                if (len == buf.length)
+                    buf = Arrays.copyOf(buf, len * 2);
+                buf[len++] = (byte)(acc >>> nacc);
+            }
+        }
+
+        void align() {
+            if (nacc > 0)
+                write(0, 8 - nacc);
+        }
+
+        int length() {
+            return len;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, len);
+        }
+    }
+
+    static final int BLOCK_FRAMES = 4096;
+    private static final int PARTITION = 256;
+    private static final int MAX_ORDER = 4;
+    private static final int VERBATIM = 7;
+    // Quotients this large are followed by the value in 32 bits
+    private static final int ESCAPE = 24;
+
+    private final byte[] data;
+    // Byte offset of each block in data, and the end of the last one
+    private final int[] blocks;
+    private final int length;
+    private final int channels;
+    private final int bits;
+    private final boolean signed;
+    private final boolean bigendian;
+
+    private ModelCompressedSamples(byte[] data, int[] blocks, int length,
+            AudioFormat format) {
+        this.data = data;
+        this.blocks = blocks;
+        this.length = length;
+        this.channels = format.getChannels();
+        this.bits = format.getSampleSizeInBits();
+        this.signed = format.getEncoding().equals(Encoding.PCM_SIGNED);
+        this.bigendian = format.isBigEndian();
+    }
+
+    /**
+     * Returns true if sample data of the format can be compressed.
+     */
+    public static boolean isSupported(AudioFormat format) {
+        int bits = format.getSampleSizeInBits();
+        if (bits != 8 && bits != 16)
+            return false;
+        if (format.getChannels() < 1
+                || format.getFrameSize() != format.getChannels() * bits / 8)
+            return false;
+        if (format.getEncoding().equals(Encoding.PCM_SIGNED))
+            return true;
+        return bits == 8 && format.getEncoding().equals(Encoding.PCM_UNSIGNED);
+    }
+
+    /**
+     * Compresses len bytes of sample data in the format, or returns null
+     * if the format is not supported.
+     */
+    public static ModelCompressedSamples compress(byte[] buffer, int offset,
+            int len, AudioFormat format) {
+        if (!isSupported(format))
+            return null;
+        int channels = format.getChannels();
+        int bytes = format.getSampleSizeInBits() / 8;
+        boolean signed = format.getEncoding().equals(Encoding.PCM_SIGNED);
+        boolean bigendian = format.isBigEndian();
+        int length = len / bytes;
+        int blockvalues = BLOCK_FRAMES * channels;
+        int count = (length + blockvalues - 1) / blockvalues;
+        int[] blocks = new int[count + 1];
+        int[] values = new int[BLOCK_FRAMES];
+        int[] residuals = new int[BLOCK_FRAMES];
+        BitWriter out = new BitWriter();
+        for (int b = 0; b < count; b++) {
+            blocks[b] = out.length();
+            int start = b * blockvalues;
+            int n = Math.min(blockvalues, length - start);
+            for (int c = 0; c < channels; c++) {
+                int m = 0;
+                for (int i = start + c; i < start + n; i += channels) {
+                    int ix = offset + i * bytes;
+                    int v;
+                    if (bytes == 1)
+                        v = signed ? buffer[ix] : (buffer[ix] & 0xFF);
+                    else if (bigendian)
+                        v = (short)((buffer[ix] << 8) | (buffer[ix + 1] & 0xFF));
+                    else
+                        v = (short)((buffer[ix] & 0xFF) | (buffer[ix + 1] << 8));
+                    values[m++] = v;
+                }
+                encodeChannel(out, values, residuals, m, bytes * 8);
+            }
+            out.align();
+        }
+        blocks[count] = out.length();
+        return new ModelCompressedSamples(out.toByteArray(), blocks, length,
+                format);
+    }
+
+    private static int predict(int[] x, int i, int order) {
+        switch (order) {
+        case 0:
+            return 0;
+        case 1:
+            return x[i - 1];
+        case 2:
+            return 2 * x[i - 1] - x[i - 2];
+        case 3:
+            return 3 * (x[i - 1] - x[i - 2]) + x[i - 3];
+        default:
+            return 4 * (x[i - 1] + x[i - 3]) - 6 * x[i - 2] - x[i - 4];
+        }
+    }
+
+    private static void encodeChannel(BitWriter out, int[] x, int[] r, int n,
+            int bits) {
+        // Pick the predictor with the smallest sum of residuals
+        int order = 0;
+        long best = Long.MAX_VALUE;
+        for (int o = 0; o <= MAX_ORDER && o <= n; o++) {
+            long sum = 0;
+            for (int i = MAX_ORDER; i < n; i++)
+                sum += Math.abs(x[i] - predict(x, i, o));
+            if (sum < best) {
+                best = sum;
+                order = o;
+            }
+        }
+        long cost = 3 + (long)order * bits;
+        for (int i = order; i < n; i++) {
+            int e = x[i] - predict(x, i, order);
+            r[i] = (e << 1) ^ (e >> 31);
+        }
+        for (int p = order; p < n; p += PARTITION)
+            cost += 5 + riceCost(r, p, Math.min(n, p + PARTITION),
+                    riceParameter(r, p, Math.min(n, p + PARTITION)));
+        if (cost >= 3 + (long)n * bits) {
+            out.write(VERBATIM, 3);
+            for (int i = 0; i < n; i++)
+                out.write(x[i], bits);
+            return;
+        }
+        out.write(order, 3);
+        for (int i = 0; i < order; i++)
+            out.write(x[i], bits);
+        for (int p = order; p < n; p += PARTITION) {
+            int end = Math.min(n, p + PARTITION);
+            int k = riceParameter(r, p, end);
+            out.write(k, 5);
+            for (int i = p; i < end; i++) {
+                int u = r[i];
+                int q = u >>> k;
+                if (q < ESCAPE) {
+                    out.write(1, q + 1);
+                    if (k != 0)
+                        out.write(u, k);
+                } else {
+                    out.write(0, ESCAPE);
+                    out.write(u, 32);
+                }
+            }
+        }
+    }
+
+    private static int riceParameter(int[] r, int start, int end) {
+        long sum = 0;
+        for (int i = start; i < end; i++)
+            sum += r[i] & 0xFFFFFFFFL;
+        long n = end - start;
+        int k = 0;
+        while (k < 30 && (n << (k + 1)) < sum)
+            k++;
+        return k;
+    }
+
+    private static long riceCost(int[] r, int start, int end, int k) {
+        long cost = 0;
+        for (int i = start; i < end; i++) {
+            int q = r[i] >>> k;
+            cost += q < ESCAPE ? q + 1 + k : ESCAPE + 32;
+        }
+        return cost;
+    }
+
+    /**
+     * Decodes a block into out as interleaved values and returns the
+     * number of values decoded.
+     */
+    int decodeBlock(int block, int[] out) {
+        int blockvalues = BLOCK_FRAMES * channels;
+        int n = Math.min(blockvalues, length - block * blockvalues);
+        int end = blocks[block + 1];
+        int pos = blocks[block];
+        long acc = 0;
+        int nacc = 0;
+        int shift = 32 - bits;
+        for (int c = 0; c < channels; c++) {
+            int m = (n - c + channels - 1) / channels;
+            int[] x = out;
+            int o = c;
+            // Fill the bit accumulator from the left
+            while (nacc <= 56) {
+                if (pos < end)
+                    acc |= (long)(data[pos++] & 0xFF) << (56 - nacc);
+                nacc += 8;
+            }
+            int order = (int)(acc >>> 61);
+            acc <<= 3;
+            nacc -= 3;
+            int raw = order == VERBATIM ? m : order;
+            for (int i = 0; i < raw; i++) {
+                while (nacc <= 56) {
+                    if (pos < end)
+                        acc |= (long)(data[pos++] & 0xFF) << (56 - nacc);
+                    nacc += 8;
+                }
+                int v = (int)(acc >>> (64 - bits));
+                acc <<= bits;
+                nacc -= bits;
+                if (signed)
+                    v = (v << shift) >> shift;
+                x[o + i * channels] = v;
+            }
+            if (order == VERBATIM)
+                continue;
+            int x1 = 0, x2 = 0, x3 = 0, x4 = 0;
+            for (int i = 0; i < order; i++) {
+                x4 = x3;
+                x3 = x2;
+                x2 = x1;
+                x1 = x[o + i * channels];
+            }
+            int k = 0;
+            int pend = order;
+            for (int i = order; i < m; i++) {
+                while (nacc <= 56) {
+                    if (pos < end)
+                        acc |= (long)(data[pos++] & 0xFF) << (56 - nacc);
+                    nacc += 8;
+                }
+                if (i == pend) {
+                    // Each partition starts with its Rice parameter
+                    pend += PARTITION;
+                    k = (int)(acc >>> 59);
+                    acc <<= 5;
+                    nacc -= 5;
+                    while (nacc <= 56) {
+                        if (pos < end)
+                            acc |= (long)(data[pos++] & 0xFF) << (56 - nacc);
+                        nacc += 8;
+                    }
+                }
+                int u;
+                int q = Long.numberOfLeadingZeros(acc);
+                if (q < ESCAPE) {
+                    acc <<= q + 1;
+                    nacc -= q + 1;
+                    if (k != 0) {
+                        if (nacc < k) {
+                            while (nacc <= 56) {
+                                if (pos < end)
+                                    acc |= (long)(data[pos++] & 0xFF)
+                                            << (56 - nacc);
+                                nacc += 8;
+                            }
+                        }
+                        u = (q << k) | (int)(acc >>> (64 - k));
+                        acc <<= k;
+                        nacc -= k;
+                    } else {
+                        u = q;
+                    }
+                } else {
+                    acc <<= ESCAPE;
+                    nacc -= ESCAPE;
+                    while (nacc <= 56) {
+                        if (pos < end)
+                            acc |= (long)(data[pos++] & 0xFF) << (56 - nacc);
+                        nacc += 8;
+                    }
+                    u = (int)(acc >>> 32);
+                    acc <<= 32;
+                    nacc -= 32;
+                }
+                int e = (u >>> 1) ^ -(u & 1);
+                int v;
+                switch (order) {
+                case 0:
+                    v = e;
+                    break;
+                case 1:
+                    v = e + x1;
+                    break;
+                case 2:
+                    v = e + 2 * x1 - x2;
+                    break;
+                case 3:
+                    v = e + 3 * (x1 - x2) + x3;
+                    break;
+                default:
+                    v = e + 4 * (x1 + x3) - 6 * x2 - x4;
+                    break;
+                }
+                x4 = x3;
+                x3 = x2;
+                x2 = x1;
+                x1 = v;
+                x[o + i * channels] = v;
+            }
+        }
+        return n;
+    }
+
+    public boolean isCompatible(AudioFormat format) {
+        return isSupported(format)
+                && format.getChannels() == channels
+                && format.getSampleSizeInBits() == bits
+                && format.getEncoding().equals(signed ? Encoding.PCM_SIGNED
+                        : Encoding.PCM_UNSIGNED)
+                && (bits == 8 || format.isBigEndian() == bigendian);
+    }
+
+    /**
+     * Returns the size in bytes of the sample data before compression.
+     */
+    public long getUncompressedSize() {
+        return (long)length * (bits / 8);
+    }
+
+    /**
+     * Returns the size in bytes of the compressed sample data.
+     */
+    public long getCompressedSize() {
+        return data.length + blocks.length * 4L;
+    }
+
+    /**
+     * Opens a stream over len bytes starting at byte offset of the
+     * uncompressed data, or returns null if the range doesn't fall on
+     * sample boundaries.
+     */
+    public AudioFloatInputStream getInputStream(AudioFormat format,
+            long offset, long len) {
+        int bytes = bits / 8;
+        if (offset < 0 || len < 0 || offset + len > getUncompressedSize()
+                || offset % bytes != 0 || len % bytes != 0)
+            return null;
+        return new CompressedAudioFloatInputStream(format,
+                (int)(offset / bytes), (int)(len / bytes));
+    }
+
+    private final class CompressedAudioFloatInputStream
+            extends AudioFloatInputStream {
+
+        private final AudioFormat format;
+        private final int start;
+        private final int len;
+        private final int[] values;
+        private final float scale;
+        private final int bias;
+        private int pos = 0;
+        private int markpos = 0;
+        private int block = -1;
+        private int blocklen = 0;
+
+        CompressedAudioFloatInputStream(AudioFormat format, int start,
+                int len) {
+            this.format = format;
+            this.start = start;
+            this.len = len;
+            values = new int[BLOCK_FRAMES * channels];
+            // The same scaling as AudioFloatConverter
+            scale = bits == 8 ? (1.0f / 127.0f) : (1.0f / 32767.0f);
+            bias = signed ? 0 : 127;
+        }
+
+        @Override
+        public AudioFormat getFormat() {
+            return format;
+        }
+
+        @Override
+        public long getFrameLength() {
+            return len;
+        }
+
+        @Override
+        public int read(float[] b, int off, int len) throws IOException {
+            if (b == null)
+                throw new NullPointerException();
+            if (off < 0 || len < 0 || len > b.length - off)
+                throw new IndexOutOfBoundsException();
+            if (pos >= this.len)
+                return -1;
+            if (len == 0)
+                return 0;
+            if (pos + len > this.len)
+                len = this.len - pos;
+            int blockvalues = values.length;
+            int ret = len;
+            while (len > 0) {
+                int ix = start + pos;
+                int blk = ix / blockvalues;
+                if (blk != block) {
+                    blocklen = decodeBlock(blk, values);
+                    block = blk;
+                }
+                ix -= blk * blockvalues;
+                int n = Math.min(len, blocklen - ix);
+                int[] values = this.values;
+                float scale = this.scale;
+                int bias = this.bias;
+                for (int i = 0; i < n; i++)
+                    b[off + i] = (values[ix + i] - bias) * scale;
+                pos += n;
+                off += n;
+                len -= n;
+            }
+            return ret;
+        }
+
+        @Override
+        public long skip(long len) throws IOException {
+            if (pos >= this.len)
+                return -1;
+            if (len <= 0)
+                return 0;
+            if (pos + len > this.len)
+                len = this.len - pos;
+            pos += len;
+            return len;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return len - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+
+        @Override
+        public void mark(int readlimit) {
+            markpos = pos;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            pos = markpos;
+        }
+    }
+}
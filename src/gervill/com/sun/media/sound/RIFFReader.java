@@ -25,12 +25,21 @@
 package gervill.com.sun.media.sound;
 
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 
 /**
  * Resource Interchange File Format (RIFF) stream decoder.
+ * <p>
+ * The decoder can also read directly from a heap or mapped ByteBuffer,
+ * in which case fields are read with absolute gets and chunk data can be
+ * accessed without copying using {@link #getByteBuffer()}.
  *
  * @author Karl Helgason
  */
@@ -44,16 +53,35 @@ public final class RIFFReader extends InputStream {
     private InputStream stream;
     private long avail = Integer.MAX_VALUE;
     private RIFFReader lastiterator = null;
+    // Little endian view of the data when reading from a ByteBuffer
+    private final ByteBuffer buffer;
+    // Absolute end of chunk when reading from a ByteBuffer
+    private long end;
+
+    public RIFFReader(ByteBuffer buffer) throws IOException {
+        this(null, buffer.slice().order(ByteOrder.LITTLE_ENDIAN));
+    }
 
     public RIFFReader(InputStream stream) throws IOException {
+        this(stream, null);
+    }
+
+    private RIFFReader(InputStream stream, ByteBuffer buffer)
+            throws IOException {
 
         if (stream instanceof RIFFReader) {
-            root = ((RIFFReader) stream).root;
+            RIFFReader parent = (RIFFReader) stream;
+            root = parent.root;
+            buffer = parent.buffer;
+            end = parent.end;
         } else {
             root = this;
+            if (buffer != null)
+                end = buffer.limit();
         }
 
         this.stream = stream;
+        this.buffer = buffer;
 
         // Check for RIFF null paddings,
         int b;
@@ -65,6 +93,8 @@ public final class RIFFReader extends InputStream {
                 // always contain a string value
                 riff_type = null;
                 avail = 0;
+                if (buffer != null)
+                    end = root.filepointer;
                 return;
             }
             if (b != 0)
@@ -77,6 +107,8 @@ public final class RIFFReader extends InputStream {
         this.fourcc = new String(fourcc, StandardCharsets.US_ASCII);
         ckSize = readUnsignedInt();
         avail = ckSize;
+        if (buffer != null)
+            end = Math.min(end, root.filepointer + ckSize);
 
         if (getFormat().equals("RIFF") || getFormat().equals("LIST")) {
             if (avail > Integer.MAX_VALUE) {
@@ -95,13 +127,13 @@ public final class RIFFReader extends InputStream {
     public boolean hasNextChunk() throws IOException {
         if (lastiterator != null)
             lastiterator.finish();
-        return avail != 0;
+        return available() != 0;
     }
 
     public RIFFReader nextChunk() throws IOException {
         if (lastiterator != null)
             lastiterator.finish();
-        if (avail == 0)
+        if (available() == 0)
             return null;
         lastiterator = new RIFFReader(this);
         return lastiterator;
@@ -119,8 +151,58 @@ public final class RIFFReader extends InputStream {
         return ckSize;
     }
 
+    /**
+     * Maps a file read-only, or returns null if it is too big to map
+     * into a single ByteBuffer.
+     */
+    static ByteBuffer mapFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                return null;
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the unread part of the chunk as a little endian slice of the
+     * backing ByteBuffer, or null if the reader is reading from a stream.
+     * Reading the slice does not move the reader.
+     */
+    public ByteBuffer getByteBuffer() {
+        if (buffer == null)
+            return null;
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit((int)end);
+        slice.position((int)root.filepointer);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Bytes left in chunk when reading from a ByteBuffer
+    private long remaining() {
+        return Math.max(0, end - root.filepointer);
+    }
+
+    // Position of the next n bytes in the ByteBuffer
+    private int advance(int n) throws EOFException {
+        if (remaining() < n)
+            throw new EOFException();
+        int pos = (int)root.filepointer;
+        root.filepointer += n;
+        return pos;
+    }
+
     @Override
     public int read() throws IOException {
+        if (buffer != null) {
+            if (remaining() == 0)
+                return -1;
+            return buffer.get(advance(1)) & 0xFF;
+        }
         if (avail == 0) {
             return -1;
         }
@@ -136,6 +218,17 @@ public final class RIFFReader extends InputStream {
 
     @Override
     public int read(byte[] b, int offset, int len) throws IOException {
+        if (buffer != null) {
+            long left = remaining();
+            if (left == 0)
+                return -1;
+            if (len > left)
+                len = (int)left;
+            ByteBuffer view = buffer.duplicate();
+            view.position(advance(len));
+            view.get(b, offset, len);
+            return len;
+        }
         if (avail == 0) {
             return -1;
         }
@@ -177,6 +270,13 @@ public final class RIFFReader extends InputStream {
 
     @Override
     public long skip(final long n) throws IOException {
+        if (buffer != null) {
+            if (n <= 0)
+                return 0;
+            long skipped = Math.min(n, remaining());
+            root.filepointer += skipped;
+            return skipped;
+        }
         if (n <= 0 || avail == 0) {
             return 0;
         }
@@ -204,10 +304,16 @@ public final class RIFFReader extends InputStream {
 
     @Override
     public int available() {
+        if (buffer != null)
+            return (int)remaining();
         return (int)avail;
     }
 
     public void finish() throws IOException {
+        if (buffer != null) {
+            skip(remaining());
+            return;
+        }
         if (avail != 0) {
             skip(avail);
         }
@@ -240,6 +346,8 @@ public final class RIFFReader extends InputStream {
 
     // Read 16 bit signed integer from stream
     public short readShort() throws IOException {
+        if (buffer != null)
+            return buffer.getShort(advance(2));
         int ch1 = read();
         int ch2 = read();
         if (ch1 < 0)
@@ -251,6 +359,8 @@ public final class RIFFReader extends InputStream {
 
     // Read 32 bit signed integer from stream
     public int readInt() throws IOException {
+        if (buffer != null)
+            return buffer.getInt(advance(4));
         int ch1 = read();
         int ch2 = read();
         int ch3 = read();
@@ -268,6 +378,8 @@ public final class RIFFReader extends InputStream {
 
     // Read 64 bit signed integer from stream
     public long readLong() throws IOException {
+        if (buffer != null)
+            return buffer.getLong(advance(8));
         long ch1 = read();
         long ch2 = read();
         long ch3 = read();
@@ -306,6 +418,8 @@ public final class RIFFReader extends InputStream {
 
     // Read 16 bit unsigned integer from stream
     public int readUnsignedShort() throws IOException {
+        if (buffer != null)
+            return buffer.getShort(advance(2)) & 0xFFFF;
         int ch1 = read();
         int ch2 = read();
         if (ch1 < 0)
@@ -317,6 +431,8 @@ public final class RIFFReader extends InputStream {
 
     // Read 32 bit unsigned integer from stream
     public long readUnsignedInt() throws IOException {
+        if (buffer != null)
+            return buffer.getInt(advance(4)) & 0xFFFFFFFFL;
         long ch1 = read();
         long ch2 = read();
         long ch3 = read();
@@ -335,7 +451,7 @@ public final class RIFFReader extends InputStream {
     @Override
     public void close() throws IOException {
         finish();
-        if (this == root)
+        if (this == root && stream != null)
             stream.close();
         stream = null;
     }
@@ -38,6 +38,18 @@ import gervill.javax.sound.midi.Patch;
  */
 public final class SF2Instrument extends ModelInstrument {
 
+    // Lowers the filter cutoff for velocities below 64
+    static final ModelTransform VELOCITY_FILTER_TRANSFORM
+            = new ModelTransform() {
+        @Override
+        public double transform(double value) {
+            if (value < 0.5)
+                return 1 - value * 2;
+            else
+                return 0;
+        }
+    };
+
     String name = "";
     int preset = 0;
     int bank = 0;
@@ -47,6 +59,9 @@ public final class SF2Instrument extends ModelInstrument {
     SF2GlobalRegion globalregion = null;
     List<SF2InstrumentRegion> regions
             = new ArrayList<SF2InstrumentRegion>();
+    // Preset header of a lazily read soundbank, zones are read on first use
+    int hydra_index = -1;
+    volatile boolean loaded = true;
 
     public SF2Instrument() {
         super(null, null, null, null);
@@ -113,13 +128,20 @@ public final class SF2Instrument extends ModelInstrument {
     }
 
     public List<SF2InstrumentRegion> getRegions() {
+        load();
         return regions;
     }
 
     public SF2GlobalRegion getGlobalRegion() {
+        load();
         return globalregion;
     }
 
+    private void load() {
+        if (!loaded)
+            ((SF2Soundbank)getSoundbank()).loadPreset(this);
+    }
+
     public void setGlobalZone(SF2GlobalRegion zone) {
         globalregion = zone;
     }
@@ -135,6 +157,7 @@ public final class SF2Instrument extends ModelInstrument {
 
     @Override
     public ModelPerformer[] getPerformers() {
+        load();
         int performercount = 0;
         for (SF2InstrumentRegion presetzone : regions)
             performercount += presetzone.getLayer().getRegions().size();
@@ -612,15 +635,7 @@ public final class SF2Instrument extends ModelInstrument {
                 performer.getConnectionBlocks().add(
                     new ModelConnectionBlock(
                         new ModelSource(ModelSource.SOURCE_NOTEON_VELOCITY,
-                            new ModelTransform() {
-                                @Override
-                                public double transform(double value) {
-                                    if (value < 0.5)
-                                        return 1 - value * 2;
-                                    else
-                                        return 0;
-                                }
-                            }),
+                            VELOCITY_FILTER_TRANSFORM),
                         -2400,
                         new ModelDestination(
                             ModelDestination.DESTINATION_FILTER_FREQ)));
@@ -30,6 +30,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -85,6 +86,21 @@ public final class SF2Soundbank implements Soundbank {
     private final List<SF2Instrument> instruments = new ArrayList<SF2Instrument>();
     private final List<SF2Layer> layers = new ArrayList<SF2Layer>();
     private final List<SF2Sample> samples = new ArrayList<SF2Sample>();
+    // Only read preset headers when opened, see readPdtaIndex
+    private boolean lazy = false;
+    // Hydra chunks of a lazily read soundbank, cleared once all of it
+    // has been read
+    private ByteBuffer hydra_phdr = null;
+    private ByteBuffer hydra_pbag = null;
+    private ByteBuffer hydra_pmod = null;
+    private ByteBuffer hydra_pgen = null;
+    private ByteBuffer hydra_inst = null;
+    private ByteBuffer hydra_ibag = null;
+    private ByteBuffer hydra_imod = null;
+    private ByteBuffer hydra_igen = null;
+    private ByteBuffer hydra_shdr = null;
+    private SF2Layer[] hydra_layers = null;
+    private SF2Sample[] hydra_samples = null;
 
     public SF2Soundbank() {
     }
@@ -93,29 +109,57 @@ public final class SF2Soundbank implements Soundbank {
 
         InputStream is = url.openStream();
         try {
-            readSoundbank(is);
+            readSoundbank(new RIFFReader(is));
         } finally {
             is.close();
         }
     }
 
     public SF2Soundbank(File file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Opens a soundbank file. If lazy is true only the preset headers are
+     * read, the zones of a preset are read when it is first used.
+     */
+    public SF2Soundbank(File file, boolean lazy) throws IOException {
+        this.lazy = lazy;
         largeFormat = true;
         sampleFile = file;
+        // Parse the chunks straight from a mapping of the file
+        ByteBuffer buffer = RIFFReader.mapFile(file);
+        if (buffer != null) {
+            readSoundbank(new RIFFReader(buffer));
+            return;
+        }
         InputStream is = new FileInputStream(file);
         try {
-            readSoundbank(is);
+            readSoundbank(new RIFFReader(is));
         } finally {
             is.close();
         }
     }
 
     public SF2Soundbank(InputStream inputstream) throws IOException {
-        readSoundbank(inputstream);
+        readSoundbank(new RIFFReader(inputstream));
     }
 
-    private void readSoundbank(InputStream inputstream) throws IOException {
-        RIFFReader riff = new RIFFReader(inputstream);
+    /**
+     * Reads a soundbank from a heap or mapped ByteBuffer. Sample data is
+     * shared with the array of a heap buffer and copied from other
+     * buffers.
+     */
+    public SF2Soundbank(ByteBuffer buffer) throws IOException {
+        this(buffer, false);
+    }
+
+    public SF2Soundbank(ByteBuffer buffer, boolean lazy) throws IOException {
+        this.lazy = lazy;
+        readSoundbank(new RIFFReader(buffer));
+    }
+
+    private void readSoundbank(RIFFReader riff) throws IOException {
         if (!riff.getFormat().equals("RIFF")) {
             throw new RIFFInvalidFormatException(
                     "Input stream is not a valid RIFF stream!");
@@ -131,8 +175,12 @@ public final class SF2Soundbank implements Soundbank {
                     readInfoChunk(chunk);
                 if (chunk.getType().equals("sdta"))
                     readSdtaChunk(chunk);
-                if (chunk.getType().equals("pdta"))
-                    readPdtaChunk(chunk);
+                if (chunk.getType().equals("pdta")) {
+                    if (lazy && chunk.getByteBuffer() != null)
+                        readPdtaIndex(chunk);
+                    else
+                        readPdtaChunk(chunk);
+                }
             }
         }
     }
@@ -175,22 +223,7 @@ public final class SF2Soundbank implements Soundbank {
             RIFFReader chunk = riff.nextChunk();
             if (chunk.getFormat().equals("smpl")) {
                 if (!largeFormat) {
-                    byte[] sampleData = new byte[chunk.available()];
-
-                    int read = 0;
-                    int avail = chunk.available();
-                    while (read != avail) {
-                        if (avail - read > 65536) {
-                            chunk.readFully(sampleData, read, 65536);
-                            read += 65536;
-                        } else {
-                            chunk.readFully(sampleData, read, avail - read);
-                            read = avail;
-                        }
-
-                    }
-                    this.sampleData = new ModelByteBuffer(sampleData);
-                    //chunk.read(sampleData);
+                    this.sampleData = readSampleData(chunk);
                 } else {
                     this.sampleData = new ModelByteBuffer(sampleFile,
                             chunk.getFilePointer(), chunk.available());
@@ -198,22 +231,7 @@ public final class SF2Soundbank implements Soundbank {
             }
             if (chunk.getFormat().equals("sm24")) {
                 if (!largeFormat) {
-                    byte[] sampleData24 = new byte[chunk.available()];
-                    //chunk.read(sampleData24);
-
-                    int read = 0;
-                    int avail = chunk.available();
-                    while (read != avail) {
-                        if (avail - read > 65536) {
-                            chunk.readFully(sampleData24, read, 65536);
-                            read += 65536;
-                        } else {
-                            chunk.readFully(sampleData24, read, avail - read);
-                            read = avail;
-                        }
-
-                    }
-                    this.sampleData24 = new ModelByteBuffer(sampleData24);
+                    this.sampleData24 = readSampleData(chunk);
                 } else {
                     this.sampleData24 = new ModelByteBuffer(sampleFile,
                             chunk.getFilePointer(), chunk.available());
@@ -223,6 +241,33 @@ public final class SF2Soundbank implements Soundbank {
         }
     }
 
+    // Reads sample data, without copying if it is in a heap ByteBuffer
+    private static ModelByteBuffer readSampleData(RIFFReader chunk)
+            throws IOException {
+        ByteBuffer slice = chunk.getByteBuffer();
+        if (slice != null && slice.hasArray()) {
+            return new ModelByteBuffer(slice.array(),
+                    slice.arrayOffset(), slice.remaining());
+        }
+        byte[] data = new byte[chunk.available()];
+        if (slice != null) {
+            slice.get(data);
+            return new ModelByteBuffer(data);
+        }
+        int read = 0;
+        int avail = chunk.available();
+        while (read != avail) {
+            if (avail - read > 65536) {
+                chunk.readFully(data, read, 65536);
+                read += 65536;
+            } else {
+                chunk.readFully(data, read, avail - read);
+                read = avail;
+            }
+        }
+        return new ModelByteBuffer(data);
+    }
+
     private void readPdtaChunk(RIFFReader riff) throws IOException {
 
         List<SF2Instrument> presets = new ArrayList<SF2Instrument>();
@@ -462,64 +507,291 @@ public final class SF2Soundbank implements Soundbank {
             }
         }
 
-        Iterator<SF2Layer> liter = this.layers.iterator();
-        while (liter.hasNext()) {
-            SF2Layer layer = liter.next();
-            Iterator<SF2LayerRegion> siter = layer.regions.iterator();
-            SF2Region globalsplit = null;
-            while (siter.hasNext()) {
-                SF2LayerRegion split = siter.next();
-                if (split.generators.get(SF2LayerRegion.GENERATOR_SAMPLEID) != null) {
-                    int sampleid = split.generators.get(
-                            SF2LayerRegion.GENERATOR_SAMPLEID);
-                    split.generators.remove(SF2LayerRegion.GENERATOR_SAMPLEID);
-                    if (sampleid < 0 || sampleid >= samples.size()) {
-                        throw new RIFFInvalidDataException();
-                    }
-                    split.sample = samples.get(sampleid);
-                } else {
-                    globalsplit = split;
-                }
+        for (SF2Layer layer : this.layers)
+            resolveLayer(layer);
+        for (SF2Instrument instrument : this.instruments)
+            resolvePreset(instrument);
+    }
+
+    // Link layer zones to samples and move the global zone out of the list
+    private void resolveLayer(SF2Layer layer) throws IOException {
+        Iterator<SF2LayerRegion> siter = layer.regions.iterator();
+        SF2Region globalsplit = null;
+        while (siter.hasNext()) {
+            SF2LayerRegion split = siter.next();
+            if (split.generators.get(SF2LayerRegion.GENERATOR_SAMPLEID) != null) {
+                int sampleid = split.generators.get(
+                        SF2LayerRegion.GENERATOR_SAMPLEID);
+                split.generators.remove(SF2LayerRegion.GENERATOR_SAMPLEID);
+                split.sample = getSample(sampleid);
+            } else {
+                globalsplit = split;
             }
-            if (globalsplit != null) {
-                layer.getRegions().remove(globalsplit);
-                SF2GlobalRegion gsplit = new SF2GlobalRegion();
-                gsplit.generators = globalsplit.generators;
-                gsplit.modulators = globalsplit.modulators;
-                layer.setGlobalZone(gsplit);
+        }
+        if (globalsplit != null) {
+            layer.regions.remove(globalsplit);
+            SF2GlobalRegion gsplit = new SF2GlobalRegion();
+            gsplit.generators = globalsplit.generators;
+            gsplit.modulators = globalsplit.modulators;
+            layer.setGlobalZone(gsplit);
+        }
+    }
+
+    // Link preset zones to layers and move the global zone out of the list
+    private void resolvePreset(SF2Instrument instrument) throws IOException {
+        Iterator<SF2InstrumentRegion> siter = instrument.regions.iterator();
+        SF2Region globalsplit = null;
+        while (siter.hasNext()) {
+            SF2InstrumentRegion split = siter.next();
+            if (split.generators.get(SF2LayerRegion.GENERATOR_INSTRUMENT) != null) {
+                int instrumentid = split.generators.get(
+                        SF2InstrumentRegion.GENERATOR_INSTRUMENT);
+                split.generators.remove(SF2LayerRegion.GENERATOR_INSTRUMENT);
+                split.layer = getLayer(instrumentid);
+            } else {
+                globalsplit = split;
             }
         }
 
+        if (globalsplit != null) {
+            instrument.regions.remove(globalsplit);
+            SF2GlobalRegion gsplit = new SF2GlobalRegion();
+            gsplit.generators = globalsplit.generators;
+            gsplit.modulators = globalsplit.modulators;
+            instrument.setGlobalZone(gsplit);
+        }
+    }
 
-        Iterator<SF2Instrument> iiter = this.instruments.iterator();
-        while (iiter.hasNext()) {
-            SF2Instrument instrument = iiter.next();
-            Iterator<SF2InstrumentRegion> siter = instrument.regions.iterator();
-            SF2Region globalsplit = null;
-            while (siter.hasNext()) {
-                SF2InstrumentRegion split = siter.next();
-                if (split.generators.get(SF2LayerRegion.GENERATOR_INSTRUMENT) != null) {
-                    int instrumentid = split.generators.get(
-                            SF2InstrumentRegion.GENERATOR_INSTRUMENT);
-                    split.generators.remove(SF2LayerRegion.GENERATOR_INSTRUMENT);
-                    if (instrumentid < 0 || instrumentid >= layers.size()) {
-                        throw new RIFFInvalidDataException();
-                    }
-                    split.layer = layers.get(instrumentid);
-                } else {
-                    globalsplit = split;
-                }
+    /*
+     * Reads the preset headers and keeps the other hydra chunks, presets
+     * are read by loadPreset when first used. Layers and samples are read
+     * when a preset refers to them.
+     */
+    private void readPdtaIndex(RIFFReader riff) throws IOException {
+        while (riff.hasNextChunk()) {
+            RIFFReader chunk = riff.nextChunk();
+            String format = chunk.getFormat();
+            if (format.equals("phdr"))
+                hydra_phdr = chunk.getByteBuffer();
+            else if (format.equals("pbag"))
+                hydra_pbag = chunk.getByteBuffer();
+            else if (format.equals("pmod"))
+                hydra_pmod = chunk.getByteBuffer();
+            else if (format.equals("pgen"))
+                hydra_pgen = chunk.getByteBuffer();
+            else if (format.equals("inst"))
+                hydra_inst = chunk.getByteBuffer();
+            else if (format.equals("ibag"))
+                hydra_ibag = chunk.getByteBuffer();
+            else if (format.equals("imod"))
+                hydra_imod = chunk.getByteBuffer();
+            else if (format.equals("igen"))
+                hydra_igen = chunk.getByteBuffer();
+            else if (format.equals("shdr"))
+                hydra_shdr = chunk.getByteBuffer();
+        }
+        if (hydra_phdr == null || hydra_pbag == null || hydra_pmod == null
+                || hydra_pgen == null || hydra_inst == null
+                || hydra_ibag == null || hydra_imod == null
+                || hydra_igen == null || hydra_shdr == null)
+            throw new RIFFInvalidDataException();
+        if (hydra_phdr.capacity() % 38 != 0 || hydra_pbag.capacity() % 4 != 0
+                || hydra_inst.capacity() % 22 != 0
+                || hydra_ibag.capacity() % 4 != 0
+                || hydra_shdr.capacity() % 46 != 0)
+            throw new RIFFInvalidDataException();
+
+        int count = hydra_phdr.capacity() / 38;
+        for (int i = 0; i < count - 1; i++) {
+            int pos = i * 38;
+            SF2Instrument preset = new SF2Instrument(this);
+            preset.name = readString(hydra_phdr, pos, 20);
+            preset.preset = hydra_phdr.getShort(pos + 20) & 0xFFFF;
+            preset.bank = hydra_phdr.getShort(pos + 22) & 0xFFFF;
+            preset.library = hydra_phdr.getInt(pos + 26) & 0xFFFFFFFFL;
+            preset.genre = hydra_phdr.getInt(pos + 30) & 0xFFFFFFFFL;
+            preset.morphology = hydra_phdr.getInt(pos + 34) & 0xFFFFFFFFL;
+            preset.hydra_index = i;
+            preset.loaded = false;
+            this.instruments.add(preset);
+        }
+        hydra_layers = new SF2Layer[Math.max(0, hydra_inst.capacity() / 22 - 1)];
+        hydra_samples = new SF2Sample[Math.max(0, hydra_shdr.capacity() / 46 - 1)];
+    }
+
+    // Reads the zones of a preset of a lazily read soundbank
+    synchronized void loadPreset(SF2Instrument preset) {
+        if (preset.loaded)
+            return;
+        try {
+            int pos = preset.hydra_index * 38;
+            int bagfrom = hydra_phdr.getShort(pos + 24) & 0xFFFF;
+            int bagto = hydra_phdr.getShort(pos + 38 + 24) & 0xFFFF;
+            for (int bag = bagfrom; bag < bagto; bag++) {
+                SF2InstrumentRegion split = new SF2InstrumentRegion();
+                readZone(split, bag, hydra_pbag, hydra_pgen, hydra_pmod, false);
+                preset.regions.add(split);
+            }
+            resolvePreset(preset);
+        } catch (IOException e) {
+            //e.printStackTrace();
+            preset.regions.clear();
+            preset.globalregion = null;
+        }
+        preset.loaded = true;
+    }
+
+    // Reads everything not yet read from a lazily read soundbank
+    private synchronized void loadAll() {
+        if (hydra_phdr == null)
+            return;
+        for (SF2Instrument preset : instruments)
+            loadPreset(preset);
+        for (int i = 0; i < hydra_layers.length; i++) {
+            try {
+                layers.add(readLayer(i));
+            } catch (IOException e) {
+                //e.printStackTrace();
+            }
+        }
+        for (int i = 0; i < hydra_samples.length; i++) {
+            try {
+                samples.add(readSampleHeader(i));
+            } catch (IOException e) {
+                //e.printStackTrace();
             }
+        }
+        hydra_phdr = null;
+        hydra_pbag = null;
+        hydra_pmod = null;
+        hydra_pgen = null;
+        hydra_inst = null;
+        hydra_ibag = null;
+        hydra_imod = null;
+        hydra_igen = null;
+        hydra_shdr = null;
+        hydra_layers = null;
+        hydra_samples = null;
+    }
 
-            if (globalsplit != null) {
-                instrument.getRegions().remove(globalsplit);
-                SF2GlobalRegion gsplit = new SF2GlobalRegion();
-                gsplit.generators = globalsplit.generators;
-                gsplit.modulators = globalsplit.modulators;
-                instrument.setGlobalZone(gsplit);
+    private SF2Layer readLayer(int instrumentid) throws IOException {
+        if (instrumentid < 0 || instrumentid >= hydra_layers.length)
+            throw new RIFFInvalidDataException();
+        SF2Layer layer = hydra_layers[instrumentid];
+        if (layer != null)
+            return layer;
+        int pos = instrumentid * 22;
+        layer = new SF2Layer(this);
+        layer.name = readString(hydra_inst, pos, 20);
+        int bagfrom = hydra_inst.getShort(pos + 20) & 0xFFFF;
+        int bagto = hydra_inst.getShort(pos + 22 + 20) & 0xFFFF;
+        for (int bag = bagfrom; bag < bagto; bag++) {
+            SF2LayerRegion split = new SF2LayerRegion();
+            readZone(split, bag, hydra_ibag, hydra_igen, hydra_imod, true);
+            layer.regions.add(split);
+        }
+        resolveLayer(layer);
+        hydra_layers[instrumentid] = layer;
+        return layer;
+    }
+
+    private SF2Sample readSampleHeader(int sampleid) throws IOException {
+        if (sampleid < 0 || sampleid >= hydra_samples.length)
+            throw new RIFFInvalidDataException();
+        SF2Sample sample = hydra_samples[sampleid];
+        if (sample != null)
+            return sample;
+        ByteBuffer shdr = hydra_shdr;
+        int pos = sampleid * 46;
+        sample = new SF2Sample(this);
+        sample.name = readString(shdr, pos, 20);
+        long start = shdr.getInt(pos + 20) & 0xFFFFFFFFL;
+        long end = shdr.getInt(pos + 24) & 0xFFFFFFFFL;
+        if (sampleData != null)
+            sample.data = sampleData.subbuffer(start * 2, end * 2, true);
+        if (sampleData24 != null)
+            sample.data24 = sampleData24.subbuffer(start, end, true);
+        sample.startLoop = (shdr.getInt(pos + 28) & 0xFFFFFFFFL) - start;
+        sample.endLoop = (shdr.getInt(pos + 32) & 0xFFFFFFFFL) - start;
+        if (sample.startLoop < 0)
+            sample.startLoop = -1;
+        if (sample.endLoop < 0)
+            sample.endLoop = -1;
+        sample.sampleRate = shdr.getInt(pos + 36) & 0xFFFFFFFFL;
+        sample.originalPitch = shdr.get(pos + 40) & 0xFF;
+        sample.pitchCorrection = shdr.get(pos + 41);
+        sample.sampleLink = shdr.getShort(pos + 42) & 0xFFFF;
+        sample.sampleType = shdr.getShort(pos + 44) & 0xFFFF;
+        hydra_samples[sampleid] = sample;
+        return sample;
+    }
+
+    /*
+     * Reads the generators and modulators of a zone. Instrument modulators
+     * are matched to zones by generator index, the same way readPdtaChunk
+     * matches them.
+     */
+    private static void readZone(SF2Region split, int bag, ByteBuffer bags,
+            ByteBuffer gens, ByteBuffer mods, boolean modsbygen)
+            throws IOException {
+        int pos = bag * 4;
+        if (bag < 0 || pos + 8 > bags.capacity())
+            throw new RIFFInvalidDataException();
+        int genfrom = bags.getShort(pos) & 0xFFFF;
+        int modfrom = bags.getShort(pos + 2) & 0xFFFF;
+        int gento = bags.getShort(pos + 4) & 0xFFFF;
+        int modto = bags.getShort(pos + 6) & 0xFFFF;
+        if (modsbygen) {
+            int modcount = bags.getShort(bags.capacity() - 2) & 0xFFFF;
+            modfrom = genfrom;
+            modto = Math.min(gento, modcount);
+        }
+        if (gento * 4 > gens.capacity() || modto * 10 > mods.capacity())
+            throw new RIFFInvalidDataException();
+        for (int i = modfrom; i < modto; i++) {
+            int mpos = i * 10;
+            SF2Modulator modulator = new SF2Modulator();
+            modulator.sourceOperator = mods.getShort(mpos) & 0xFFFF;
+            modulator.destinationOperator = mods.getShort(mpos + 2) & 0xFFFF;
+            modulator.amount = mods.getShort(mpos + 4);
+            modulator.amountSourceOperator = mods.getShort(mpos + 6) & 0xFFFF;
+            modulator.transportOperator = mods.getShort(mpos + 8) & 0xFFFF;
+            split.modulators.add(modulator);
+        }
+        for (int i = genfrom; i < gento; i++) {
+            int gpos = i * 4;
+            split.generators.put(gens.getShort(gpos) & 0xFFFF,
+                    gens.getShort(gpos + 2));
+        }
+    }
+
+    // Read ASCII chars from hydra record
+    private static String readString(ByteBuffer buffer, int pos, int len) {
+        byte[] buff = new byte[len];
+        for (int i = 0; i < len; i++)
+            buff[i] = buffer.get(pos + i);
+        for (int i = 0; i < buff.length; i++) {
+            if (buff[i] == 0) {
+                return new String(buff, 0, i, StandardCharsets.US_ASCII);
             }
         }
+        return new String(buff, StandardCharsets.US_ASCII);
+    }
+
+    private SF2Sample getSample(int sampleid) throws IOException {
+        if (hydra_samples != null)
+            return readSampleHeader(sampleid);
+        if (sampleid < 0 || sampleid >= samples.size())
+            throw new RIFFInvalidDataException();
+        return samples.get(sampleid);
+    }
 
+    private SF2Layer getLayer(int instrumentid) throws IOException {
+        if (hydra_layers != null)
+            return readLayer(instrumentid);
+        if (instrumentid < 0 || instrumentid >= layers.size())
+            throw new RIFFInvalidDataException();
+        return layers.get(instrumentid);
     }
 
     public void save(String name) throws IOException {
@@ -535,6 +807,7 @@ public final class SF2Soundbank implements Soundbank {
     }
 
     private void writeSoundbank(RIFFWriter writer) throws IOException {
+        loadAll();
         writeInfo(writer.writeList("INFO"));
         writeSdtaChunk(writer.writeList("sdta"));
         writePdtaChunk(writer.writeList("pdta"));
@@ -865,6 +1138,7 @@ public final class SF2Soundbank implements Soundbank {
 
     @Override
     public SoundbankResource[] getResources() {
+        loadAll();
         SoundbankResource[] resources
                 = new SoundbankResource[layers.size() + samples.size()];
         int j = 0;
@@ -884,10 +1158,12 @@ public final class SF2Soundbank implements Soundbank {
     }
 
     public SF2Layer[] getLayers() {
+        loadAll();
         return layers.toArray(new SF2Layer[layers.size()]);
     }
 
     public SF2Sample[] getSamples() {
+        loadAll();
         return samples.toArray(new SF2Sample[samples.size()]);
     }
 
@@ -970,6 +1246,7 @@ public final class SF2Soundbank implements Soundbank {
     }
 
     public void addResource(SoundbankResource resource) {
+        loadAll();
         if (resource instanceof SF2Instrument)
             instruments.add((SF2Instrument)resource);
         if (resource instanceof SF2Layer)
@@ -979,6 +1256,7 @@ public final class SF2Soundbank implements Soundbank {
     }
 
     public void removeResource(SoundbankResource resource) {
+        loadAll();
         if (resource instanceof SF2Instrument)
             instruments.remove(resource);
         if (resource instanceof SF2Layer)
@@ -37,6 +37,12 @@ import gervill.javax.sound.midi.VoiceStatus;
  */
 public abstract class SoftAbstractResampler implements SoftResampler {
 
+    // Resamplers of the cheaper interpolation tiers, shared by all streams
+    private static final class TierHolder {
+        static final SoftAbstractResampler linear = new SoftLinearResampler2();
+        static final SoftAbstractResampler cubic = new SoftCubicResampler();
+    }
+
     private class ModelAbstractResamplerStream implements SoftResamplerStreamer {
 
         AudioFloatInputStream stream;
@@ -66,6 +72,30 @@ public abstract class SoftAbstractResampler implements SoftResampler {
         int[] ox = new int[1];
         float samplerateconv = 1;
         float pitchcorrection = 0;
+        // Resampler used for interpolating, picked from the tier set by
+        // setInterpolationTier when the next sector is reached
+        SoftAbstractResampler interpolator = SoftAbstractResampler.this;
+        int tier = SoftVoice.LOD_FULL;
+        boolean tiered = false;
+        // Wavetable and decimation level the stream is reading
+        ModelWavetable osc;
+        float outputsamplerate;
+        int mip_level = 0;
+        // Set for playback on a line, see setRealtime
+        boolean realtime = false;
+        // Sample held in memory as one padded array per channel, read
+        // directly instead of through stream. Positions into it are 32.32
+        // fixed point array indexes.
+        boolean direct = false;
+        float[][] resident;
+        long[] phase = new long[1];
+        long[] phase_pitch = new long[1];
+        long phase_end;
+        long loop_end;
+        long loop_len;
+        // Next sector boundary in the resident sample, where the
+        // interpolator may change
+        long sector_end;
 
         ModelAbstractResamplerStream() {
             pad = getPadding();
@@ -87,6 +117,17 @@ public abstract class SoftAbstractResampler implements SoftResampler {
         @Override
         public void open(ModelWavetable osc, float outputsamplerate)
                 throws IOException {
+            this.osc = osc;
+            this.outputsamplerate = outputsamplerate;
+            openLevel(0);
+            interpolator = SoftAbstractResampler.this;
+            tier = SoftVoice.LOD_FULL;
+            tiered = false;
+        }
+
+        // Opens the wavetable, or one of its decimated copies, and reads
+        // the first sector
+        private void openLevel(int level) throws IOException {
 
             eof = false;
             nrofchannels = osc.getChannels();
@@ -94,14 +135,49 @@ public abstract class SoftAbstractResampler implements SoftResampler {
                 ibuffer = new float[nrofchannels][sector_size + pad2];
             }
 
-            stream = osc.openStream();
+            stream = null;
+            resident = null;
+            if (direct && pad <= SoftFloatSampleCache.PADDING
+                    && osc instanceof ModelByteBufferWavetable
+                    && (osc.getLoopType() & (ModelWavetable.LOOP_TYPE_PINGPONG
+                            | ModelWavetable.LOOP_TYPE_REVERSE)) == 0) {
+                resident = ((ModelByteBufferWavetable) osc)
+                        .getResidentChannels(level);
+                if (resident == null && level != 0) {
+                    level = 0;
+                    resident = ((ModelByteBufferWavetable) osc)
+                            .getResidentChannels(0);
+                }
+                if (resident != null && resident.length != nrofchannels)
+                    resident = null;
+            }
+            if (resident == null) {
+                if (level != 0)
+                    stream = ((ModelByteBufferWavetable) osc)
+                            .openMipmapStream(level);
+                if (stream == null) {
+                    level = 0;
+                    if (osc instanceof ModelByteBufferWavetable)
+                        stream = ((ModelByteBufferWavetable) osc)
+                                .openStream(realtime);
+                    else
+                        stream = osc.openStream();
+                }
+            }
+            mip_level = level;
             streampos = 0;
             stream_eof = false;
             pitchcorrection = osc.getPitchcorrection();
-            samplerateconv
-                    = stream.getFormat().getSampleRate() / outputsamplerate;
-            looplen = osc.getLoopLength();
-            loopstart = osc.getLoopStart();
+            if (resident != null) {
+                float rate = ((ModelByteBufferWavetable) osc).getFormat()
+                        .getSampleRate() / (1 << level);
+                samplerateconv = rate / outputsamplerate;
+            } else {
+                samplerateconv
+                        = stream.getFormat().getSampleRate() / outputsamplerate;
+            }
+            looplen = osc.getLoopLength() / (1 << level);
+            loopstart = osc.getLoopStart() / (1 << level);
             sector_loopstart = (int) (loopstart / sector_size);
             sector_loopstart = sector_loopstart - 1;
 
@@ -126,6 +202,18 @@ public abstract class SoftAbstractResampler implements SoftResampler {
             loopdirection = true;
             noteOff_flag = false;
 
+            if (resident != null) {
+                // Start pad frames before the sample, like the first
+                // sector read below does
+                int base = SoftFloatSampleCache.PADDING;
+                phase[0] = (long)(base - pad) << 32;
+                phase_end = (long)(resident[0].length - base) << 32;
+                loop_end = toFixed(base + loopstart + looplen);
+                loop_len = toFixed(looplen);
+                sector_end = phase[0];
+                return;
+            }
+
             for (int i = 0; i < nrofchannels; i++)
                 Arrays.fill(ibuffer[i], sector_size, sector_size + pad2, 0);
             ix[0] = pad;
@@ -145,14 +233,67 @@ public abstract class SoftAbstractResampler implements SoftResampler {
             (pitchcorrection + pitch) / 1200.0f)
              * samplerateconv;
              */
-            this.target_pitch = (float)Math.exp(
-                    (pitchcorrection + pitch) * (Math.log(2.0) / 1200.0))
-                * samplerateconv;
+            float ratio = (float)SoftFastMath.centsToRatio(
+                    pitchcorrection + pitch);
+            if (!started && osc instanceof ModelByteBufferWavetable
+                    && ((ModelByteBufferWavetable) osc).getMipmaps() != null) {
+                // Notes transposed an octave or more above the output rate
+                // start reading a copy decimated to match
+                float step = ratio * samplerateconv * (1 << mip_level);
+                int level = 0;
+                while (level < ModelByteBufferWavetable.MIPMAP_LEVELS
+                        && step >= (2 << level))
+                    level++;
+                if (level != mip_level) {
+                    try {
+                        if (stream != null)
+                            stream.close();
+                        openLevel(level);
+                    } catch (IOException e) {
+                        //e.printStackTrace();
+                    }
+                }
+            }
+            this.target_pitch = ratio * samplerateconv;
 
             if (!started)
                 current_pitch[0] = this.target_pitch;
         }
 
+        @Override
+        public void setDirectReading(boolean value) {
+            direct = value;
+        }
+
+        @Override
+        public void setRealtime(boolean value) {
+            realtime = value;
+        }
+
+        @Override
+        public void setInterpolationTier(int tier) {
+            this.tier = tier;
+            tiered = true;
+        }
+
+        // Interpolator for the next sector. At 1:1 with positions on the
+        // samples every interpolation returns the samples, so linear is
+        // used, a fractional position keeps the tier asked for.
+        private SoftAbstractResampler nextInterpolator(boolean integral) {
+            if (!tiered)
+                return SoftAbstractResampler.this;
+            SoftAbstractResampler next;
+            if (integral || tier == SoftVoice.LOD_LINEAR)
+                next = TierHolder.linear;
+            else if (tier == SoftVoice.LOD_CUBIC)
+                next = TierHolder.cubic;
+            else
+                next = SoftAbstractResampler.this;
+            if (next.getPadding() > pad)
+                return SoftAbstractResampler.this;
+            return next;
+        }
+
         public void nextBuffer() throws IOException {
             if (ix[0] < pad) {
                 if (markset) {
@@ -195,6 +336,8 @@ public abstract class SoftAbstractResampler implements SoftResampler {
                 ix[0] -= sector_size;
                 sector_pos++;
                 streampos += sector_size;
+                interpolator = nextInterpolator(current_pitch[0] == 1f
+                        && target_pitch == 1f && ix[0] == (int) ix[0]);
 
                 for (int c = 0; c < nrofchannels; c++) {
                     float[] cbuffer = ibuffer[c];
@@ -270,11 +413,19 @@ public abstract class SoftAbstractResampler implements SoftResampler {
                     if (loopdirection)
                         loopmode = 0;
 
+            if (resident != null)
+                return readResident(buffer, offset, len);
 
             float pitchstep = (target_pitch - current_pitch[0]) / len;
             float[] current_pitch = this.current_pitch;
             started = true;
 
+            // Without output buffers we only advance the position
+            boolean skip = true;
+            for (int i = 0; i < nrofchannels; i++)
+                if (buffer[i] != null)
+                    skip = false;
+
             int[] ox = this.ox;
             ox[0] = offset;
             int ox_end = len + offset;
@@ -314,13 +465,16 @@ public abstract class SoftAbstractResampler implements SoftResampler {
                     float bak_ix = ix[0];
                     int bak_ox = ox[0];
                     float bak_pitch = current_pitch[0];
+                    if (skip)
+                        advance(ix, ixend, current_pitch, pitchstep, ox,
+                                ox_end);
                     for (int i = 0; i < nrofchannels; i++) {
                         if (buffer[i] != null) {
                             ix[0] = bak_ix;
                             ox[0] = bak_ox;
                             current_pitch[0] = bak_pitch;
-                            interpolate(ibuffer[i], ix, ixend, current_pitch,
-                                    pitchstep, buffer[i], ox, ox_end);
+                            interpolator.interpolate(ibuffer[i], ix, ixend,
+                                    current_pitch, pitchstep, buffer[i], ox, ox_end);
                         }
                     }
 
@@ -358,13 +512,15 @@ public abstract class SoftAbstractResampler implements SoftResampler {
                 float bak_ix = ix[0];
                 int bak_ox = ox[0];
                 float bak_pitch = current_pitch[0];
+                if (skip)
+                    advance(ix, ixend, current_pitch, pitchstep, ox, ox_end);
                 for (int i = 0; i < nrofchannels; i++) {
                     if (buffer[i] != null) {
                         ix[0] = bak_ix;
                         ox[0] = bak_ox;
                         current_pitch[0] = bak_pitch;
-                        interpolate(ibuffer[i], ix, ixend, current_pitch,
-                                pitchstep, buffer[i], ox, ox_end);
+                        interpolator.interpolate(ibuffer[i], ix, ixend,
+                                current_pitch, pitchstep, buffer[i], ox, ox_end);
                     }
                 }
 
@@ -378,18 +534,183 @@ public abstract class SoftAbstractResampler implements SoftResampler {
             return len;
         }
 
+        // Reads straight from the resident sample, with forward loops
+        // wrapped by moving the position back by the loop length
+        private int readResident(float[][] buffer, int offset, int len) {
+            long[] phase = this.phase;
+            long[] pitch = this.phase_pitch;
+            pitch[0] = toFixed(current_pitch[0]);
+            long pitchstep = (toFixed(target_pitch) - pitch[0]) / len;
+            started = true;
+
+            boolean skip = true;
+            for (int i = 0; i < nrofchannels; i++)
+                if (buffer[i] != null)
+                    skip = false;
+
+            int[] ox = this.ox;
+            ox[0] = offset;
+            int ox_end = len + offset;
+            boolean looping = loopmode != 0 && loop_len > 0;
+            while (ox[0] != ox_end) {
+                if (looping && phase[0] >= loop_end) {
+                    phase[0] -= loop_len;
+                    // Wrapping reads a new sector in the sector path
+                    sector_end = phase[0];
+                    continue;
+                }
+                if (phase[0] >= phase_end) {
+                    eof = true;
+                    break;
+                }
+                if (phase[0] >= sector_end) {
+                    interpolator = nextInterpolator(pitchstep == 0
+                            && pitch[0] == 1L << 32
+                            && (phase[0] & 0xFFFFFFFFL) == 0);
+                    long frame = (phase[0] >> 32) - SoftFloatSampleCache.PADDING;
+                    sector_end = (Math.floorDiv(frame, sector_size) + 1)
+                            * sector_size + SoftFloatSampleCache.PADDING << 32;
+                }
+                long end = looping ? Math.min(loop_end, phase_end)
+                        : phase_end;
+                end = Math.min(end, sector_end);
+
+                long bak_phase = phase[0];
+                int bak_ox = ox[0];
+                long bak_pitch = pitch[0];
+                if (skip)
+                    advance(phase, end, pitch, pitchstep, ox, ox_end);
+                for (int i = 0; i < nrofchannels; i++) {
+                    if (buffer[i] != null) {
+                        phase[0] = bak_phase;
+                        ox[0] = bak_ox;
+                        pitch[0] = bak_pitch;
+                        interpolator.interpolate(resident[i], phase, end,
+                                pitch, pitchstep, buffer[i], ox, ox_end);
+                    }
+                }
+            }
+
+            current_pitch[0] = this.target_pitch;
+            return eof ? ox[0] - offset : len;
+        }
+
         @Override
         public void close() throws IOException {
-            stream.close();
+            if (stream != null)
+                stream.close();
         }
     }
 
+    // Float position or pitch to 32.32 fixed point
+    static long toFixed(double x) {
+        return (long)(x * 4294967296.0);
+    }
+
+    // Fraction of a 32.32 fixed point position, to 24 bits
+    static float fraction(long ix) {
+        return ((int) ix >>> 8) * (1f / (1 << 24));
+    }
+
+    // 32.32 fixed point to float
+    static float toFloat(long x) {
+        return x * (1f / 4294967296f);
+    }
+
+    // Number of outputs, at most max, a fixed point position starting at
+    // ix can make before reaching in_end
+    static int steps(long ix, long in_end, long pitch, long pitchstep,
+            int max) {
+        if (pitchstep == 0 && pitch > 0) {
+            long n = (in_end - ix + pitch - 1) / pitch;
+            return n < 0 ? 0 : n < max ? (int) n : max;
+        }
+        int n = 0;
+        while (ix < in_end && n < max) {
+            ix += pitch;
+            pitch += pitchstep;
+            n++;
+        }
+        return n;
+    }
+
+    // Fixed point position after n outputs
+    static long position(long ix, long pitch, long pitchstep, int n) {
+        return ix + n * pitch + (long) n * (n - 1) / 2 * pitchstep;
+    }
+
+    // Fixed point version of advance
+    static void advance(long[] in_offset, long in_end, long[] startpitch,
+            long pitchstep, int[] out_offset, int out_end) {
+        long pitch = startpitch[0];
+        long ix = in_offset[0];
+        int ox = out_offset[0];
+        int n = steps(ix, in_end, pitch, pitchstep, out_end - ox);
+        in_offset[0] = position(ix, pitch, pitchstep, n);
+        out_offset[0] = ox + n;
+        startpitch[0] = pitch + n * pitchstep;
+    }
+
     public abstract int getPadding();
 
+    // Moves in_offset and out_offset the same way interpolate does,
+    // without reading or writing any samples.
+    static void advance(float[] in_offset, float in_end, float[] startpitch,
+            float pitchstep, int[] out_offset, int out_end) {
+        float pitch = startpitch[0];
+        float ix = in_offset[0];
+        int ox = out_offset[0];
+        if (pitchstep == 0f) {
+            while (ix < in_end && ox < out_end) {
+                ox++;
+                ix += pitch;
+            }
+        } else {
+            while (ix < in_end && ox < out_end) {
+                ox++;
+                ix += pitch;
+                pitch += pitchstep;
+            }
+        }
+        in_offset[0] = ix;
+        out_offset[0] = ox;
+        startpitch[0] = pitch;
+    }
+
     public abstract void interpolate(float[] in, float[] in_offset,
             float in_end, float[] pitch, float pitchstep, float[] out,
             int[] out_offset, int out_end);
 
+    // Same as above for a whole sample held in memory, in_offset, in_end,
+    // pitch and pitchstep are 32.32 fixed point
+    public final void interpolate(float[] in, long[] in_offset,
+            long in_end, long[] startpitch, long pitchstep, float[] out,
+            int[] out_offset, int out_end) {
+        long pitch = startpitch[0];
+        long ix = in_offset[0];
+        int ox = out_offset[0];
+        int n = steps(ix, in_end, pitch, pitchstep, out_end - ox);
+        int ox_end = ox + n;
+        // Positions within the call are floats relative to base
+        int base = (int) (ix >> 32);
+        float fx = fraction(ix);
+        float fpitch = toFloat(pitch);
+        float fpitchstep = toFloat(pitchstep);
+        while (ox < ox_end) {
+            int iix = (int) fx;
+            out[ox++] = interpolatePoint(in, base + iix, fx - iix, fpitch);
+            fx += fpitch;
+            fpitch += fpitchstep;
+        }
+        in_offset[0] = position(ix, pitch, pitchstep, n);
+        out_offset[0] = ox;
+        startpitch[0] = pitch + n * pitchstep;
+    }
+
+    // Value between in[ix] and in[ix + 1] at fraction fix, read at pitch
+    abstract float interpolatePoint(float[] in, int ix, float fix,
+            float pitch);
+
     @Override
     public final SoftResamplerStreamer openStreamer() {
         return new ModelAbstractResamplerStream();
@@ -36,6 +36,12 @@ import gervill.javax.sound.midi.Patch;
 
 /**
  * Software Synthesizer MIDI channel class.
+ * <p>
+ * Calls made on this channel take effect immediately and are seen
+ * by getters on any thread. Messages sent through a
+ * <code>SoftReceiver</code> are applied by the audio thread on the next
+ * control block, so getters such as <code>getController</code> do not
+ * reflect them right after <code>send</code> returns.
  *
  * @author Karl Helgason
  */
@@ -101,6 +107,7 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
     private final Object control_mutex;
     private final int channel;
     private final SoftVoice[] voices;
+    private final SoftVoiceIndex voiceindex;
     private int bank;
     private int program;
     private final SoftSynthesizer synthesizer;
@@ -131,6 +138,8 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
         double[] pitch = co_midi_pitch;
         double[] channel_pressure = co_midi_channel_pressure;
         double[] poly_pressure = new double[1];
+        // Variables in SoftPerformer.CONTROL_VARIABLES order
+        final double[][] slots = {pitch, channel_pressure, poly_pressure};
 
         @Override
         public double[] get(int instance, String name) {
@@ -146,7 +155,7 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
         }
     }
 
-    private final SoftControl[] co_midi = new SoftControl[128];
+    private final MidiControlObject[] co_midi = new MidiControlObject[128];
     {
         for (int i = 0; i < co_midi.length; i++) {
             co_midi[i] = new MidiControlObject();
@@ -154,49 +163,47 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
     }
 
     private final double[][] co_midi_cc_cc = new double[128][1];
-    private final SoftControl co_midi_cc = new SoftControl() {
-        final double[][] cc = co_midi_cc_cc;
-        @Override
-        public double[] get(int instance, String name) {
-            if (name == null)
-                return null;
-            return cc[Integer.parseInt(name)];
-        }
-    };
     Map<Integer, int[]> co_midi_rpn_rpn_i = new HashMap<Integer, int[]>();
     Map<Integer, double[]> co_midi_rpn_rpn = new HashMap<Integer, double[]>();
-    private final SoftControl co_midi_rpn = new SoftControl() {
-        final Map<Integer, double[]> rpn = co_midi_rpn_rpn;
-        @Override
-        public double[] get(int instance, String name) {
-            if (name == null)
-                return null;
-            int iname = Integer.parseInt(name);
-            double[] v = rpn.get(iname);
-            if (v == null) {
-                v = new double[1];
-                rpn.put(iname, v);
-            }
-            return v;
-        }
-    };
     Map<Integer, int[]> co_midi_nrpn_nrpn_i = new HashMap<Integer, int[]>();
     Map<Integer, double[]> co_midi_nrpn_nrpn = new HashMap<Integer, double[]>();
-    private final SoftControl co_midi_nrpn = new SoftControl() {
-        final Map<Integer, double[]> nrpn = co_midi_nrpn_nrpn;
-        @Override
-        public double[] get(int instance, String name) {
-            if (name == null)
-                return null;
-            int iname = Integer.parseInt(name);
-            double[] v = nrpn.get(iname);
-            if (v == null) {
-                v = new double[1];
-                nrpn.put(iname, v);
-            }
-            return v;
+
+    private double[] getRPNControl(int controller) {
+        double[] v = co_midi_rpn_rpn.get(controller);
+        if (v == null) {
+            v = new double[1];
+            co_midi_rpn_rpn.put(controller, v);
+        }
+        return v;
+    }
+
+    private double[] getNRPNControl(int controller) {
+        double[] v = co_midi_nrpn_nrpn.get(controller);
+        if (v == null) {
+            v = new double[1];
+            co_midi_nrpn_nrpn.put(controller, v);
+        }
+        return v;
+    }
+
+    /*
+     * Resolves a channel control of a compiled SoftPerformer slot,
+     * note selects the per-key midi object.
+     */
+    double[] getControl(int note, int object, int variable) {
+        switch (object) {
+        case SoftPerformer.CONTROL_MIDI:
+            return co_midi[note].slots[variable];
+        case SoftPerformer.CONTROL_MIDI_CC:
+            return co_midi_cc_cc[variable];
+        case SoftPerformer.CONTROL_MIDI_RPN:
+            return getRPNControl(variable);
+        case SoftPerformer.CONTROL_MIDI_NRPN:
+            return getNRPNControl(variable);
+        default:
+            return null;
         }
-    };
+    }
 
     private static int restrict7Bit(int value)
     {
@@ -215,6 +222,7 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
     public SoftChannel(SoftSynthesizer synth, int channel) {
         this.channel = channel;
         this.voices = synth.getVoices();
+        this.voiceindex = synth.getVoiceIndex();
         this.synthesizer = synth;
         this.mainmixer = synth.getMainMixer();
         control_mutex = synth.control_mutex;
@@ -231,113 +239,17 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             // Therefore we have to return -1.
             return -1;
         }
-        for (int i = x; i < voices.length; i++)
-            if (!voices[i].active)
-                return i;
-
-        // No free voice was found, we must steal one
-
-        int vmode = synthesizer.getVoiceAllocationMode();
-        if (vmode == 1) {
-            // DLS Static Voice Allocation
-
-            //  * priority ( 10, 1-9, 11-16)
-            // Search for channel to steal from
-            int steal_channel = channel;
-            for (int j = 0; j < voices.length; j++) {
-                if (voices[j].stealer_channel == null) {
-                    if (steal_channel == 9) {
-                        steal_channel = voices[j].channel;
-                    } else {
-                        if (voices[j].channel != 9) {
-                            if (voices[j].channel > steal_channel)
-                                steal_channel = voices[j].channel;
-                        }
-                    }
-                }
-            }
-
-            int voiceNo = -1;
-
-            SoftVoice v = null;
-            // Search for oldest voice in off state on steal_channel
-            for (int j = 0; j < voices.length; j++) {
-                if (voices[j].channel == steal_channel) {
-                    if (voices[j].stealer_channel == null && !voices[j].on) {
-                        if (v == null) {
-                            v = voices[j];
-                            voiceNo = j;
-                        }
-                        if (voices[j].voiceID < v.voiceID) {
-                            v = voices[j];
-                            voiceNo = j;
-                        }
-                    }
-                }
-            }
-            // Search for oldest voice in on state on steal_channel
-            if (voiceNo == -1) {
-                for (int j = 0; j < voices.length; j++) {
-                    if (voices[j].channel == steal_channel) {
-                        if (voices[j].stealer_channel == null) {
-                            if (v == null) {
-                                v = voices[j];
-                                voiceNo = j;
-                            }
-                            if (voices[j].voiceID < v.voiceID) {
-                                v = voices[j];
-                                voiceNo = j;
-                            }
-                        }
-                    }
-                }
-            }
-
-            return voiceNo;
-
-        } else {
-            // Default Voice Allocation
-            //  * Find voice that is on
-            //    and Find voice which has lowest voiceID ( oldest voice)
-            //  * Or find voice that is off
-            //    and Find voice which has lowest voiceID ( oldest voice)
-
-            int voiceNo = -1;
-
-            SoftVoice v = null;
-            // Search for oldest voice in off state
-            for (int j = 0; j < voices.length; j++) {
-                if (voices[j].stealer_channel == null && !voices[j].on) {
-                    if (v == null) {
-                        v = voices[j];
-                        voiceNo = j;
-                    }
-                    if (voices[j].voiceID < v.voiceID) {
-                        v = voices[j];
-                        voiceNo = j;
-                    }
-                }
-            }
-            // Search for oldest voice in on state
-            if (voiceNo == -1) {
-
-                for (int j = 0; j < voices.length; j++) {
-                    if (voices[j].stealer_channel == null) {
-                        if (v == null) {
-                            v = voices[j];
-                            voiceNo = j;
-                        }
-                        if (voices[j].voiceID < v.voiceID) {
-                            v = voices[j];
-                            voiceNo = j;
-                        }
-                    }
-                }
-            }
-
-            return voiceNo;
-        }
-
+        int free = voiceindex.nextFree(x);
+        if (free != -1)
+            return free;
+
+        // No free voice was found, we must steal one.
+        // Every voice below x was found active or was taken by an
+        // earlier call for this note, and voices only become inactive
+        // in processControlLogic, so all voices are active here and
+        // only active voices need to be considered for stealing.
+        return synthesizer.getVoiceAllocator().findVoiceToSteal(
+                synthesizer.getVoiceAllocationMode(), channel);
     }
 
     void initVoice(SoftVoice voice, SoftPerformer p, int voiceID,
@@ -353,9 +265,11 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             voice.stealer_extendedConnectionBlocks = connectionBlocks;
             voice.stealer_channelmixer = channelmixer;
             voice.stealer_releaseTriggered = releaseTriggered;
-            for (int i = 0; i < voices.length; i++)
-                if (voices[i].active && voices[i].voiceID == voice.voiceID)
-                    voices[i].soundOff();
+            synthesizer.getVoiceAllocator().update(voice);
+            for (SoftVoice v = voiceindex.getFirstVoice(voice.channel);
+                    v != null; v = v.channel_next)
+                if (v.voiceID == voice.voiceID)
+                    v.soundOff();
             return;
         }
 
@@ -371,11 +285,6 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
         voice.program = program;
         voice.instrument = current_instrument;
         voice.performer = p;
-        voice.objects.clear();
-        voice.objects.put("midi", co_midi[noteNumber]);
-        voice.objects.put("midi_cc", co_midi_cc);
-        voice.objects.put("midi_rpn", co_midi_rpn);
-        voice.objects.put("midi_nrpn", co_midi_nrpn);
         voice.noteOn(noteNumber, velocity, delay);
         voice.setMute(mute);
         voice.setSoloMute(solomute);
@@ -437,13 +346,12 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
         synchronized (control_mutex) {
             if (sustain) {
                 sustain = false;
-                for (int i = 0; i < voices.length; i++) {
-                    if ((voices[i].sustain || voices[i].on)
-                            && voices[i].channel == channel && voices[i].active
-                            && voices[i].note == noteNumber) {
-                        voices[i].sustain = false;
-                        voices[i].on = true;
-                        voices[i].noteOff(0);
+                for (SoftVoice v = voiceindex.getFirstVoice(channel, noteNumber);
+                        v != null; v = v.note_next) {
+                    if (v.sustain || v.on) {
+                        v.sustain = false;
+                        v.on = true;
+                        v.noteOff(0);
                     }
                 }
                 sustain = true;
@@ -454,12 +362,11 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             if (mono) {
                 if (portamento) {
                     boolean n_found = false;
-                    for (int i = 0; i < voices.length; i++) {
-                        if (voices[i].on && voices[i].channel == channel
-                                && voices[i].active
-                                && voices[i].releaseTriggered == false) {
-                            voices[i].portamento = true;
-                            voices[i].setNote(noteNumber);
+                    for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                            v != null; v = v.channel_next) {
+                        if (v.on && v.releaseTriggered == false) {
+                            v.portamento = true;
+                            v.setNote(noteNumber);
                             n_found = true;
                         }
                     }
@@ -471,13 +378,14 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
 
                 if (controller[84] != 0) {
                     boolean n_found = false;
-                    for (int i = 0; i < voices.length; i++) {
-                        if (voices[i].on && voices[i].channel == channel
-                                && voices[i].active
-                                && voices[i].note == controller[84]
-                                && voices[i].releaseTriggered == false) {
-                            voices[i].portamento = true;
-                            voices[i].setNote(noteNumber);
+                    SoftVoice next;
+                    for (SoftVoice v = voiceindex.getFirstVoice(channel,
+                            controller[84]); v != null; v = next) {
+                        // setNote moves the voice to another note list
+                        next = v.note_next;
+                        if (v.on && v.releaseTriggered == false) {
+                            v.portamento = true;
+                            v.setNote(noteNumber);
                             n_found = true;
                         }
                     }
@@ -572,13 +480,15 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             }
 
             mainmixer.activity();
-            for (int i = 0; i < voices.length; i++) {
-                if (voices[i].on && voices[i].channel == channel
-                        && voices[i].note == noteNumber
-                        && voices[i].releaseTriggered == false) {
-                    voices[i].noteOff(velocity);
+            for (SoftVoice v = voiceindex.getFirstVoice(channel, noteNumber);
+                    v != null; v = v.note_next) {
+                if (v.on && v.releaseTriggered == false) {
+                    v.noteOff(velocity);
                 }
-                // We must also check stolen voices
+            }
+            // We must also check stolen voices
+            for (int i = voiceindex.nextActive(0); i != -1;
+                    i = voiceindex.nextActive(i + 1)) {
                 if (voices[i].stealer_channel == this && voices[i].stealer_noteNumber == noteNumber) {
                     SoftVoice v = voices[i];
                     v.stealer_releaseTriggered = false;
@@ -589,6 +499,7 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
                     v.stealer_velocity = 0;
                     v.stealer_extendedConnectionBlocks = null;
                     v.stealer_channelmixer = null;
+                    synthesizer.getVoiceAllocator().update(v);
                 }
             }
 
@@ -645,11 +556,11 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             firstVoice = false;
             if (p.exclusiveClass != 0) {
                 int x = p.exclusiveClass;
-                for (int j = 0; j < voices.length; j++) {
-                    if (voices[j].active && voices[j].channel == channel
-                            && voices[j].exclusiveClass == x) {
-                        if (!(p.selfNonExclusive && voices[j].note == noteNumber))
-                            voices[j].shutdown();
+                for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                        v != null; v = v.channel_next) {
+                    if (v.exclusiveClass == x) {
+                        if (!(p.selfNonExclusive && v.note == noteNumber))
+                            v.shutdown();
                     }
                 }
             }
@@ -680,12 +591,11 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
 
         synchronized (control_mutex) {
             mainmixer.activity();
-            co_midi[noteNumber].get(0, "poly_pressure")[0] = pressure*(1.0/128.0);
+            co_midi[noteNumber].poly_pressure[0] = pressure*(1.0/128.0);
             polypressure[noteNumber] = pressure;
-            for (int i = 0; i < voices.length; i++) {
-                if (voices[i].active && voices[i].note == noteNumber)
-                    voices[i].setPolyPressure();
-            }
+            for (SoftVoice v = voiceindex.getFirstVoice(channel, noteNumber);
+                    v != null; v = v.note_next)
+                v.setPolyPressure();
         }
     }
 
@@ -705,10 +615,9 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             mainmixer.activity();
             co_midi_channel_pressure[0] = pressure * (1.0 / 128.0);
             channelpressure = pressure;
-            for (int i = 0; i < voices.length; i++) {
-                if (voices[i].active)
-                    voices[i].setChannelPressure();
-            }
+            for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                    v != null; v = v.channel_next)
+                v.setChannelPressure();
         }
     }
 
@@ -1044,17 +953,17 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
         }
 
         if (controller < 120) {
-            for (int i = 0; i < voices.length; i++)
-                if (voices[i].active)
-                    voices[i].controlChange(controller);
+            for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                    v != null; v = v.channel_next)
+                v.controlChange(controller);
         } else if (controller == 120) {
-            for (int i = 0; i < voices.length; i++)
-                if (voices[i].active)
-                    voices[i].rpnChange(1);
+            for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                    v != null; v = v.channel_next)
+                v.rpnChange(1);
         } else if (controller == 121) {
-            for (int i = 0; i < voices.length; i++)
-                if (voices[i].active)
-                    voices[i].rpnChange(2);
+            for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                    v != null; v = v.channel_next)
+                v.rpnChange(2);
         }
 
     }
@@ -1137,20 +1046,20 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
                 if (sustain != on) {
                     sustain = on;
                     if (!on) {
-                        for (int i = 0; i < voices.length; i++) {
-                            if (voices[i].active && voices[i].sustain &&
-                                    voices[i].channel == channel) {
-                                voices[i].sustain = false;
-                                if (!voices[i].on) {
-                                    voices[i].on = true;
-                                    voices[i].noteOff(0);
+                        for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                                v != null; v = v.channel_next) {
+                            if (v.sustain) {
+                                v.sustain = false;
+                                if (!v.on) {
+                                    v.on = true;
+                                    v.noteOff(0);
                                 }
                             }
                         }
                     } else {
-                        for (int i = 0; i < voices.length; i++)
-                            if (voices[i].active && voices[i].channel == channel)
-                                voices[i].redamp();
+                        for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                                v != null; v = v.channel_next)
+                            v.redamp();
                     }
                 }
                 break;
@@ -1167,21 +1076,20 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             case 66: // Sostenuto (cc#66)
                 on = value >= 64;
                 if (on) {
-                    for (int i = 0; i < voices.length; i++) {
-                        if (voices[i].active && voices[i].on &&
-                                voices[i].channel == channel) {
-                            voices[i].sostenuto = true;
-                        }
+                    for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                            v != null; v = v.channel_next) {
+                        if (v.on)
+                            v.sostenuto = true;
                     }
                 }
                 if (!on) {
-                    for (int i = 0; i < voices.length; i++) {
-                        if (voices[i].active && voices[i].sostenuto &&
-                                voices[i].channel == channel) {
-                            voices[i].sostenuto = false;
-                            if (!voices[i].on) {
-                                voices[i].on = true;
-                                voices[i].noteOff(0);
+                    for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                            v != null; v = v.channel_next) {
+                        if (v.sostenuto) {
+                            v.sostenuto = false;
+                            if (!v.on) {
+                                v.on = true;
+                                v.noteOff(0);
                             }
                         }
                     }
@@ -1249,9 +1157,9 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             if(controller < 0x20)
                 this.controller[controller + 0x20] = 0;
 
-            for (int i = 0; i < voices.length; i++)
-                if (voices[i].active)
-                    voices[i].controlChange(controller);
+            for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                    v != null; v = v.channel_next)
+                v.controlChange(controller);
 
         }
     }
@@ -1311,9 +1219,9 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             mainmixer.activity();
             co_midi_pitch[0] = bend * (1.0 / 16384.0);
             pitchbend = bend;
-            for (int i = 0; i < voices.length; i++)
-                if (voices[i].active)
-                    voices[i].setPitchBend();
+            for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                    v != null; v = v.channel_next)
+                v.setPitchBend();
         }
     }
 
@@ -1377,9 +1285,9 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
         val_i[0] = value;
         val_d[0] = val_i[0] * (1.0 / 16384.0);
 
-        for (int i = 0; i < voices.length; i++)
-            if (voices[i].active)
-                voices[i].nrpnChange(controller);
+        for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                v != null; v = v.channel_next)
+            v.nrpnChange(controller);
 
     }
 
@@ -1414,9 +1322,9 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
         val_i[0] = value;
         val_d[0] = val_i[0] * (1.0 / 16384.0);
 
-        for (int i = 0; i < voices.length; i++)
-            if (voices[i].active)
-                voices[i].rpnChange(controller);
+        for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                v != null; v = v.channel_next)
+            v.rpnChange(controller);
     }
 
     @Override
@@ -1490,10 +1398,10 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
         if (current_mixer != null)
             current_mixer.allNotesOff();
         synchronized (control_mutex) {
-            for (int i = 0; i < voices.length; i++)
-                if (voices[i].on && voices[i].channel == channel
-                        && voices[i].releaseTriggered == false) {
-                    voices[i].noteOff(0);
+            for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                    v != null; v = v.channel_next)
+                if (v.on && v.releaseTriggered == false) {
+                    v.noteOff(0);
                 }
         }
     }
@@ -1503,9 +1411,10 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
         if (current_mixer != null)
             current_mixer.allSoundOff();
         synchronized (control_mutex) {
-            for (int i = 0; i < voices.length; i++)
-                if (voices[i].on && voices[i].channel == channel)
-                    voices[i].soundOff();
+            for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                    v != null; v = v.channel_next)
+                if (v.on)
+                    v.soundOff();
         }
     }
 
@@ -1550,9 +1459,9 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             current_mixer.setMute(mute);
         synchronized (control_mutex) {
             this.mute = mute;
-            for (int i = 0; i < voices.length; i++)
-                if (voices[i].active && voices[i].channel == channel)
-                    voices[i].setMute(mute);
+            for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                    v != null; v = v.channel_next)
+                v.setMute(mute);
         }
     }
 
@@ -1597,9 +1506,9 @@ public final class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             if (solomute == mute)
                 return;
             this.solomute = mute;
-            for (int i = 0; i < voices.length; i++)
-                if (voices[i].active && voices[i].channel == channel)
-                    voices[i].setSoloMute(solomute);
+            for (SoftVoice v = voiceindex.getFirstVoice(channel);
+                    v != null; v = v.channel_next)
+                v.setSoloMute(solomute);
         }
     }
 
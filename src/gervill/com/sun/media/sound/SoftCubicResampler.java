@@ -86,4 +86,17 @@ public final class SoftCubicResampler extends SoftAbstractResampler {
         startpitch[0] = pitch;
 
     }
+
+    @Override
+    float interpolatePoint(float[] in, int ix, float fix, float pitch) {
+        float y0 = in[ix - 1];
+        float y1 = in[ix];
+        float y2 = in[ix + 1];
+        float y3 = in[ix + 2];
+        float a0 = y3 - y2 + y1 - y0;
+        float a1 = y0 - y1 - a0;
+        float a2 = y2 - y0;
+        float a3 = y1;
+        return ((a0 * fix + a1) * fix + a2) * fix + a3;
+    }
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2007, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package gervill.com.sun.media.sound;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background I/O thread which keeps the ring buffers of
+ * SoftStreamingInputStreams filled ahead of their read position.
+ * Synthesizers that stream open the streamer, which preallocates ring
+ * buffers for their voices, the thread is stopped when the last of them
+ * closes it.
+ */
+public final class SoftDiskStreamer implements Runnable {
+
+    // Size in bytes of the ring buffers in the pool
+    static final int RING_SIZE = 131072;
+    private static final SoftDiskStreamer instance = new SoftDiskStreamer();
+    private final List<SoftStreamingInputStream> streams
+            = new ArrayList<SoftStreamingInputStream>();
+    private SoftStreamingInputStream[] streams_copy
+            = new SoftStreamingInputStream[0];
+    private boolean streams_dirty = false;
+    private volatile Thread iothread = null;
+    private volatile long dropouts = 0;
+    // Ring buffers not in use, rings_limit rings exist in total
+    private final ArrayDeque<byte[]> rings = new ArrayDeque<byte[]>();
+    private int rings_limit = 0;
+    private int rings_loaned = 0;
+
+    private SoftDiskStreamer() {
+    }
+
+    public static SoftDiskStreamer getInstance() {
+        return instance;
+    }
+
+    // Number of realtime reads the ring buffers couldn't serve, those
+    // are filled with silence
+    public long getDropoutCount() {
+        return dropouts;
+    }
+
+    void dropout() {
+        synchronized (streams) {
+            dropouts++;
+        }
+    }
+
+    // Called when a synthesizer opens, adds nrofrings ring buffers to
+    // the pool and starts the thread
+    void open(int nrofrings) {
+        synchronized (streams) {
+            rings_limit += nrofrings;
+            while (rings.size() + rings_loaned < rings_limit)
+                rings.add(new byte[RING_SIZE]);
+            if (iothread == null) {
+                // Started after assignment, it runs while it is iothread
+                iothread = JSSecurityManager.createThread(this,
+                        "Gervill Disk Streamer", true, -1, false);
+                iothread.start();
+            }
+        }
+    }
+
+    // Called when a synthesizer closes, takes back the ring buffers it
+    // added and stops the thread when nothing is left open
+    void close(int nrofrings) {
+        Thread thread;
+        synchronized (streams) {
+            rings_limit = Math.max(0, rings_limit - nrofrings);
+            while (rings.size() + rings_loaned > rings_limit
+                    && !rings.isEmpty())
+                rings.poll();
+            if (rings_limit != 0)
+                return;
+            thread = iothread;
+            iothread = null;
+            streams.clear();
+            streams_dirty = true;
+        }
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    // Returns a ring buffer from the pool, or null if all are in use
+    byte[] takeRing() {
+        synchronized (streams) {
+            byte[] ring = rings.poll();
+            if (ring != null)
+                rings_loaned++;
+            return ring;
+        }
+    }
+
+    void returnRing(byte[] ring) {
+        synchronized (streams) {
+            rings_loaned--;
+            if (rings.size() + rings_loaned < rings_limit)
+                rings.add(ring);
+        }
+    }
+
+    void register(SoftStreamingInputStream stream) {
+        synchronized (streams) {
+            if (iothread == null)
+                return;
+            streams.add(stream);
+            streams_dirty = true;
+        }
+        wakeup();
+    }
+
+    void unregister(SoftStreamingInputStream stream) {
+        synchronized (streams) {
+            streams.remove(stream);
+            streams_dirty = true;
+        }
+    }
+
+    boolean isRunning() {
+        return iothread != null;
+    }
+
+    void wakeup() {
+        Thread thread = iothread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        while (iothread == Thread.currentThread()) {
+            SoftStreamingInputStream[] list;
+            synchronized (streams) {
+                if (streams_dirty) {
+                    streams_copy = streams.toArray(
+                            new SoftStreamingInputStream[streams.size()]);
+                    streams_dirty = false;
+                }
+                list = streams_copy;
+            }
+            boolean progress = false;
+            for (SoftStreamingInputStream stream : list)
+                if (stream.fill())
+                    progress = true;
+            if (!progress)
+                LockSupport.parkNanos(5000000);
+        }
+    }
+}
@@ -59,7 +59,16 @@ public final class SoftEnvelopeGenerator implements SoftProcess {
     private final double[][] release2 = new double[max_count][1];
     private final double[][] attack2 = new double[max_count][1];
     private final double[][] decay2 = new double[max_count][1];
+    // Variables in SoftPerformer.CONTROL_VARIABLES order
+    private final double[][][] slots = {out, on, active, delay, attack, hold,
+            decay, sustain, release, shutdown, attack2, decay2, release2};
     private double control_time = 0;
+    // 1 + (40/96) * log10(a), clamped to 0..1
+    private static final ModelTransform attack_curve
+            = SoftTransformTable.getTransform(new ModelStandardTransform(
+                    ModelStandardTransform.DIRECTION_MIN2MAX,
+                    ModelStandardTransform.POLARITY_UNIPOLAR,
+                    ModelStandardTransform.TRANSFORM_CONVEX));
 
     @Override
     public void reset() {
@@ -121,6 +130,12 @@ public final class SoftEnvelopeGenerator implements SoftProcess {
         return null;
     }
 
+    double[] get(int instance, int variable) {
+        if (instance >= used_count)
+            used_count = instance + 1;
+        return slots[variable][instance];
+    }
+
     @Override
     public void processControlLogic() {
         for (int i = 0; i < used_count; i++) {
@@ -131,8 +146,8 @@ public final class SoftEnvelopeGenerator implements SoftProcess {
             if ((stage[i] > EG_OFF) && (stage[i] < EG_RELEASE)) {
                 if (on[i][0] < 0.5) {
                     if (on[i][0] < -0.5) {
-                        stage_count[i] = (int)(Math.pow(2,
-                                this.shutdown[i][0] / 1200.0) / control_time);
+                        stage_count[i] = (int)(SoftFastMath.centsToRatio(
+                                this.shutdown[i][0]) / control_time);
                         if (stage_count[i] < 0)
                             stage_count[i] = 0;
                         stage_v[i] = out[i][0];
@@ -147,8 +162,8 @@ public final class SoftEnvelopeGenerator implements SoftProcess {
                             continue;
                         }
 
-                        stage_count[i] = (int)(Math.pow(2,
-                                this.release[i][0] / 1200.0) / control_time);
+                        stage_count[i] = (int)(SoftFastMath.centsToRatio(
+                                this.release[i][0]) / control_time);
                         stage_count[i]
                                 += (int)(this.release2[i][0]/(control_time * 1000));
                         if (stage_count[i] < 0)
@@ -170,8 +185,8 @@ public final class SoftEnvelopeGenerator implements SoftProcess {
                 if (on[i][0] < 0.5)
                     break;
                 stage[i] = EG_DELAY;
-                stage_ix[i] = (int)(Math.pow(2,
-                        this.delay[i][0] / 1200.0) / control_time);
+                stage_ix[i] = (int)(SoftFastMath.centsToRatio(
+                        this.delay[i][0]) / control_time);
                 if (stage_ix[i] < 0)
                     stage_ix[i] = 0;
             case EG_DELAY:
@@ -183,13 +198,13 @@ public final class SoftEnvelopeGenerator implements SoftProcess {
                             && (attack < 0 && Double.isInfinite(attack))) {
                         out[i][0] = 1;
                         stage[i] = EG_HOLD;
-                        stage_count[i] = (int)(Math.pow(2,
-                                this.hold[i][0] / 1200.0) / control_time);
+                        stage_count[i] = (int)(SoftFastMath.centsToRatio(
+                                this.hold[i][0]) / control_time);
                         stage_ix[i] = 0;
                     } else {
                         stage[i] = EG_ATTACK;
-                        stage_count[i] = (int)(Math.pow(2,
-                                attack / 1200.0) / control_time);
+                        stage_count[i] = (int)(SoftFastMath.centsToRatio(
+                                attack) / control_time);
                         stage_count[i] += (int)(attack2 / (control_time * 1000));
                         if (stage_count[i] < 0)
                             stage_count[i] = 0;
@@ -206,20 +221,15 @@ public final class SoftEnvelopeGenerator implements SoftProcess {
                 } else {
                     // CONVEX attack
                     double a = ((double)stage_ix[i]) / ((double)stage_count[i]);
-                    a = 1 + ((40.0 / 96.0) / Math.log(10)) * Math.log(a);
-                    if (a < 0)
-                        a = 0;
-                    else if (a > 1)
-                        a = 1;
-                    out[i][0] = a;
+                    out[i][0] = attack_curve.transform(a);
                 }
                 break;
             case EG_HOLD:
                 stage_ix[i]++;
                 if (stage_ix[i] >= stage_count[i]) {
                     stage[i] = EG_DECAY;
-                    stage_count[i] = (int)(Math.pow(2,
-                            this.decay[i][0] / 1200.0) / control_time);
+                    stage_count[i] = (int)(SoftFastMath.centsToRatio(
+                            this.decay[i][0]) / control_time);
                     stage_count[i] += (int)(this.decay2[i][0]/(control_time*1000));
                     if (stage_count[i] < 0)
                         stage_count[i] = 0;
@@ -255,8 +265,8 @@ public final class SoftEnvelopeGenerator implements SoftProcess {
                     out[i][0] = (1 - m); // *stage_v[i];
 
                     if (on[i][0] < -0.5) {
-                        stage_count[i] = (int)(Math.pow(2,
-                                this.shutdown[i][0] / 1200.0) / control_time);
+                        stage_count[i] = (int)(SoftFastMath.centsToRatio(
+                                this.shutdown[i][0]) / control_time);
                         if (stage_count[i] < 0)
                             stage_count[i] = 0;
                         stage_v[i] = out[i][0];
@@ -269,8 +279,8 @@ public final class SoftEnvelopeGenerator implements SoftProcess {
                         sustain = this.sustain[i][0] * (1.0 / 1000.0);
                         if (out[i][0] > sustain) {
                             stage[i] = EG_DECAY;
-                            stage_count[i] = (int)(Math.pow(2,
-                                    this.decay[i][0] / 1200.0) / control_time);
+                            stage_count[i] = (int)(SoftFastMath.centsToRatio(
+                                    this.decay[i][0]) / control_time);
                             stage_count[i] +=
                                     (int)(this.decay2[i][0]/(control_time*1000));
                             if (stage_count[i] < 0)
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2007, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package gervill.com.sun.media.sound;
+
+/**
+ * Table driven replacements for the transcendental functions
+ * used in control-rate processing.
+ *
+ * exp2 has a relative error below 4e-9 and sin/cos an absolute error
+ * below 3e-7, both well below what can be heard in pitch and gain.
+ */
+public final class SoftFastMath {
+
+    private static final int EXP2_BITS = 12;
+    private static final int EXP2_SIZE = 1 << EXP2_BITS;
+    // 2^x for x in 0 to 1
+    private static final double[] exp2_table = new double[EXP2_SIZE + 1];
+    private static final int SIN_SIZE = 4096;
+    // sin(x) for x in 0 to 2*PI
+    private static final double[] sin_table = new double[SIN_SIZE + 1];
+    private static final double PI2 = 2.0 * Math.PI;
+    private static final double LOG2_10 = Math.log(10) / Math.log(2);
+
+    static {
+        for (int i = 0; i <= EXP2_SIZE; i++)
+            exp2_table[i] = Math.pow(2.0, i / (double) EXP2_SIZE);
+        for (int i = 0; i <= SIN_SIZE; i++)
+            sin_table[i] = Math.sin(i * (PI2 / SIN_SIZE));
+        // Make the quarter points exact
+        sin_table[0] = 0;
+        sin_table[SIN_SIZE / 4] = 1;
+        sin_table[SIN_SIZE / 2] = 0;
+        sin_table[SIN_SIZE * 3 / 4] = -1;
+        sin_table[SIN_SIZE] = 0;
+    }
+
+    private SoftFastMath() {
+    }
+
+    public static double exp2(double x) {
+        if (!(x > -1000.0 && x < 1000.0))
+            return Math.pow(2.0, x);
+        double f = Math.floor(x * EXP2_SIZE);
+        int i = (int) f;
+        double frac = x * EXP2_SIZE - f;
+        int ix = i & (EXP2_SIZE - 1);
+        double a = exp2_table[ix];
+        return Math.scalb(a + (exp2_table[ix + 1] - a) * frac,
+                i >> EXP2_BITS);
+    }
+
+    // Frequency ratio of an interval in cents
+    public static double centsToRatio(double cents) {
+        return exp2(cents * (1.0 / 1200.0));
+    }
+
+    // Amplitude gain of a level in centibels
+    public static double centibelsToGain(double cb) {
+        return exp2(cb * (LOG2_10 / 200.0));
+    }
+
+    public static double sin(double x) {
+        if (Double.isInfinite(x) || Math.abs(x) > 1.0E9)
+            return Math.sin(x);
+        double f = Math.floor(x * (SIN_SIZE / PI2));
+        double frac = x * (SIN_SIZE / PI2) - f;
+        int ix = ((int) (long) f) & (SIN_SIZE - 1);
+        double a = sin_table[ix];
+        return a + (sin_table[ix + 1] - a) * frac;
+    }
+
+    public static double cos(double x) {
+        return sin(x + Math.PI * 0.5);
+    }
+}
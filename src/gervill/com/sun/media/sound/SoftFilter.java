@@ -84,6 +84,17 @@ public final class SoftFilter {
     private double cutoff = 44100;
     private double resonancedB = 0;
     private boolean dirty = true;
+    // Filter with the same settings which is processed before this one,
+    // its coefficients are reused when they were calculated from the
+    // same inputs.
+    private SoftFilter sibling = null;
+    private boolean calc_set = false;
+    private int calc_filtertype;
+    private double calc_cutoff;
+    private double calc_resonancedB;
+    private float calc_wet;
+    private float calc_q;
+    private float calc_gain;
 
     public SoftFilter(float samplerate) {
         this.samplerate = samplerate;
@@ -107,6 +118,7 @@ public final class SoftFilter {
     public void reset() {
         dirty = true;
         last_set = false;
+        calc_set = false;
         x1 = 0;
         x2 = 0;
         y1 = 0;
@@ -128,29 +140,94 @@ public final class SoftFilter {
         this.filtertype = filtertype;
     }
 
+    public void setSibling(SoftFilter sibling) {
+        this.sibling = sibling;
+    }
+
+    // Store the inputs of a coefficient calculation
+    private void setCalcInputs() {
+        calc_set = true;
+        calc_filtertype = filtertype;
+        calc_cutoff = cutoff;
+        calc_resonancedB = resonancedB;
+        calc_wet = wet;
+        calc_q = q;
+        calc_gain = gain;
+    }
+
+    private boolean copySiblingCoefficients() {
+        SoftFilter s = sibling;
+        if (s == null || !s.calc_set || s.dirty
+                || s.calc_filtertype != filtertype
+                || s.calc_cutoff != cutoff
+                || s.calc_resonancedB != resonancedB
+                || s.calc_wet != wet)
+            return false;
+        if (filtertype == FILTERTYPE_LP6) {
+            setCalcInputs();
+            cutoff = s.cutoff;
+            resonancedB = s.resonancedB;
+            a0 = s.a0;
+            q = s.q;
+            gain = s.gain;
+            wet = s.wet;
+            return true;
+        }
+        if (s.calc_q != q || s.calc_gain != gain)
+            return false;
+        setCalcInputs();
+        a0 = s.a0;
+        a1 = s.a1;
+        a2 = s.a2;
+        b1 = s.b1;
+        b2 = s.b2;
+        wet = s.wet;
+        last_a1 = s.last_a1;
+        last_a2 = s.last_a2;
+        last_b1 = s.last_b1;
+        last_b2 = s.last_b2;
+        last_q = s.last_q;
+        last_gain = s.last_gain;
+        last_wet = s.last_wet;
+        return true;
+    }
+
     public void processAudio(SoftAudioBuffer sbuffer) {
+        processAudio(sbuffer, 0, sbuffer.getSize());
+    }
+
+    // Filter len samples starting at offset, parameter changes
+    // are interpolated over that range.
+    public void processAudio(SoftAudioBuffer sbuffer, int offset, int len) {
         if (filtertype == FILTERTYPE_LP6)
-            filter1(sbuffer);
+            filter1(sbuffer, offset, len);
         if (filtertype == FILTERTYPE_LP12)
-            filter2(sbuffer);
+            filter2(sbuffer, offset, len);
         if (filtertype == FILTERTYPE_HP12)
-            filter2(sbuffer);
+            filter2(sbuffer, offset, len);
         if (filtertype == FILTERTYPE_BP12)
-            filter2(sbuffer);
+            filter2(sbuffer, offset, len);
         if (filtertype == FILTERTYPE_NP12)
-            filter2(sbuffer);
+            filter2(sbuffer, offset, len);
         if (filtertype == FILTERTYPE_LP24)
-            filter4(sbuffer);
+            filter4(sbuffer, offset, len);
         if (filtertype == FILTERTYPE_HP24)
-            filter4(sbuffer);
+            filter4(sbuffer, offset, len);
     }
 
     public void filter4(SoftAudioBuffer sbuffer) {
+        filter4(sbuffer, 0, sbuffer.getSize());
+    }
+
+    public void filter4(SoftAudioBuffer sbuffer, int offset, int len) {
 
         float[] buffer = sbuffer.array();
 
         if (dirty) {
-            filter2calc();
+            if (!copySiblingCoefficients()) {
+                setCalcInputs();
+                filter2calc();
+            }
             dirty = false;
         }
         if (!last_set) {
@@ -166,7 +243,7 @@ public final class SoftFilter {
 
         if (wet > 0 || last_wet > 0) {
 
-            int len = buffer.length;
+            int end = offset + len;
             float a0 = this.last_a0;
             float a1 = this.last_a1;
             float a2 = this.last_a2;
@@ -191,7 +268,7 @@ public final class SoftFilter {
             float yy2 = this.yy2;
 
             if (wet_delta != 0) {
-                for (int i = 0; i < len; i++) {
+                for (int i = offset; i < end; i++) {
                     a0 += a0_delta;
                     a1 += a1_delta;
                     a2 += a2_delta;
@@ -215,7 +292,7 @@ public final class SoftFilter {
                 }
             } else if (a0_delta == 0 && a1_delta == 0 && a2_delta == 0
                     && b1_delta == 0 && b2_delta == 0) {
-                for (int i = 0; i < len; i++) {
+                for (int i = offset; i < end; i++) {
                     float x = buffer[i];
                     float y = (a0*x + a1*x1 + a2*x2 - b1*y1 - b2*y2);
                     float xx = (y * gain) * wet + (x) * (1 - wet);
@@ -231,7 +308,7 @@ public final class SoftFilter {
                     yy1 = yy;
                 }
             } else {
-                for (int i = 0; i < len; i++) {
+                for (int i = offset; i < end; i++) {
                     a0 += a0_delta;
                     a1 += a1_delta;
                     a2 += a2_delta;
@@ -302,7 +379,7 @@ public final class SoftFilter {
             if (r > 0.45)
                 r = 0.45;
 
-            double bandwidth = Math.PI * Math.pow(10.0, -(resonancedB / 20));
+            double bandwidth = Math.PI * SoftFastMath.centibelsToGain(-resonancedB * 10);
 
             double omega = 2 * Math.PI * r;
             double cs = Math.cos(omega);
@@ -330,7 +407,7 @@ public final class SoftFilter {
             if (r > 0.45)
                 r = 0.45;
 
-            double bandwidth = Math.PI * Math.pow(10.0, -(resonancedB / 20));
+            double bandwidth = Math.PI * SoftFastMath.centibelsToGain(-resonancedB * 10);
 
             double omega = 2 * Math.PI * r;
             double cs = Math.cos(omega);
@@ -367,7 +444,7 @@ public final class SoftFilter {
 
             double c = 1.0 / (Math.tan(Math.PI * r));
             double csq = c * c;
-            double resonance = Math.pow(10.0, -(resonancedB / 20));
+            double resonance = SoftFastMath.centibelsToGain(-resonancedB * 10);
             double q = Math.sqrt(2.0f) * resonance;
             double a0 = 1.0 / (1.0 + (q * c) + (csq));
             double a1 = 2.0 * a0;
@@ -392,7 +469,7 @@ public final class SoftFilter {
             wet = 1.0f;
             double c = (Math.tan(Math.PI * (r)));
             double csq = c * c;
-            double resonance = Math.pow(10.0, -(resonancedB / 20));
+            double resonance = SoftFastMath.centibelsToGain(-resonancedB * 10);
             double q = Math.sqrt(2.0f) * resonance;
             double a0 = 1.0 / (1.0 + (q * c) + (csq));
             double a1 = -2.0 * a0;
@@ -411,11 +488,18 @@ public final class SoftFilter {
     }
 
     public void filter2(SoftAudioBuffer sbuffer) {
+        filter2(sbuffer, 0, sbuffer.getSize());
+    }
+
+    public void filter2(SoftAudioBuffer sbuffer, int offset, int len) {
 
         float[] buffer = sbuffer.array();
 
         if (dirty) {
-            filter2calc();
+            if (!copySiblingCoefficients()) {
+                setCalcInputs();
+                filter2calc();
+            }
             dirty = false;
         }
         if (!last_set) {
@@ -432,7 +516,7 @@ public final class SoftFilter {
 
         if (wet > 0 || last_wet > 0) {
 
-            int len = buffer.length;
+            int end = offset + len;
             float a0 = this.last_a0;
             float a1 = this.last_a1;
             float a2 = this.last_a2;
@@ -453,7 +537,7 @@ public final class SoftFilter {
             float y2 = this.y2;
 
             if (wet_delta != 0) {
-                for (int i = 0; i < len; i++) {
+                for (int i = offset; i < end; i++) {
                     a0 += a0_delta;
                     a1 += a1_delta;
                     a2 += a2_delta;
@@ -471,7 +555,7 @@ public final class SoftFilter {
                 }
             } else if (a0_delta == 0 && a1_delta == 0 && a2_delta == 0
                     && b1_delta == 0 && b2_delta == 0) {
-                for (int i = 0; i < len; i++) {
+                for (int i = offset; i < end; i++) {
                     float x = buffer[i];
                     float y = (a0*x + a1*x1 + a2*x2 - b1*y1 - b2*y2);
                     buffer[i] = y * gain;
@@ -481,7 +565,7 @@ public final class SoftFilter {
                     y1 = y;
                 }
             } else {
-                for (int i = 0; i < len; i++) {
+                for (int i = offset; i < end; i++) {
                     a0 += a0_delta;
                     a1 += a1_delta;
                     a2 += a2_delta;
@@ -534,17 +618,24 @@ public final class SoftFilter {
             resonancedB = 0;
         if (resonancedB > 20)
             resonancedB = 20;
-        q = (float)(Math.sqrt(0.5) * Math.pow(10.0, -(resonancedB / 20)));
-        gain = (float)Math.pow(10, -((resonancedB)) / 40.0);
+        q = (float)(Math.sqrt(0.5) * SoftFastMath.centibelsToGain(-resonancedB * 10));
+        gain = (float)SoftFastMath.centibelsToGain(-resonancedB * 5);
         if (wet == 0.0f)
             if (resonancedB > 0.00001 || c < 0.9999999)
                 wet = 1.0f;
     }
 
     public void filter1(SoftAudioBuffer sbuffer) {
+        filter1(sbuffer, 0, sbuffer.getSize());
+    }
+
+    public void filter1(SoftAudioBuffer sbuffer, int offset, int len) {
 
         if (dirty) {
-            filter1calc();
+            if (!copySiblingCoefficients()) {
+                setCalcInputs();
+                filter1calc();
+            }
             dirty = false;
         }
         if (!last_set) {
@@ -558,7 +649,7 @@ public final class SoftFilter {
         if (wet > 0 || last_wet > 0) {
 
             float[] buffer = sbuffer.array();
-            int len = buffer.length;
+            int end = offset + len;
             float a0 = this.last_a0;
             float q = this.last_q;
             float gain = this.last_gain;
@@ -571,7 +662,7 @@ public final class SoftFilter {
             float y1 = this.y1;
 
             if (wet_delta != 0) {
-                for (int i = 0; i < len; i++) {
+                for (int i = offset; i < end; i++) {
                     a0 += a0_delta;
                     q += q_delta;
                     gain += gain_delta;
@@ -583,13 +674,13 @@ public final class SoftFilter {
                 }
             } else if (a0_delta == 0 && q_delta == 0) {
                 float ga0 = (1 - q * a0);
-                for (int i = 0; i < len; i++) {
+                for (int i = offset; i < end; i++) {
                     y1 = ga0 * y1 + (a0) * (buffer[i] - y2);
                     y2 = ga0 * y2 + (a0) * y1;
                     buffer[i] = y2 * gain;
                 }
             } else {
-                for (int i = 0; i < len; i++) {
+                for (int i = offset; i < end; i++) {
                     a0 += a0_delta;
                     q += q_delta;
                     gain += gain_delta;
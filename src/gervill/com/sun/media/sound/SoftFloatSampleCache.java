@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2007, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package gervill.com.sun.media.sound;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import gervill.javax.sound.sampled.AudioFormat;
+
+/**
+ * A process-wide cache of sample data decoded to float.
+ * Entries are keyed by ModelByteBuffer root and range, and the least
+ * recently used entries are evicted when the cache exceeds its capacity.
+ * The capacity is the sum of what the open synthesizers have reserved.
+ * Samples are decoded on a background thread, a lookup that misses only
+ * requests the sample and never decodes on the calling thread.
+ */
+public final class SoftFloatSampleCache {
+
+    // Zero frames before and after each channel of an entry, so that the
+    // resamplers can read around any position without bounds checks
+    static final int PADDING = 32;
+
+    // Keys only weakly reference the sample data, entries of samples
+    // that are no longer used anywhere are dropped from the cache
+    private static final ReferenceQueue<Object> queue
+            = new ReferenceQueue<Object>();
+
+    static final class Key extends WeakReference<Object> {
+
+        // Loaded data is keyed by array, so that roots sharing an array
+        // through ModelByteBufferRegistry also share cache entries
+        private final long offset;
+        private final long len;
+        private final WeakReference<Object> root8;
+        private final long offset8;
+        private final AudioFormat.Encoding encoding;
+        private final int bits;
+        private final int channels;
+        private final boolean bigendian;
+        private final int hash;
+
+        Key(ModelByteBuffer buffer, ModelByteBuffer buffer8,
+                AudioFormat format) {
+            super(getIdentity(buffer), queue);
+            offset = buffer.arrayOffset();
+            len = buffer.capacity();
+            root8 = buffer8 == null ? null
+                    : new WeakReference<Object>(getIdentity(buffer8));
+            offset8 = buffer8 == null ? 0 : buffer8.arrayOffset();
+            encoding = format.getEncoding();
+            bits = format.getSampleSizeInBits();
+            channels = format.getChannels();
+            bigendian = format.isBigEndian();
+            int h = System.identityHashCode(get());
+            h = h * 31 + (int)(offset ^ (offset >>> 32));
+            h = h * 31 + (int)(len ^ (len >>> 32));
+            h = h * 31 + System.identityHashCode(
+                    buffer8 == null ? null : getIdentity(buffer8));
+            h = h * 31 + (int)(offset8 ^ (offset8 >>> 32));
+            hash = h;
+        }
+
+        private static Object getIdentity(ModelByteBuffer buffer) {
+            if (buffer.array() != null)
+                return buffer.array();
+            return buffer.getRoot();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key k = (Key)obj;
+            Object root = get();
+            if (root == null || root != k.get())
+                return false;
+            if ((root8 == null) != (k.root8 == null))
+                return false;
+            if (root8 != null && (root8.get() == null
+                    || root8.get() != k.root8.get()))
+                return false;
+            return offset == k.offset && len == k.len
+                    && offset8 == k.offset8
+                    && encoding.equals(k.encoding) && bits == k.bits
+                    && channels == k.channels && bigendian == k.bigendian;
+        }
+    }
+
+    static final class Entry {
+
+        final AudioFormat format;
+        // One padded array per channel
+        final float[][] data;
+        final int frames;
+
+        Entry(AudioFormat format, float[][] data, int frames) {
+            this.format = format;
+            this.data = data;
+            this.frames = frames;
+        }
+
+        long getBytes() {
+            return (long)data.length * data[0].length * 4L;
+        }
+    }
+
+    private static final Map<Key, Entry> entries
+            = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    // Wavetables waiting to be decoded by the filler thread
+    private static final ArrayDeque<ModelByteBufferWavetable> requests
+            = new ArrayDeque<ModelByteBufferWavetable>();
+    private static Thread filler = null;
+    private static long capacity = 0;
+    private static long size = 0;
+    private static long hits = 0;
+    private static long misses = 0;
+    private static long evictions = 0;
+
+    private SoftFloatSampleCache() {
+    }
+
+    // Adds bytes to the capacity, called when a synthesizer opens
+    static synchronized void reserve(long bytes) {
+        if (bytes <= 0)
+            return;
+        capacity += bytes;
+        if (filler == null) {
+            // Started after assignment, it runs while it is the filler
+            filler = JSSecurityManager.createThread(new Runnable() {
+                @Override
+                public void run() {
+                    fill();
+                }
+            }, "Gervill Sample Cache Filler", true, -1, false);
+            filler.start();
+        }
+    }
+
+    // Returns bytes reserved by a synthesizer that closes, the cache is
+    // cleared and its thread stopped when nothing is reserved
+    static synchronized void release(long bytes) {
+        if (bytes <= 0)
+            return;
+        capacity = Math.max(0, capacity - bytes);
+        if (capacity == 0) {
+            clear();
+            filler = null;
+            SoftFloatSampleCache.class.notifyAll();
+        } else {
+            evict();
+        }
+    }
+
+    public static synchronized long getCapacity() {
+        return capacity;
+    }
+
+    public static synchronized long getSize() {
+        return size;
+    }
+
+    public static synchronized long getHitCount() {
+        return hits;
+    }
+
+    public static synchronized long getMissCount() {
+        return misses;
+    }
+
+    public static synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public static synchronized void clear() {
+        entries.clear();
+        for (ModelByteBufferWavetable w : requests)
+            w.cache_requested = false;
+        requests.clear();
+        size = 0;
+    }
+
+    // Returns true if a sample of this many floats can be cached
+    static synchronized boolean fits(long samples) {
+        return samples * 4 <= capacity;
+    }
+
+    static synchronized Entry get(Key key) {
+        expunge();
+        Entry entry = entries.get(key);
+        if (entry == null)
+            misses++;
+        else
+            hits++;
+        return entry;
+    }
+
+    static synchronized void put(Key key, Entry entry) {
+        long bytes = entry.getBytes();
+        if (bytes > capacity)
+            return;
+        Entry old = entries.put(key, entry);
+        if (old != null)
+            size -= old.getBytes();
+        size += bytes;
+        evict();
+    }
+
+    // Asks the filler thread to decode the sample of wavetable,
+    // does nothing if it is already cached or requested
+    static synchronized void request(ModelByteBufferWavetable wavetable) {
+        if (filler == null || wavetable.cache_requested)
+            return;
+        wavetable.cache_requested = true;
+        requests.add(wavetable);
+        SoftFloatSampleCache.class.notifyAll();
+    }
+
+    private static void fill() {
+        while (true) {
+            ModelByteBufferWavetable wavetable;
+            synchronized (SoftFloatSampleCache.class) {
+                while (filler == Thread.currentThread()
+                        && requests.isEmpty()) {
+                    try {
+                        SoftFloatSampleCache.class.wait();
+                    } catch (InterruptedException e) {
+                        //e.printStackTrace();
+                    }
+                }
+                if (filler != Thread.currentThread())
+                    return;
+                wavetable = requests.poll();
+            }
+            Key key = wavetable.getCacheKey();
+            if (key != null && !contains(key)) {
+                Entry entry = wavetable.decodeCacheEntry();
+                if (entry != null)
+                    put(key, entry);
+            }
+            synchronized (SoftFloatSampleCache.class) {
+                wavetable.cache_requested = false;
+            }
+        }
+    }
+
+    private static synchronized boolean contains(Key key) {
+        return entries.containsKey(key);
+    }
+
+    // Drops entries whose sample data has been garbage collected
+    private static void expunge() {
+        Object ref;
+        while ((ref = queue.poll()) != null) {
+            Entry entry = entries.remove(ref);
+            if (entry != null)
+                size -= entry.getBytes();
+        }
+    }
+
+    private static void evict() {
+        expunge();
+        Iterator<Entry> iter = entries.values().iterator();
+        while (size > capacity && iter.hasNext()) {
+            Entry entry = iter.next();
+            iter.remove();
+            size -= entry.getBytes();
+            evictions++;
+        }
+    }
+}
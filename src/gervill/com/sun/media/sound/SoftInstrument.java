@@ -77,11 +77,10 @@ public final class SoftInstrument extends Instrument {
         return data;
     }
 
-    /* am: currently getPerformers() is not used (replaced with getPerformer(int))
     public SoftPerformer[] getPerformers() {
         return performers;
     }
-    */
+
     public SoftPerformer getPerformer(int index) {
         return performers[index];
     }
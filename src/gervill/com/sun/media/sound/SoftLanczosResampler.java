@@ -31,18 +31,33 @@ package gervill.com.sun.media.sound;
  */
 public final class SoftLanczosResampler extends SoftAbstractResampler {
 
-    float[][] sinc_table;
-    int sinc_table_fsize = 2000;
-    int sinc_table_size = 5;
-    int sinc_table_center = sinc_table_size / 2;
+    // The table is built by the first constructor and shared by all
+    // resamplers, so it is never built on the audio thread,
+    // the points of each phase are stored one after another
+    private static final class TableHolder {
+        static final float[] table = buildTable();
+    }
+
+    static final int sinc_table_fsize = 2000;
+    // interpolate is unrolled for this size
+    static final int sinc_table_size = 5;
+    static final int sinc_table_center = sinc_table_size / 2;
+
+    private final float[] sinc_table;
 
     public SoftLanczosResampler() {
         super();
-        sinc_table = new float[sinc_table_fsize][];
+        sinc_table = TableHolder.table;
+    }
+
+    private static float[] buildTable() {
+        float[] sinc_table = new float[sinc_table_fsize * sinc_table_size];
         for (int i = 0; i < sinc_table_fsize; i++) {
-            sinc_table[i] = sincTable(sinc_table_size, -i
-                            / ((float) sinc_table_fsize));
+            System.arraycopy(sincTable(sinc_table_size, -i
+                            / ((float) sinc_table_fsize)), 0,
+                    sinc_table, i * sinc_table_size, sinc_table_size);
         }
+        return sinc_table;
     }
 
     // Normalized sinc function
@@ -88,25 +103,25 @@ public final class SoftLanczosResampler extends SoftAbstractResampler {
         if (pitchstep == 0) {
             while (ix < ix_end && ox < ox_end) {
                 int iix = (int) ix;
-                float[] sinc_table
-                        = this.sinc_table[(int) ((ix - iix) * sinc_table_fsize)];
+                int t = (int) ((ix - iix) * sinc_table_fsize) * sinc_table_size;
                 int xx = iix - sinc_table_center;
-                float y = 0;
-                for (int i = 0; i < sinc_table_size; i++, xx++)
-                    y += in[xx] * sinc_table[i];
-                out[ox++] = y;
+                out[ox++] = in[xx] * sinc_table[t]
+                        + in[xx + 1] * sinc_table[t + 1]
+                        + in[xx + 2] * sinc_table[t + 2]
+                        + in[xx + 3] * sinc_table[t + 3]
+                        + in[xx + 4] * sinc_table[t + 4];
                 ix += pitch;
             }
         } else {
             while (ix < ix_end && ox < ox_end) {
                 int iix = (int) ix;
-                float[] sinc_table
-                        = this.sinc_table[(int) ((ix - iix) * sinc_table_fsize)];
+                int t = (int) ((ix - iix) * sinc_table_fsize) * sinc_table_size;
                 int xx = iix - sinc_table_center;
-                float y = 0;
-                for (int i = 0; i < sinc_table_size; i++, xx++)
-                    y += in[xx] * sinc_table[i];
-                out[ox++] = y;
+                out[ox++] = in[xx] * sinc_table[t]
+                        + in[xx + 1] * sinc_table[t + 1]
+                        + in[xx + 2] * sinc_table[t + 2]
+                        + in[xx + 3] * sinc_table[t + 3]
+                        + in[xx + 4] * sinc_table[t + 4];
 
                 ix += pitch;
                 pitch += pitchstep;
@@ -117,4 +132,15 @@ public final class SoftLanczosResampler extends SoftAbstractResampler {
         startpitch[0] = pitch;
 
     }
+
+    @Override
+    float interpolatePoint(float[] in, int ix, float fix, float pitch) {
+        int t = (int) (fix * sinc_table_fsize) * sinc_table_size;
+        int xx = ix - sinc_table_center;
+        return in[xx] * sinc_table[t]
+                + in[xx + 1] * sinc_table[t + 1]
+                + in[xx + 2] * sinc_table[t + 2]
+                + in[xx + 3] * sinc_table[t + 3]
+                + in[xx + 4] * sinc_table[t + 4];
+    }
 }
@@ -69,4 +69,10 @@ public final class SoftLinearResampler extends SoftAbstractResampler {
         startpitch[0] = pitch;
 
     }
+
+    @Override
+    float interpolatePoint(float[] in, int ix, float fix, float pitch) {
+        float i = in[ix];
+        return i + (in[ix + 1] - i) * fix;
+    }
 }
@@ -107,4 +107,10 @@ public final class SoftLinearResampler2 extends SoftAbstractResampler {
         startpitch[0] = pitch;
 
     }
+
+    @Override
+    float interpolatePoint(float[] in, int ix, float fix, float pitch) {
+        float i = in[ix];
+        return i + (in[ix + 1] - i) * fix;
+    }
 }
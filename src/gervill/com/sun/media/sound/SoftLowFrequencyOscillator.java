@@ -37,6 +37,8 @@ public final class SoftLowFrequencyOscillator implements SoftProcess {
     private final double[][] delay = new double[max_count][1];
     private final double[][] delay2 = new double[max_count][1];
     private final double[][] freq = new double[max_count][1];
+    // Variables in SoftPerformer.CONTROL_VARIABLES order
+    private final double[][][] slots = {out, delay, delay2, freq};
     private final int[] delay_counter = new int[max_count];
     private final double[] sin_phase = new double[max_count];
     private final double[] sin_stepfreq = new double[max_count];
@@ -73,8 +75,8 @@ public final class SoftLowFrequencyOscillator implements SoftProcess {
         control_time = 1.0 / synth.getControlRate();
         sin_factor = control_time * 2 * Math.PI;
         for (int i = 0; i < used_count; i++) {
-            delay_counter[i] = (int)(Math.pow(2,
-                    this.delay[i][0] / 1200.0) / control_time);
+            delay_counter[i] = (int)(SoftFastMath.centsToRatio(
+                    this.delay[i][0]) / control_time);
             delay_counter[i] += (int)(delay2[i][0] / (control_time * 1000));
         }
         processControlLogic();
@@ -91,8 +93,7 @@ public final class SoftLowFrequencyOscillator implements SoftProcess {
 
                 if (sin_stepfreq[i] != f) {
                     sin_stepfreq[i] = f;
-                    double fr = 440.0 * Math.exp(
-                            (f - 6900.0) * (Math.log(2) / 1200.0));
+                    double fr = 440.0 * SoftFastMath.centsToRatio(f - 6900.0);
                     sin_step[i] = fr * sin_factor;
                 }
                 /*
@@ -110,7 +111,7 @@ public final class SoftLowFrequencyOscillator implements SoftProcess {
                 p += sin_step[i];
                 while (p > PI2)
                     p -= PI2;
-                out[i][0] = 0.5 + Math.sin(p) * 0.5;
+                out[i][0] = 0.5 + SoftFastMath.sin(p) * 0.5;
                 sin_phase[i] = p;
 
             }
@@ -131,4 +132,10 @@ public final class SoftLowFrequencyOscillator implements SoftProcess {
             return freq[instance];
         return null;
     }
+
+    double[] get(int instance, int variable) {
+        if (instance >= used_count)
+            used_count = instance + 1;
+        return slots[variable][instance];
+    }
 }
@@ -27,10 +27,7 @@ package gervill.com.sun.media.sound;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.Map.Entry;
 
 import gervill.javax.sound.midi.MidiMessage;
 import gervill.javax.sound.midi.Patch;
@@ -69,7 +66,7 @@ public final class SoftMainMixer {
     public final static int CHANNEL_SCRATCH2 = 13;
     boolean active_sensing_on = false;
     private long msec_last_activity = -1;
-    private boolean pusher_silent = false;
+    private volatile boolean pusher_silent = false;
     private int pusher_silent_count = 0;
     private long sample_pos = 0;
     boolean readfully = true;
@@ -84,7 +81,9 @@ public final class SoftMainMixer {
     private final SoftAudioProcessor agc;
     private long msec_buffer_len = 0;
     private int buffer_len = 0;
-    TreeMap<Long, Object> midimessages = new TreeMap<Long, Object>();
+    final SoftMidiEventQueue midimessages = new SoftMidiEventQueue();
+    // Messages sent by receivers, drained on each control block
+    final SoftMidiIngress ingress = new SoftMidiIngress(4096);
     private int delay_midievent = 0;
     private int max_delay_midievent = 0;
     double last_volume_left = 1.0;
@@ -93,10 +92,18 @@ public final class SoftMainMixer {
     private final double[] co_master_volume = new double[1];
     private final double[] co_master_coarse_tuning = new double[1];
     private final double[] co_master_fine_tuning = new double[1];
+    // Variables in SoftPerformer.CONTROL_VARIABLES order
+    final double[][] co_master_slots = {co_master_balance, co_master_volume,
+            co_master_coarse_tuning, co_master_fine_tuning};
     private final AudioInputStream ais;
     private Set<SoftChannelMixerContainer> registeredMixers = null;
     private Set<ModelChannelMixer> stoppedMixers = null;
     private SoftChannelMixerContainer[] cur_registeredMixers = null;
+    private SoftVoiceRenderer renderer = null;
+    private SoftVoice[] render_voices = null;
+    // Active voices in voice order, collected on each control block
+    private SoftVoice[] active_voices = null;
+    private int active_count = 0;
     SoftControl co_master = new SoftControl() {
 
         final double[] balance = co_master_balance;
@@ -291,10 +298,11 @@ public final class SoftMainMixer {
                                     data[5] & 0xFF));
                             tuning.load(data);
                             SoftVoice[] voices = synth.getVoices();
-                            for (int i = 0; i < voices.length; i++)
-                                if (voices[i].active)
-                                    if (voices[i].tuning == tuning)
-                                        voices[i].updateTuning(tuning);
+                            SoftVoiceIndex voiceindex = synth.getVoiceIndex();
+                            for (int i = voiceindex.nextActive(0); i != -1;
+                                    i = voiceindex.nextActive(i + 1))
+                                if (voices[i].tuning == tuning)
+                                    voices[i].updateTuning(tuning);
                             break;
                         }
                         case 0x07:  // SINGLE NOTE TUNING CHANGE (REAL-TIME)
@@ -305,10 +313,11 @@ public final class SoftMainMixer {
                                     data[5] & 0xFF, data[6] & 0xFF));
                             tuning.load(data);
                             SoftVoice[] voices = synth.getVoices();
-                            for (int i = 0; i < voices.length; i++)
-                                if (voices[i].active)
-                                    if (voices[i].tuning == tuning)
-                                        voices[i].updateTuning(tuning);
+                            SoftVoiceIndex voiceindex = synth.getVoiceIndex();
+                            for (int i = voiceindex.nextActive(0); i != -1;
+                                    i = voiceindex.nextActive(i + 1))
+                                if (voices[i].tuning == tuning)
+                                    voices[i].updateTuning(tuning);
                             break;
                         }
                         case 0x08:  // scale/octave tuning 1-byte form
@@ -325,10 +334,11 @@ public final class SoftMainMixer {
                                 if ((channelmask & (1 << i)) != 0)
                                     channels[i].tuning = tuning;
                             SoftVoice[] voices = synth.getVoices();
-                            for (int i = 0; i < voices.length; i++)
-                                if (voices[i].active)
-                                    if ((channelmask & (1 << (voices[i].channel))) != 0)
-                                        voices[i].updateTuning(tuning);
+                            SoftVoiceIndex voiceindex = synth.getVoiceIndex();
+                            for (int i = voiceindex.nextActive(0); i != -1;
+                                    i = voiceindex.nextActive(i + 1))
+                                if ((channelmask & (1 << (voices[i].channel))) != 0)
+                                    voices[i].updateTuning(tuning);
                             break;
                         }
                         default:
@@ -422,23 +432,96 @@ public final class SoftMainMixer {
     }
 
     private void processMessages(long timeStamp) {
-        Iterator<Entry<Long, Object>> iter = midimessages.entrySet().iterator();
-        while (iter.hasNext()) {
-            Entry<Long, Object> entry = iter.next();
-            if (entry.getKey() >= (timeStamp + msec_buffer_len))
+        processMessages(timeStamp, Integer.MAX_VALUE);
+    }
+
+    // Process messages of the block starting at timeStamp,
+    // up to sample offset max_delay within the block.
+    private void processMessages(long timeStamp, int max_delay) {
+        while (!midimessages.isEmpty()) {
+            long msec_time = midimessages.peekTime();
+            if (msec_time >= (timeStamp + msec_buffer_len))
                 return;
-            long msec_delay = entry.getKey() - timeStamp;
+            long msec_delay = msec_time - timeStamp;
             delay_midievent = (int)(msec_delay * (samplerate / 1000000.0) + 0.5);
             if(delay_midievent > max_delay_midievent)
                 delay_midievent = max_delay_midievent;
             if(delay_midievent < 0)
                 delay_midievent = 0;
-            processMessage(entry.getValue());
-            iter.remove();
+            if (delay_midievent >= max_delay)
+                break;
+            midimessages.poll();
+            Object object = midimessages.polled_object;
+            midimessages.polled_object = null;
+            processMessage(midimessages.polled_message, object);
         }
         delay_midievent = 0;
     }
 
+    // Returns the sample offset of the next message
+    // in the block starting at timeStamp, or -1 if none.
+    private int nextMessageOffset(long timeStamp) {
+        if (midimessages.isEmpty())
+            return -1;
+        long msec_time = midimessages.peekTime();
+        if (msec_time >= (timeStamp + msec_buffer_len))
+            return -1;
+        int offset = (int)((msec_time - timeStamp)
+                * (samplerate / 1000000.0) + 0.5);
+        if (offset >= buffer_len)
+            return -1;
+        return offset < 0 ? 0 : offset;
+    }
+
+    // Render voices in segments split at the sample offsets of the
+    // messages queued for this block, processing them in between.
+    // Envelopes and LFOs still advance once per control block.
+    private void processSegments(long msec_pos) {
+        int min_split = synth.min_event_split;
+        for (int i = 0; i < active_count; i++)
+            if (active_voices[i].active)
+                if (active_voices[i].channelmixer == null)
+                    active_voices[i].beginSegments();
+        while (true) {
+            int split_pos;
+            synchronized (control_mutex) {
+                split_pos = nextMessageOffset(msec_pos);
+            }
+            boolean last = split_pos == -1;
+            for (int i = 0; i < active_count; i++)
+                if (active_voices[i].active)
+                    if (active_voices[i].channelmixer == null)
+                        active_voices[i].processSegment(buffers, split_pos,
+                                last);
+            if (last)
+                return;
+            synchronized (control_mutex) {
+                processMessages(msec_pos, split_pos + min_split);
+                SoftVoiceIndex voiceindex = synth.getVoiceIndex();
+                active_count = 0;
+                for (int i = voiceindex.nextActive(0); i != -1;
+                        i = voiceindex.nextActive(i + 1)) {
+                    SoftVoice voice = voicestatus[i];
+                    if (voice.channelmixer == null)
+                        voice.splitControlLogic(buffer_len);
+                    active_voices[active_count++] = voice;
+                }
+            }
+        }
+    }
+
+    // Whether voices routed to channelmixer are mixed in this block.
+    private static boolean isMixed(SoftChannelMixerContainer[] mixers,
+            ModelChannelMixer channelmixer) {
+        if (channelmixer == null)
+            return true;
+        if (mixers != null)
+            for (SoftChannelMixerContainer cmixer : mixers)
+                if (cmixer.mixer == channelmixer)
+                    return true;
+        return false;
+    }
+
     void processAudioBuffers() {
 
         if(synth.weakstream != null && synth.weakstream.silent_samples != 0)
@@ -481,13 +564,23 @@ public final class SoftMainMixer {
         double volume_right;
 
         SoftChannelMixerContainer[] act_registeredMixers;
+        long msec_pos;
+        boolean split_events = false;
 
         // perform control logic
         synchronized (control_mutex) {
 
-            long msec_pos = (long)(sample_pos * (1000000.0 / samplerate));
+            msec_pos = (long)(sample_pos * (1000000.0 / samplerate));
 
-            processMessages(msec_pos);
+            processIngress();
+            if (synth.sample_accurate_events) {
+                // Messages further into the block are processed
+                // at their offsets by processSegments
+                processMessages(msec_pos, synth.min_event_split);
+                split_events = nextMessageOffset(msec_pos) != -1;
+            } else {
+                processMessages(msec_pos);
+            }
 
             if (active_sensing_on) {
                 // Active Sensing
@@ -501,9 +594,14 @@ public final class SoftMainMixer {
 
             }
 
-            for (int i = 0; i < voicestatus.length; i++)
-                if (voicestatus[i].active)
-                    voicestatus[i].processControlLogic();
+            SoftVoiceIndex voiceindex = synth.getVoiceIndex();
+            for (int i = voiceindex.nextActive(0); i != -1;
+                    i = voiceindex.nextActive(i + 1))
+                voicestatus[i].processControlLogic();
+            active_count = 0;
+            for (int i = voiceindex.nextActive(0); i != -1;
+                    i = voiceindex.nextActive(i + 1))
+                active_voices[active_count++] = voicestatus[i];
             sample_pos += buffer_len;
 
             double volume = co_master_volume[0];
@@ -532,7 +630,21 @@ public final class SoftMainMixer {
             if (act_registeredMixers != null)
                 if (act_registeredMixers.length == 0)
                     act_registeredMixers = null;
+        }
 
+        if (renderer != null && !split_events) {
+            // Render oscillators and filters in parallel,
+            // mixing is still done below in voice order.
+            // Only voices that are mixed below are rendered, so the
+            // oscillator of a skipped voice is not advanced.
+            int render_count = 0;
+            for (int i = 0; i < active_count; i++) {
+                SoftVoice voice = active_voices[i];
+                if (voice.active && voice.isAudioStarted()
+                        && isMixed(act_registeredMixers, voice.channelmixer))
+                    render_voices[render_count++] = voice;
+            }
+            renderer.render(render_voices, render_count, buffer_len);
         }
 
         if (act_registeredMixers != null) {
@@ -586,10 +698,10 @@ public final class SoftMainMixer {
                     cbuffer[1] = buffers[CHANNEL_RIGHT].array();
 
                 boolean hasactivevoices = false;
-                for (int i = 0; i < voicestatus.length; i++)
-                    if (voicestatus[i].active)
-                        if (voicestatus[i].channelmixer == cmixer.mixer) {
-                            voicestatus[i].processAudioLogic(buffers);
+                for (int i = 0; i < active_count; i++)
+                    if (active_voices[i].active)
+                        if (active_voices[i].channelmixer == cmixer.mixer) {
+                            active_voices[i].processAudioLogic(buffers);
                             hasactivevoices = true;
                         }
 
@@ -649,10 +761,14 @@ public final class SoftMainMixer {
 
         }
 
-        for (int i = 0; i < voicestatus.length; i++)
-            if (voicestatus[i].active)
-                if (voicestatus[i].channelmixer == null)
-                    voicestatus[i].processAudioLogic(buffers);
+        if (split_events) {
+            processSegments(msec_pos);
+        } else {
+            for (int i = 0; i < active_count; i++)
+                if (active_voices[i].active)
+                    if (active_voices[i].channelmixer == null)
+                        active_voices[i].processAudioLogic(buffers);
+        }
 
         if(!buffers[CHANNEL_MONO].isSilent())
         {
@@ -745,7 +861,11 @@ public final class SoftMainMixer {
                     pusher_silent_count = 0;
                     synchronized (control_mutex) {
                         pusher_silent = true;
-                        if(synth.weakstream != null)
+                        // A receiver may have queued a message before
+                        // it could see pusher_silent.
+                        if (!ingress.isEmpty())
+                            pusher_silent = false;
+                        else if(synth.weakstream != null)
                             synth.weakstream.setInputStream(null);
                     }
                 }
@@ -759,6 +879,45 @@ public final class SoftMainMixer {
 
     }
 
+    // Must only we called within control_mutex synchronization
+    void processIngress() {
+        while (ingress.poll()) {
+            Object object = ingress.polled_object;
+            ingress.polled_object = null;
+            processIngressMessage(ingress.polled_timestamp,
+                    ingress.polled_message, object);
+        }
+    }
+
+    // Must only we called within control_mutex synchronization
+    void processIngressMessage(long timeStamp, int message, Object object) {
+        if (timeStamp != -1) {
+            activity();
+            midimessages.add(timeStamp, message, object);
+        } else {
+            processMessage(message, object);
+        }
+    }
+
+    // Process a packed short message, or object if it isn't null
+    private void processMessage(int message, Object object) {
+        if (object != null)
+            processMessage(object);
+        else
+            processMessage(message & 0x0F, message & 0xF0,
+                    (message >> 8) & 0xFF, (message >> 16) & 0xFF);
+    }
+
+    // Called by receivers after a message has been queued,
+    // wakes up the audio stream if it has gone silent.
+    void ingressOffered() {
+        if (pusher_silent) {
+            synchronized (control_mutex) {
+                activity();
+            }
+        }
+    }
+
     // Must only we called within control_mutex synchronization
     public void activity()
     {
@@ -823,6 +982,12 @@ public final class SoftMainMixer {
             buffers[i] = new SoftAudioBuffer(buffersize, synth.getFormat());
         }
         voicestatus = synth.getVoices();
+        active_voices = new SoftVoice[voicestatus.length];
+
+        if (synth.render_threads > 1) {
+            renderer = new SoftVoiceRenderer(synth.render_threads);
+            render_voices = new SoftVoice[voicestatus.length];
+        }
 
         reverb = new SoftReverb();
         chorus = new SoftChorus();
@@ -1146,5 +1311,9 @@ public final class SoftMainMixer {
     }
 
     public void close() {
+        if (renderer != null) {
+            renderer.close();
+            renderer = null;
+        }
     }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2007, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package gervill.com.sun.media.sound;
+
+/**
+ * Time ordered queue of MIDI messages, a binary min-heap kept in
+ * primitive arrays. Short messages are stored packed into an int
+ * (status | data1 << 8 | data2 << 16), other messages as objects.
+ * Messages with equal time stamps are returned in the order they were
+ * added. Adding and polling don't allocate once the arrays have grown
+ * to the working size.
+ * Must only be used within control_mutex synchronization.
+ */
+public final class SoftMidiEventQueue {
+
+    private long[] times = new long[256];
+    private long[] orders = new long[256];
+    private int[] messages = new int[256];
+    private Object[] objects = new Object[256];
+    private int size = 0;
+    private long order = 0;
+
+    // Last message returned by poll
+    int polled_message;
+    Object polled_object;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the time stamp of the first message,
+     * the queue must not be empty.
+     */
+    public long peekTime() {
+        return times[0];
+    }
+
+    public void add(long time, int message, Object object) {
+        if (size == times.length)
+            grow();
+        int i = size++;
+        long o = order++;
+        // Sift up
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (times[parent] < time
+                    || (times[parent] == time && orders[parent] < o))
+                break;
+            move(parent, i);
+            i = parent;
+        }
+        times[i] = time;
+        orders[i] = o;
+        messages[i] = message;
+        objects[i] = object;
+    }
+
+    /**
+     * Takes the first message into the polled fields,
+     * returns false if the queue is empty.
+     */
+    boolean poll() {
+        if (size == 0)
+            return false;
+        polled_message = messages[0];
+        polled_object = objects[0];
+
+        int last = --size;
+        long time = times[last];
+        long o = orders[last];
+        int message = messages[last];
+        Object object = objects[last];
+        objects[last] = null;
+        if (last == 0)
+            return true;
+
+        // Sift down
+        int i = 0;
+        int half = last >> 1;
+        while (i < half) {
+            int child = (i << 1) + 1;
+            int right = child + 1;
+            if (right < last && (times[right] < times[child]
+                    || (times[right] == times[child]
+                        && orders[right] < orders[child])))
+                child = right;
+            if (time < times[child]
+                    || (time == times[child] && o < orders[child]))
+                break;
+            move(child, i);
+            i = child;
+        }
+        times[i] = time;
+        orders[i] = o;
+        messages[i] = message;
+        objects[i] = object;
+        return true;
+    }
+
+    private void move(int from, int to) {
+        times[to] = times[from];
+        orders[to] = orders[from];
+        messages[to] = messages[from];
+        objects[to] = objects[from];
+    }
+
+    private void grow() {
+        int newlen = times.length * 2;
+        long[] newtimes = new long[newlen];
+        long[] neworders = new long[newlen];
+        int[] newmessages = new int[newlen];
+        Object[] newobjects = new Object[newlen];
+        System.arraycopy(times, 0, newtimes, 0, size);
+        System.arraycopy(orders, 0, neworders, 0, size);
+        System.arraycopy(messages, 0, newmessages, 0, size);
+        System.arraycopy(objects, 0, newobjects, 0, size);
+        times = newtimes;
+        orders = neworders;
+        messages = newmessages;
+        objects = newobjects;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2007, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package gervill.com.sun.media.sound;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer, single-consumer ring of MIDI messages.
+ * Receivers append to it without taking control_mutex, the main mixer
+ * drains it at every control block boundary.
+ * Short messages are packed into an int (status | data1 << 8 |
+ * data2 << 16), other messages are kept as objects.
+ * poll must only be called within control_mutex synchronization.
+ */
+public final class SoftMidiIngress {
+
+    private final int mask;
+    private final AtomicLongArray sequence;
+    private final AtomicLong tail = new AtomicLong();
+    private final long[] timestamps;
+    private final int[] messages;
+    private final Object[] objects;
+    private long head = 0;
+
+    // Last message returned by poll
+    long polled_timestamp;
+    int polled_message;
+    Object polled_object;
+
+    public SoftMidiIngress(int capacity) {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        mask = size - 1;
+        sequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequence.set(i, i);
+        timestamps = new long[size];
+        messages = new int[size];
+        objects = new Object[size];
+    }
+
+    /**
+     * Appends a message, returns false if the ring is full.
+     *
+     * @param timestamp time stamp in microseconds, or -1
+     * @param message packed short message, used when object is null
+     * @param object byte[] or MidiMessage to deliver, or null
+     */
+    public boolean offer(long timestamp, int message, Object object) {
+        while (true) {
+            long pos = tail.get();
+            int slot = (int) pos & mask;
+            long seq = sequence.get(slot);
+            if (seq < pos)
+                return false; // Full
+            if (seq == pos && tail.compareAndSet(pos, pos + 1)) {
+                timestamps[slot] = timestamp;
+                messages[slot] = message;
+                objects[slot] = object;
+                sequence.set(slot, pos + 1);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest message into the polled fields,
+     * returns false if no message is ready.
+     */
+    boolean poll() {
+        int slot = (int) head & mask;
+        if (sequence.get(slot) != head + 1)
+            return false;
+        polled_timestamp = timestamps[slot];
+        polled_message = messages[slot];
+        polled_object = objects[slot];
+        objects[slot] = null;
+        sequence.set(slot, head + mask + 1);
+        head++;
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return sequence.get((int) head & mask) != head + 1;
+    }
+}
@@ -316,6 +316,119 @@ public final class SoftPerformer {
     public int[][] midi_connections;
     public int[] ctrl_connections;
     private final List<Integer> ctrl_connections_list = new ArrayList<Integer>();
+    // Compiled slot of each connection source and destination
+    public int[][] connections_src_slot;
+    public int[] connections_dst_slot;
+    // Key-based controller of each connection source
+    public int[][] connections_src_kc;
+    // Transforms of each connection, curves are replaced with tables
+    public ModelTransform[][] connections_src_transform;
+    public ModelTransform[] connections_dst_transform;
+
+    /*
+     * A control slot packs a control object, an instance and a variable
+     * into one int, -1 is used for slots that don't resolve to anything.
+     * Variables are indexes into CONTROL_VARIABLES, midi_cc, midi_rpn and
+     * midi_nrpn use the controller number instead.
+     */
+    static final int CONTROL_MASTER = 0;
+    static final int CONTROL_EG = 1;
+    static final int CONTROL_LFO = 2;
+    static final int CONTROL_NOTEON = 3;
+    static final int CONTROL_OSC = 4;
+    static final int CONTROL_MIXER = 5;
+    static final int CONTROL_FILTER = 6;
+    static final int CONTROL_MIDI = 7;
+    static final int CONTROL_MIDI_CC = 8;
+    static final int CONTROL_MIDI_RPN = 9;
+    static final int CONTROL_MIDI_NRPN = 10;
+
+    private static final String[] CONTROL_OBJECTS = {"master", "eg", "lfo",
+            "noteon", "osc", "mixer", "filter", "midi", "midi_cc", "midi_rpn",
+            "midi_nrpn"};
+
+    static final String[][] CONTROL_VARIABLES = {
+        {"balance", "volume", "coarse_tuning", "fine_tuning"},
+        {null, "on", "active", "delay", "attack", "hold", "decay", "sustain",
+                "release", "shutdown", "attack2", "decay2", "release2"},
+        {null, "delay", "delay2", "freq"},
+        {"keynumber", "velocity", "on"},
+        {"pitch"},
+        {"active", "gain", "pan", "balance", "reverb", "chorus"},
+        {"freq", "type", "q"},
+        {"pitch", "channel_pressure", "poly_pressure"},
+        null, null, null};
+
+    static int getSlotObject(int slot) {
+        return slot >>> 24;
+    }
+
+    static int getSlotInstance(int slot) {
+        return (slot >>> 16) & 0xFF;
+    }
+
+    static int getSlotVariable(int slot) {
+        return slot & 0xFFFF;
+    }
+
+    static int compileSlot(ModelIdentifier id) {
+        String o = id.getObject();
+        int object = -1;
+        for (int i = 0; i < CONTROL_OBJECTS.length; i++) {
+            if (CONTROL_OBJECTS[i].equals(o)) {
+                object = i;
+                break;
+            }
+        }
+        if (object == -1)
+            return -1;
+        String v = id.getVariable();
+        int variable = -1;
+        String[] variables = CONTROL_VARIABLES[object];
+        if (variables == null) {
+            if (v == null)
+                return -1;
+            variable = Integer.parseInt(v);
+            if (variable < 0 || variable > 0xFFFF)
+                return -1;
+            if (object == CONTROL_MIDI_CC && variable > 127)
+                return -1;
+        } else {
+            for (int i = 0; i < variables.length; i++) {
+                if (v == null ? variables[i] == null : v.equals(variables[i])) {
+                    variable = i;
+                    break;
+                }
+            }
+            if (variable == -1)
+                return -1;
+        }
+        int instance = 0;
+        if (object == CONTROL_EG || object == CONTROL_LFO) {
+            instance = id.getInstance();
+            if (instance < 0 || instance > 0xFF)
+                return -1;
+        }
+        return (object << 24) | (instance << 16) | variable;
+    }
+
+    static int compileKeyBasedController(ModelIdentifier id) {
+        if (id.getVariable() == null)
+            return -1;
+        if (id.getObject().equals("midi_cc")) {
+            int ic = Integer.parseInt(id.getVariable());
+            if (ic != 0 && ic != 32) {
+                if (ic < 120)
+                    return ic;
+            }
+        } else if (id.getObject().equals("midi_rpn")) {
+            if (id.getVariable().equals("1"))
+                return 120; // Fine tuning
+            if (id.getVariable().equals("2"))
+                return 121; // Coarse tuning
+        }
+        return -1;
+    }
 
     private static class KeySortComparator implements Comparator<ModelSource> {
 
@@ -759,6 +872,36 @@ public final class SoftPerformer {
             }
         }
 
+        connections_src_slot = new int[this.connections.length][];
+        connections_src_kc = new int[this.connections.length][];
+        connections_dst_slot = new int[this.connections.length];
+        connections_src_transform
+                = new ModelTransform[this.connections.length][];
+        connections_dst_transform
+                = new ModelTransform[this.connections.length];
+        for (int i = 0; i < this.connections.length; i++) {
+            ModelConnectionBlock conn = this.connections[i];
+            ModelSource[] srcs = conn.getSources();
+            if (srcs != null) {
+                connections_src_slot[i] = new int[srcs.length];
+                connections_src_kc[i] = new int[srcs.length];
+                connections_src_transform[i] = new ModelTransform[srcs.length];
+                for (int j = 0; j < srcs.length; j++) {
+                    ModelIdentifier id = srcs[j].getIdentifier();
+                    connections_src_slot[i][j] = compileSlot(id);
+                    connections_src_kc[i][j] = compileKeyBasedController(id);
+                    connections_src_transform[i][j] = SoftTransformTable
+                            .getTransform(srcs[j].getTransform());
+                }
+            }
+            if (conn.getDestination() != null) {
+                connections_dst_slot[i] = compileSlot(
+                        conn.getDestination().getIdentifier());
+                connections_dst_transform[i] = SoftTransformTable
+                        .getTransform(conn.getDestination().getTransform());
+            } else
+                connections_dst_slot[i] = -1;
+        }
     }
 
     private static boolean isUnnecessaryTransform(ModelTransform transform) {
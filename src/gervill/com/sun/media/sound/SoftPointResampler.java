@@ -62,4 +62,9 @@ public final class SoftPointResampler extends SoftAbstractResampler {
         startpitch[0] = pitch;
 
     }
+
+    @Override
+    float interpolatePoint(float[] in, int ix, float fix, float pitch) {
+        return in[ix];
+    }
 }
@@ -24,8 +24,6 @@
  */
 package gervill.com.sun.media.sound;
 
-import java.util.TreeMap;
-
 import gervill.javax.sound.midi.MidiDevice;
 import gervill.javax.sound.midi.MidiDeviceReceiver;
 import gervill.javax.sound.midi.MidiMessage;
@@ -33,23 +31,29 @@ import gervill.javax.sound.midi.ShortMessage;
 
 /**
  * Software synthesizer MIDI receiver class.
+ * <p>
+ * Messages are queued and applied by the audio thread at the start of
+ * the next control block, also when the time stamp is -1. The state
+ * returned by the <code>SoftChannel</code> getters, such as
+ * <code>getController</code>, therefore only reflects a message once
+ * that block has been processed, and not right after <code>send</code>
+ * returns. Calling the <code>SoftChannel</code> methods directly still
+ * changes the state immediately.
  *
  * @author Karl Helgason
  */
 public final class SoftReceiver implements MidiDeviceReceiver {
 
-    boolean open = true;
+    volatile boolean open = true;
     private final Object control_mutex;
     private final SoftSynthesizer synth;
-    TreeMap<Long, Object> midimessages;
+    // Assigned before open is set, read after open has been checked
     SoftMainMixer mainmixer;
 
     public SoftReceiver(SoftSynthesizer synth) {
         this.control_mutex = synth.control_mutex;
         this.synth = synth;
         this.mainmixer = synth.getMainMixer();
-        if (mainmixer != null)
-            this.midimessages = mainmixer.midimessages;
     }
 
     @Override
@@ -60,26 +64,33 @@ public final class SoftReceiver implements MidiDeviceReceiver {
     @Override
     public void send(MidiMessage message, long timeStamp) {
 
-        synchronized (control_mutex) {
-            if (!open)
-                throw new IllegalStateException("Receiver is not open");
+        if (!open)
+            throw new IllegalStateException("Receiver is not open");
+
+        // Messages are queued and applied by the audio thread
+        // on the next control block, so we never wait for control_mutex
+        // unless the queue is full.
+        int packed = 0;
+        Object object = null;
+        if (message instanceof ShortMessage
+                && (((ShortMessage)message).getChannel() > 0xF)) {
+            object = message.clone();
+        } else if (message instanceof ShortMessage) {
+            ShortMessage sms = (ShortMessage)message;
+            packed = sms.getStatus() | (sms.getData1() << 8)
+                    | (sms.getData2() << 16);
+        } else {
+            object = message.getMessage();
         }
 
-        if (timeStamp != -1) {
+        if (!mainmixer.ingress.offer(timeStamp, packed, object)) {
             synchronized (control_mutex) {
-                mainmixer.activity();
-                while (midimessages.get(timeStamp) != null)
-                    timeStamp++;
-                if (message instanceof ShortMessage
-                        && (((ShortMessage)message).getChannel() > 0xF)) {
-                    midimessages.put(timeStamp, message.clone());
-                } else {
-                    midimessages.put(timeStamp, message.getMessage());
-                }
+                mainmixer.processIngress();
+                mainmixer.processIngressMessage(timeStamp, packed, object);
             }
-        } else {
-            mainmixer.processMessage(message);
+            return;
         }
+        mainmixer.ingressOffered();
     }
 
     @Override
@@ -35,4 +35,17 @@ public interface SoftResamplerStreamer extends ModelOscillatorStream {
 
     void open(ModelWavetable osc, float outputsamplerate)
             throws IOException;
+
+    // Read samples held in memory directly rather than through a stream,
+    // from the next open on
+    void setDirectReading(boolean value);
+
+    // Whether the output is played in realtime, samples streamed from
+    // disk then return silence instead of waiting for the disk
+    void setRealtime(boolean value);
+
+    // Highest interpolation tier needed from the next sector on, one of
+    // SoftVoice.LOD_LINEAR, LOD_CUBIC and LOD_FULL. The streamer may
+    // interpolate more cheaply while positions fall on the samples.
+    void setInterpolationTier(int tier);
 }
@@ -24,6 +24,8 @@
  */
 package gervill.com.sun.media.sound;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Hann windowed sinc interpolation resampler with anti-alias filtering.
  *
@@ -33,22 +35,73 @@ package gervill.com.sun.media.sound;
  */
 public final class SoftSincResampler extends SoftAbstractResampler {
 
-    float[][][] sinc_table;
-    int sinc_scale_size = 100;
-    int sinc_table_fsize = 800;
-    int sinc_table_size = 30;
-    int sinc_table_center = sinc_table_size / 2;
+    // The table is built by the first constructor and shared by all
+    // resamplers, so it is never built on the audio thread,
+    // the points of each phase of a scale are stored one after another
+    private static final class TableHolder {
+        static final float[][] table = buildTable();
+    }
+
+    static final int sinc_scale_size = 100;
+    // Phases in between the rows of the table are interpolated
+    static final int sinc_table_fsize = 200;
+    // Must be even, interpolate sums the points in pairs
+    static final int sinc_table_size = 30;
+    static final int sinc_table_center = sinc_table_size / 2;
+
+    private final float[][] sinc_table;
 
     public SoftSincResampler() {
         super();
-        sinc_table = new float[sinc_scale_size][sinc_table_fsize][];
-        for (int s = 0; s < sinc_scale_size; s++) {
-            float scale = (float) (1.0 / (1.0 + Math.pow(s, 1.1) / 10.0));
-            for (int i = 0; i < sinc_table_fsize; i++) {
-                sinc_table[s][i] = sincTable(sinc_table_size,
-                        -i / ((float)sinc_table_fsize), scale);
+        sinc_table = TableHolder.table;
+    }
+
+    /*
+     * Builds the rows of each scale on worker threads and the calling
+     * thread. The table has an extra row at the end of each scale for
+     * interpolating the last phases.
+     */
+    private static float[][] buildTable() {
+        final float[][] sinc_table = new float[sinc_scale_size]
+                [(sinc_table_fsize + 1) * sinc_table_size];
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int s;
+                while ((s = next.getAndIncrement()) < sinc_scale_size) {
+                    float scale = (float) (1.0 / (1.0 + Math.pow(s, 1.1) / 10.0));
+                    for (int i = 0; i <= sinc_table_fsize; i++) {
+                        System.arraycopy(sincTable(sinc_table_size,
+                                -i / ((float)sinc_table_fsize), scale), 0,
+                                sinc_table[s], i * sinc_table_size,
+                                sinc_table_size);
+                    }
+                }
             }
+        };
+        Thread[] threads = new Thread[Math.max(0, Math.min(
+                Runtime.getRuntime().availableProcessors(),
+                sinc_scale_size) - 1)];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = JSSecurityManager.createThread(worker,
+                    "Gervill Sinc Table Builder " + (i + 1), true, -1, true);
         }
+        worker.run();
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        return sinc_table;
     }
 
     // Normalized sinc function
@@ -99,16 +152,30 @@ public final class SoftSincResampler extends SoftAbstractResampler {
                 p = 0;
             else if (p > max_p)
                 p = max_p;
-            float[][] sinc_table_f = this.sinc_table[p];
+            float[] sinc_table_f = sinc_table[p];
             while (ix < ix_end && ox < ox_end) {
                 int iix = (int) ix;
-                float[] sinc_table =
-                        sinc_table_f[(int)((ix - iix) * sinc_table_fsize)];
+                float fx = (ix - iix) * sinc_table_fsize;
+                int fi = (int) fx;
+                int t0 = fi * sinc_table_size;
+                int t1 = t0 + sinc_table_size;
                 int xx = iix - sinc_table_center;
-                float y = 0;
-                for (int i = 0; i < sinc_table_size; i++, xx++)
-                    y += in[xx] * sinc_table[i];
-                out[ox++] = y;
+                // Two partial sums per phase shorten the dependency chains
+                float y0a = 0;
+                float y0b = 0;
+                float y1a = 0;
+                float y1b = 0;
+                for (int i = 0; i < sinc_table_size; i += 2, xx += 2) {
+                    float va = in[xx];
+                    float vb = in[xx + 1];
+                    y0a += va * sinc_table_f[t0 + i];
+                    y0b += vb * sinc_table_f[t0 + i + 1];
+                    y1a += va * sinc_table_f[t1 + i];
+                    y1b += vb * sinc_table_f[t1 + i + 1];
+                }
+                float y0 = y0a + y0b;
+                float y1 = y1a + y1b;
+                out[ox++] = y0 + (y1 - y0) * (fx - fi);
                 ix += pitch;
             }
         } else {
@@ -119,15 +186,29 @@ public final class SoftSincResampler extends SoftAbstractResampler {
                     p = 0;
                 else if (p > max_p)
                     p = max_p;
-                float[][] sinc_table_f = this.sinc_table[p];
+                float[] sinc_table_f = sinc_table[p];
 
-                float[] sinc_table =
-                        sinc_table_f[(int)((ix - iix) * sinc_table_fsize)];
+                float fx = (ix - iix) * sinc_table_fsize;
+                int fi = (int) fx;
+                int t0 = fi * sinc_table_size;
+                int t1 = t0 + sinc_table_size;
                 int xx = iix - sinc_table_center;
-                float y = 0;
-                for (int i = 0; i < sinc_table_size; i++, xx++)
-                    y += in[xx] * sinc_table[i];
-                out[ox++] = y;
+                // Two partial sums per phase shorten the dependency chains
+                float y0a = 0;
+                float y0b = 0;
+                float y1a = 0;
+                float y1b = 0;
+                for (int i = 0; i < sinc_table_size; i += 2, xx += 2) {
+                    float va = in[xx];
+                    float vb = in[xx + 1];
+                    y0a += va * sinc_table_f[t0 + i];
+                    y0b += vb * sinc_table_f[t0 + i + 1];
+                    y1a += va * sinc_table_f[t1 + i];
+                    y1b += vb * sinc_table_f[t1 + i + 1];
+                }
+                float y0 = y0a + y0b;
+                float y1 = y1a + y1b;
+                out[ox++] = y0 + (y1 - y0) * (fx - fi);
 
                 ix += pitch;
                 pitch += pitchstep;
@@ -138,4 +219,34 @@ public final class SoftSincResampler extends SoftAbstractResampler {
         startpitch[0] = pitch;
 
     }
+
+    @Override
+    float interpolatePoint(float[] in, int ix, float fix, float pitch) {
+        int p = (int) ((pitch - 1) * 10.0f);
+        if (p < 0)
+            p = 0;
+        else if (p > sinc_scale_size - 1)
+            p = sinc_scale_size - 1;
+        float[] sinc_table_f = sinc_table[p];
+        float fxt = fix * sinc_table_fsize;
+        int fi = (int) fxt;
+        int t0 = fi * sinc_table_size;
+        int t1 = t0 + sinc_table_size;
+        int xx = ix - sinc_table_center;
+        float y0a = 0;
+        float y0b = 0;
+        float y1a = 0;
+        float y1b = 0;
+        for (int i = 0; i < sinc_table_size; i += 2, xx += 2) {
+            float va = in[xx];
+            float vb = in[xx + 1];
+            y0a += va * sinc_table_f[t0 + i];
+            y0b += vb * sinc_table_f[t0 + i + 1];
+            y1a += va * sinc_table_f[t1 + i];
+            y1b += vb * sinc_table_f[t1 + i + 1];
+        }
+        float y0 = y0a + y0b;
+        float y1 = y1a + y1b;
+        return y0 + (y1 - y0) * (fxt - fi);
+    }
 }
@@ -0,0 +1,550 @@
+/*
+ * Copyright (c) 2007, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package gervill.com.sun.media.sound;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import gervill.javax.sound.midi.Instrument;
+import gervill.javax.sound.midi.Patch;
+import gervill.javax.sound.midi.Soundbank;
+import gervill.javax.sound.midi.SoundbankResource;
+import gervill.javax.sound.sampled.AudioFormat;
+import gervill.javax.sound.sampled.AudioFormat.Encoding;
+
+/**
+ * A soundbank read from a snapshot of the performers of a SF2 or DLS
+ * soundbank file. The snapshot is stored in a cache directory and is
+ * keyed by a SHA-1 hash of the contents of the soundbank file, so it
+ * follows the file when it is copied or moved and is never used for
+ * changed contents.
+ * Reading it skips parsing the soundbank and deriving the performers
+ * from generators and articulations. Sample data is still read from the
+ * soundbank file.
+ */
+public final class SoftSoundbankSnapshot implements Soundbank {
+
+    private static final class SnapshotInstrument extends ModelInstrument {
+
+        private final ModelPerformer[] performers;
+
+        SnapshotInstrument(Soundbank soundbank, Patch patch, String name,
+                ModelPerformer[] performers) {
+            super(soundbank, patch, name, null);
+            this.performers = performers;
+        }
+
+        @Override
+        public Object getData() {
+            return null;
+        }
+
+        @Override
+        public ModelPerformer[] getPerformers() {
+            return performers.clone();
+        }
+    }
+
+    private static final int MAGIC = 0x47565353; // "GVSS"
+    private static final int VERSION = 2;
+    private static final int TRANSFORM_NONE = 0;
+    private static final int TRANSFORM_STANDARD = 1;
+    private static final int TRANSFORM_SF2_VELOCITY_FILTER = 2;
+
+    private String name;
+    private String version;
+    private String vendor;
+    private String description;
+    private final List<Instrument> instruments = new ArrayList<Instrument>();
+
+    private SoftSoundbankSnapshot() {
+    }
+
+    /**
+     * Returns the soundbank stored in file. If cachedir holds an up to date
+     * snapshot of it, the snapshot is returned. Otherwise the soundbank
+     * is read from the file and a snapshot is written to cachedir.
+     */
+    public static Soundbank getSoundbank(File file, File cachedir)
+            throws IOException {
+        File snapshot = getSnapshotFile(file, cachedir);
+        if (snapshot.isFile()) {
+            try {
+                return read(file, snapshot);
+            } catch (IOException e) {
+                //e.printStackTrace();
+            }
+        }
+        Soundbank soundbank = readSoundbank(file);
+        try {
+            write(soundbank, file, snapshot);
+        } catch (IOException e) {
+            //e.printStackTrace();
+        }
+        return soundbank;
+    }
+
+    private static File getSnapshotFile(File file, File cachedir)
+            throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buff = new byte[65536];
+            int ret;
+            while ((ret = is.read(buff)) != -1)
+                md.update(buff, 0, ret);
+        } finally {
+            is.close();
+        }
+        md.update(("\n" + VERSION).getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest())
+            sb.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+        sb.append(".snapshot");
+        return new File(cachedir, sb.toString());
+    }
+
+    private static Soundbank readSoundbank(File file) throws IOException {
+        String type;
+        InputStream is = new FileInputStream(file);
+        try {
+            type = new RIFFReader(is).getType();
+        } finally {
+            is.close();
+        }
+        if ("sfbk".equals(type))
+            return new SF2Soundbank(file);
+        if ("DLS ".equals(type))
+            return new DLSSoundbank(file);
+        throw new RIFFInvalidFormatException(
+                "File is not a SoundFont or DLS soundbank!");
+    }
+
+    static void write(Soundbank soundbank, File file, File snapshot)
+            throws IOException {
+        // Instruments go first to collect the sample roots
+        Map<ModelByteBuffer, Integer> roots
+                = new IdentityHashMap<ModelByteBuffer, Integer>();
+        List<ModelByteBuffer> rootlist = new ArrayList<ModelByteBuffer>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        Instrument[] instruments = soundbank.getInstruments();
+        out.writeInt(instruments.length);
+        for (Instrument instrument : instruments) {
+            if (instrument.getClass() != SF2Instrument.class
+                    && instrument.getClass() != DLSInstrument.class)
+                throw new IOException("Unsupported instrument");
+            Patch patch = instrument.getPatch();
+            writeString(out, instrument.getName());
+            out.writeInt(patch.getBank());
+            out.writeInt(patch.getProgram());
+            out.writeBoolean(patch instanceof ModelPatch
+                    && ((ModelPatch)patch).isPercussion());
+            ModelPerformer[] performers
+                    = ((ModelInstrument)instrument).getPerformers();
+            out.writeInt(performers.length);
+            for (ModelPerformer performer : performers)
+                writePerformer(out, performer, file, roots, rootlist);
+        }
+        out.close();
+
+        File cachedir = snapshot.getParentFile();
+        if (cachedir != null && !cachedir.isDirectory())
+            cachedir.mkdirs();
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(file.length());
+            writeString(out, soundbank.getName());
+            writeString(out, soundbank.getVersion());
+            writeString(out, soundbank.getVendor());
+            writeString(out, soundbank.getDescription());
+            out.writeInt(rootlist.size());
+            for (ModelByteBuffer root : rootlist) {
+                out.writeLong(root.getFilePointer());
+                out.writeLong(root.capacity());
+            }
+            body.writeTo(out);
+        } finally {
+            out.close();
+        }
+        snapshot.delete();
+        if (!tmp.renameTo(snapshot)) {
+            tmp.delete();
+            throw new IOException("Unable to write snapshot");
+        }
+    }
+
+    static SoftSoundbankSnapshot read(File file, File snapshot)
+            throws IOException {
+        ModelByteBuffer buffer = new ModelByteBuffer(snapshot);
+        try {
+            buffer.map();
+        } catch (IOException e) {
+            //e.printStackTrace();
+        }
+        DataInputStream in = new DataInputStream(buffer.getInputStream());
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Invalid snapshot");
+            if (in.readLong() != file.length())
+                throw new IOException("Snapshot is out of date");
+            SoftSoundbankSnapshot soundbank = new SoftSoundbankSnapshot();
+            soundbank.name = readString(in);
+            soundbank.version = readString(in);
+            soundbank.vendor = readString(in);
+            soundbank.description = readString(in);
+            ModelByteBuffer[] roots = new ModelByteBuffer[in.readInt()];
+            for (int i = 0; i < roots.length; i++) {
+                long offset = in.readLong();
+                long len = in.readLong();
+                roots[i] = new ModelByteBuffer(file, offset, len);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = readString(in);
+                int bank = in.readInt();
+                int program = in.readInt();
+                boolean percussion = in.readBoolean();
+                ModelPerformer[] performers
+                        = new ModelPerformer[in.readInt()];
+                for (int j = 0; j < performers.length; j++)
+                    performers[j] = readPerformer(in, roots);
+                soundbank.instruments.add(new SnapshotInstrument(soundbank,
+                        new ModelPatch(bank, program, percussion), name,
+                        performers));
+            }
+            return soundbank;
+        } finally {
+            in.close();
+            buffer.unload();
+        }
+    }
+
+    private static void writePerformer(DataOutputStream out,
+            ModelPerformer performer, File file,
+            Map<ModelByteBuffer, Integer> roots,
+            List<ModelByteBuffer> rootlist) throws IOException {
+        writeString(out, performer.getName());
+        out.writeInt(performer.getKeyFrom());
+        out.writeInt(performer.getKeyTo());
+        out.writeInt(performer.getVelFrom());
+        out.writeInt(performer.getVelTo());
+        out.writeInt(performer.getExclusiveClass());
+        out.writeBoolean(performer.isReleaseTriggered());
+        out.writeBoolean(performer.isSelfNonExclusive());
+        out.writeBoolean(performer.isDefaultConnectionsEnabled());
+
+        List<ModelOscillator> oscillators = performer.getOscillators();
+        out.writeInt(oscillators.size());
+        for (ModelOscillator osc : oscillators) {
+            if (!(osc instanceof ModelByteBufferWavetable))
+                throw new IOException("Unsupported oscillator");
+            ModelByteBufferWavetable wavetable = (ModelByteBufferWavetable)osc;
+            AudioFormat format = wavetable.getFormat();
+            if (format == null)
+                throw new IOException("Unsupported oscillator");
+            writeBuffer(out, wavetable.getBuffer(), file, roots, rootlist);
+            writeBuffer(out, wavetable.get8BitExtensionBuffer(), file, roots,
+                    rootlist);
+            writeString(out, format.getEncoding().toString());
+            out.writeFloat(format.getSampleRate());
+            out.writeInt(format.getSampleSizeInBits());
+            out.writeInt(format.getChannels());
+            out.writeInt(format.getFrameSize());
+            out.writeFloat(format.getFrameRate());
+            out.writeBoolean(format.isBigEndian());
+            out.writeFloat(wavetable.getLoopStart());
+            out.writeFloat(wavetable.getLoopLength());
+            out.writeInt(wavetable.getLoopType());
+            out.writeFloat(wavetable.getPitchcorrection());
+            out.writeFloat(wavetable.getAttenuation());
+        }
+
+        List<ModelConnectionBlock> blocks = performer.getConnectionBlocks();
+        out.writeInt(blocks.size());
+        for (ModelConnectionBlock block : blocks) {
+            out.writeDouble(block.getScale());
+            ModelSource[] sources = block.getSources();
+            out.writeInt(sources.length);
+            for (ModelSource source : sources) {
+                writeIdentifier(out, source.getIdentifier());
+                writeTransform(out, source.getTransform());
+            }
+            ModelDestination destination = block.getDestination();
+            out.writeBoolean(destination != null);
+            if (destination != null) {
+                writeIdentifier(out, destination.getIdentifier());
+                writeTransform(out, destination.getTransform());
+            }
+        }
+    }
+
+    private static ModelPerformer readPerformer(DataInputStream in,
+            ModelByteBuffer[] roots) throws IOException {
+        ModelPerformer performer = new ModelPerformer();
+        performer.setName(readString(in));
+        performer.setKeyFrom(in.readInt());
+        performer.setKeyTo(in.readInt());
+        performer.setVelFrom(in.readInt());
+        performer.setVelTo(in.readInt());
+        performer.setExclusiveClass(in.readInt());
+        performer.setReleaseTriggered(in.readBoolean());
+        performer.setSelfNonExclusive(in.readBoolean());
+        performer.setDefaultConnectionsEnabled(in.readBoolean());
+
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            ModelByteBuffer buffer = readBuffer(in, roots);
+            ModelByteBuffer buffer8 = readBuffer(in, roots);
+            AudioFormat format = new AudioFormat(
+                    getEncoding(readString(in)), in.readFloat(), in.readInt(),
+                    in.readInt(), in.readInt(), in.readFloat(),
+                    in.readBoolean());
+            ModelByteBufferWavetable wavetable
+                    = new ModelByteBufferWavetable(buffer, format);
+            if (buffer8 != null)
+                wavetable.set8BitExtensionBuffer(buffer8);
+            wavetable.setLoopStart(in.readFloat());
+            wavetable.setLoopLength(in.readFloat());
+            wavetable.setLoopType(in.readInt());
+            wavetable.setPitchcorrection(in.readFloat());
+            wavetable.setAttenuation(in.readFloat());
+            performer.getOscillators().add(wavetable);
+        }
+
+        count = in.readInt();
+        List<ModelConnectionBlock> blocks
+                = new ArrayList<ModelConnectionBlock>(count);
+        for (int i = 0; i < count; i++) {
+            ModelConnectionBlock block = new ModelConnectionBlock();
+            block.setScale(in.readDouble());
+            ModelSource[] sources = new ModelSource[in.readInt()];
+            for (int j = 0; j < sources.length; j++) {
+                ModelIdentifier id = readIdentifier(in);
+                sources[j] = new ModelSource(id, readTransform(in));
+            }
+            block.setSources(sources);
+            if (in.readBoolean()) {
+                ModelDestination destination
+                        = new ModelDestination(readIdentifier(in));
+                destination.setTransform(readTransform(in));
+                block.setDestination(destination);
+            }
+            blocks.add(block);
+        }
+        performer.setConnectionBlocks(blocks);
+        return performer;
+    }
+
+    // Buffers are stored as a range of a root buffer in the soundbank file
+    private static void writeBuffer(DataOutputStream out,
+            ModelByteBuffer buffer, File file,
+            Map<ModelByteBuffer, Integer> roots,
+            List<ModelByteBuffer> rootlist) throws IOException {
+        if (buffer == null) {
+            out.writeInt(-1);
+            return;
+        }
+        ModelByteBuffer root = buffer.getRoot();
+        if (root.getFile() == null || !root.getFile().equals(file))
+            throw new IOException("Sample data is not in soundbank file");
+        Integer index = roots.get(root);
+        if (index == null) {
+            index = rootlist.size();
+            roots.put(root, index);
+            rootlist.add(root);
+        }
+        out.writeInt(index);
+        out.writeLong(buffer.arrayOffset() - root.arrayOffset());
+        out.writeLong(buffer.capacity());
+    }
+
+    private static ModelByteBuffer readBuffer(DataInputStream in,
+            ModelByteBuffer[] roots) throws IOException {
+        int index = in.readInt();
+        if (index == -1)
+            return null;
+        if (index < 0 || index >= roots.length)
+            throw new IOException("Invalid snapshot");
+        long offset = in.readLong();
+        long len = in.readLong();
+        return roots[index].subbuffer(offset, offset + len);
+    }
+
+    private static void writeIdentifier(DataOutputStream out,
+            ModelIdentifier id) throws IOException {
+        out.writeBoolean(id != null);
+        if (id == null)
+            return;
+        writeString(out, id.getObject());
+        writeString(out, id.getVariable());
+        out.writeInt(id.getInstance());
+    }
+
+    private static ModelIdentifier readIdentifier(DataInputStream in)
+            throws IOException {
+        if (!in.readBoolean())
+            return null;
+        String object = readString(in);
+        String variable = readString(in);
+        return new ModelIdentifier(object, variable, in.readInt());
+    }
+
+    private static void writeTransform(DataOutputStream out,
+            ModelTransform transform) throws IOException {
+        if (transform == null) {
+            out.writeByte(TRANSFORM_NONE);
+        } else if (transform instanceof ModelStandardTransform) {
+            ModelStandardTransform st = (ModelStandardTransform)transform;
+            out.writeByte(TRANSFORM_STANDARD);
+            out.writeBoolean(st.getDirection());
+            out.writeBoolean(st.getPolarity());
+            out.writeInt(st.getTransform());
+        } else if (transform == SF2Instrument.VELOCITY_FILTER_TRANSFORM) {
+            out.writeByte(TRANSFORM_SF2_VELOCITY_FILTER);
+        } else {
+            throw new IOException("Unsupported transform");
+        }
+    }
+
+    private static ModelTransform readTransform(DataInputStream in)
+            throws IOException {
+        switch (in.readByte()) {
+        case TRANSFORM_NONE:
+            return null;
+        case TRANSFORM_STANDARD:
+            boolean direction = in.readBoolean();
+            boolean polarity = in.readBoolean();
+            return new ModelStandardTransform(direction, polarity,
+                    in.readInt());
+        case TRANSFORM_SF2_VELOCITY_FILTER:
+            return SF2Instrument.VELOCITY_FILTER_TRANSFORM;
+        default:
+            throw new IOException("Invalid snapshot");
+        }
+    }
+
+    private static Encoding getEncoding(String name) {
+        if (Encoding.PCM_SIGNED.toString().equals(name))
+            return Encoding.PCM_SIGNED;
+        if (Encoding.PCM_UNSIGNED.toString().equals(name))
+            return Encoding.PCM_UNSIGNED;
+        if (Encoding.PCM_FLOAT.toString().equals(name))
+            return Encoding.PCM_FLOAT;
+        if (Encoding.ULAW.toString().equals(name))
+            return Encoding.ULAW;
+        if (Encoding.ALAW.toString().equals(name))
+            return Encoding.ALAW;
+        return new Encoding(name);
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        if (!in.readBoolean())
+            return null;
+        return in.readUTF();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public String getVendor() {
+        return vendor;
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public SoundbankResource[] getResources() {
+        return new SoundbankResource[0];
+    }
+
+    @Override
+    public Instrument[] getInstruments() {
+        return instruments.toArray(new Instrument[instruments.size()]);
+    }
+
+    @Override
+    public Instrument getInstrument(Patch patch) {
+        int program = patch.getProgram();
+        int bank = patch.getBank();
+        boolean percussion = false;
+        if (patch instanceof ModelPatch)
+            percussion = ((ModelPatch)patch).isPercussion();
+        for (Instrument instrument : instruments) {
+            Patch patch2 = instrument.getPatch();
+            int program2 = patch2.getProgram();
+            int bank2 = patch2.getBank();
+            if (program == program2 && bank == bank2) {
+                boolean percussion2 = false;
+                if (patch2 instanceof ModelPatch)
+                    percussion2 = ((ModelPatch) patch2).isPercussion();
+                if (percussion == percussion2)
+                    return instrument;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2007, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package gervill.com.sun.media.sound;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import gervill.javax.sound.sampled.AudioFormat;
+
+/**
+ * Reads a sample stored on disk. The head of the sample is held in
+ * memory and the rest is read ahead into a ring buffer by
+ * SoftDiskStreamer. The ring is taken from the streamer's pool.
+ * <p>
+ * For realtime playback, reads the ring can't serve, or all reads past
+ * the head when the pool is empty, return silence and are counted as
+ * dropouts. Otherwise reads wait for the streamer to fill the ring, or
+ * read the sample themselves when there is no ring or streamer, so
+ * offline rendering gives the same output as without streaming.
+ */
+public final class SoftStreamingInputStream extends InputStream {
+
+    private static final int FILL_SIZE = 16384;
+    private final SoftDiskStreamer streamer = SoftDiskStreamer.getInstance();
+    private final ModelByteBuffer buffer;
+    private final long len;
+    private final byte[] head;
+    private final int head_len;
+    private final boolean realtime;
+    // Pooled ring buffer, null when the pool was empty or once closed
+    private byte[] ring;
+    // Ring holds the bytes from ring_start to ring_end
+    private long ring_start;
+    private long ring_end;
+    // Incremented when ring is discarded on a seek
+    private int generation = 0;
+    private long pos = 0;
+    private long mark = 0;
+    private boolean marked = false;
+    private boolean closed = false;
+    // Set when the streamer failed to read the sample
+    private boolean fill_failed = false;
+    // Bytes per sample and index of the byte set in silent unsigned
+    // samples, silence_size is 0 for signed and float samples
+    private int silence_size = 0;
+    private int silence_msb = 0;
+    // Used by the streamer thread
+    private InputStream fill_source = null;
+    private long fill_source_pos = 0;
+    private byte[] fill_buffer = null;
+    // Used by reads the ring can't serve when not realtime
+    private InputStream read_source = null;
+    private long read_source_pos = 0;
+
+    public SoftStreamingInputStream(ModelByteBuffer buffer, byte[] head,
+            AudioFormat format, boolean realtime) {
+        this.buffer = buffer;
+        this.len = buffer.capacity();
+        this.head = head;
+        this.head_len = (int)Math.min(head.length, len);
+        this.realtime = realtime;
+        ring_start = head_len;
+        ring_end = head_len;
+        // Unsigned samples are silent at half range, with the most
+        // significant byte set to 0x80
+        int bytes = (format.getSampleSizeInBits() + 7) / 8;
+        if (format.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED)
+                && bytes > 0) {
+            silence_size = bytes;
+            silence_msb = format.isBigEndian() ? 0 : bytes - 1;
+        }
+        if (len > head_len) {
+            ring = streamer.takeRing();
+            if (ring != null)
+                streamer.register(this);
+        }
+    }
+
+    /*
+     * Called by the streamer thread, reads the next block ahead of the
+     * read position. Returns false if there was nothing to read.
+     */
+    boolean fill() {
+        long from;
+        int n;
+        int gen;
+        synchronized (this) {
+            if (closed) {
+                release();
+                return false;
+            }
+            if (ring == null)
+                return false;
+            // Keep the loop start while the loop fits in the ring
+            long keep = pos;
+            if (marked && mark < pos) {
+                if (pos - mark <= ring.length - FILL_SIZE
+                        || len - Math.max(mark, head_len) <= ring.length)
+                    keep = mark;
+            }
+            if (keep < head_len)
+                keep = head_len;
+            if (keep > ring_end || keep < ring_start) {
+                ring_start = keep;
+                ring_end = keep;
+                generation++;
+            } else if (keep > ring_start)
+                ring_start = keep;
+            long space = ring.length - (ring_end - ring_start);
+            n = (int)Math.min(Math.min(space, len - ring_end), FILL_SIZE);
+            if (n <= 0)
+                return false;
+            from = ring_end;
+            gen = generation;
+        }
+        if (fill_buffer == null)
+            fill_buffer = new byte[FILL_SIZE];
+        try {
+            if (fill_source == null || fill_source_pos > from) {
+                if (fill_source != null)
+                    fill_source.close();
+                fill_source = buffer.getInputStream();
+                fill_source_pos = 0;
+            }
+            fill_source_pos += skipFully(fill_source, from - fill_source_pos);
+            n = readFully(fill_source, fill_buffer, 0, n);
+            fill_source_pos += n;
+        } catch (IOException e) {
+            //e.printStackTrace();
+            n = 0;
+        }
+        synchronized (this) {
+            if (n <= 0) {
+                // Waiting readers read the sample themselves
+                fill_failed = true;
+                notifyAll();
+                return false;
+            }
+            if (closed || gen != generation || ring_end != from)
+                return true;
+            int rpos = (int)(from % ring.length);
+            int n1 = Math.min(n, ring.length - rpos);
+            System.arraycopy(fill_buffer, 0, ring, rpos, n1);
+            System.arraycopy(fill_buffer, n1, ring, 0, n - n1);
+            ring_end += n;
+            notifyAll();
+        }
+        return true;
+    }
+
+    private static long skipFully(InputStream is, long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            long ret = is.skip(n - skipped);
+            if (ret <= 0)
+                break;
+            skipped += ret;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        int ret;
+        boolean wake;
+        synchronized (this) {
+            long left = this.len - pos;
+            if (left <= 0)
+                return -1;
+            if (len > left)
+                len = (int)left;
+            ret = len;
+            // Head
+            if (pos < head_len) {
+                int n = (int)Math.min(len, head_len - pos);
+                System.arraycopy(head, (int)pos, b, off, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+            // Ring
+            while (true) {
+                if (len > 0 && ring != null && pos >= ring_start
+                        && pos < ring_end) {
+                    int n = (int)Math.min(len, ring_end - pos);
+                    int rpos = (int)(pos % ring.length);
+                    int n1 = Math.min(n, ring.length - rpos);
+                    System.arraycopy(ring, rpos, b, off, n1);
+                    System.arraycopy(ring, 0, b, off + n1, n - n1);
+                    pos += n;
+                    off += n;
+                    len -= n;
+                }
+                if (len == 0 || realtime || ring == null || fill_failed
+                        || !streamer.isRunning())
+                    break;
+                // Offline rendering isn't paced by a line, wait for the
+                // streamer rather than lose audio
+                streamer.wakeup();
+                try {
+                    wait(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (len > 0 && !realtime) {
+                int n = readSource(b, off, len);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+            wake = ring != null && pos - ring_start > ring.length / 2;
+            if (len > 0) {
+                // Dropout, never wait for the disk on the audio thread
+                Arrays.fill(b, off, off + len, (byte)0);
+                if (silence_size != 0) {
+                    for (int i = 0; i < len; i++)
+                        if ((pos + i) % silence_size == silence_msb)
+                            b[off + i] = (byte)0x80;
+                }
+                pos += len;
+                wake = ring != null;
+            }
+        }
+        if (len > 0)
+            streamer.dropout();
+        if (wake)
+            streamer.wakeup();
+        return ret;
+    }
+
+    // Reads from the sample at pos on the calling thread
+    private int readSource(byte[] b, int off, int n) throws IOException {
+        if (read_source == null || read_source_pos > pos) {
+            if (read_source != null)
+                read_source.close();
+            read_source = buffer.getInputStream();
+            read_source_pos = 0;
+            if (read_source == null)
+                return 0;
+        }
+        read_source_pos += skipFully(read_source, pos - read_source_pos);
+        if (read_source_pos != pos)
+            return 0;
+        n = readFully(read_source, b, off, n);
+        read_source_pos += n;
+        return n;
+    }
+
+    private static int readFully(InputStream is, byte[] b, int off, int n)
+            throws IOException {
+        int read = 0;
+        while (read < n) {
+            int ret = is.read(b, off + read, n - read);
+            if (ret < 0)
+                break;
+            read += ret;
+        }
+        return read;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int ret = read(b, 0, 1);
+        if (ret <= 0)
+            return -1;
+        return b[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        if (n < 0)
+            return 0;
+        long left = len - pos;
+        if (n > left)
+            n = left;
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        long left = len - pos;
+        if (left > Integer.MAX_VALUE)
+            return Integer.MAX_VALUE;
+        return (int)left;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = pos;
+        marked = true;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        pos = mark;
+    }
+
+    // Called by the streamer thread once the stream is closed
+    private void release() {
+        streamer.unregister(this);
+        if (fill_source != null) {
+            try {
+                fill_source.close();
+            } catch (IOException e) {
+                //e.printStackTrace();
+            }
+            fill_source = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            // The streamer only writes to the ring while not closed
+            if (ring != null) {
+                streamer.returnRing(ring);
+                ring = null;
+            }
+            if (read_source != null) {
+                try {
+                    read_source.close();
+                } catch (IOException e) {
+                    //e.printStackTrace();
+                }
+                read_source = null;
+            }
+        }
+        streamer.wakeup();
+    }
+}
@@ -39,10 +39,14 @@ import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
@@ -202,6 +206,27 @@ public final class SoftSynthesizer implements AudioSynthesizer,
     boolean reverb_on = true;
     boolean chorus_on = true;
     boolean agc_on = true;
+    int render_threads = 1;
+    boolean sample_accurate_events = false;
+    int min_event_split = 32;
+    float inaudible_threshold = Float.NEGATIVE_INFINITY;
+    // Voices with all mixer levels below this gain are not rendered
+    float inaudible_gain = 0f;
+    int sample_cache_size = 0;
+    // Bytes this synthesizer has reserved in SoftFloatSampleCache
+    private long sample_cache_reserved = 0;
+    int stream_head = 0;
+    // Ring buffers this synthesizer has added to SoftDiskStreamer's pool
+    private int stream_rings = 0;
+    // Set while open plays to a line, rendering through openStream alone
+    // isn't paced and must not drop streamed samples
+    private boolean realtime = false;
+    boolean sample_dedup = false;
+    boolean off_heap_samples = false;
+    boolean compressed_samples = false;
+    boolean interpolation_lod = false;
+    boolean sample_mipmaps = false;
+    boolean direct_reading = false;
 
     SoftChannel[] channels;
     SoftChannelProxy[] external_channels = null;
@@ -229,6 +254,8 @@ public final class SoftSynthesizer implements AudioSynthesizer,
 
     private String resamplerType = "linear";
     private SoftResampler resampler = new SoftLinearResampler();
+    // Voices pick their interpolation tier, see SoftVoice.lod_tier
+    boolean lod_enabled = false;
 
     private int number_of_midi_channels = 16;
     private int maxpoly = 64;
@@ -237,6 +264,8 @@ public final class SoftSynthesizer implements AudioSynthesizer,
 
     private SoftMainMixer mainmixer;
     private SoftVoice[] voices;
+    private SoftVoiceIndex voiceindex;
+    private SoftVoiceAllocator voiceallocator;
 
     private final Map<String, SoftTuning> tunings
             = new HashMap<String, SoftTuning>();
@@ -266,26 +295,263 @@ public final class SoftSynthesizer implements AudioSynthesizer,
         }
     }
 
+    // Keep sample heads of the instruments in memory and stream the rest,
+    // wavetables playing the same sample share one head
+    private void loadStreamingHeads(List<SoftInstrument> instruments) {
+        if (!largemode || stream_head <= 0)
+            return;
+        Map<SoftFloatSampleCache.Key, byte[]> heads
+                = new HashMap<SoftFloatSampleCache.Key, byte[]>();
+        for (SoftInstrument instrument : instruments) {
+            for (SoftPerformer performer : instrument.getPerformers()) {
+                for (ModelOscillator osc : performer.oscillators) {
+                    if (!(osc instanceof ModelByteBufferWavetable))
+                        continue;
+                    ModelByteBufferWavetable w = (ModelByteBufferWavetable)osc;
+                    if (w.getBuffer() == null || w.getFormat() == null)
+                        continue;
+                    SoftFloatSampleCache.Key key = new SoftFloatSampleCache.Key(
+                            w.getBuffer(), null, w.getFormat());
+                    byte[] head = heads.get(key);
+                    if (head != null) {
+                        w.setStreamingHead(head);
+                        continue;
+                    }
+                    try {
+                        w.loadStreamingHead(stream_head);
+                    } catch (IOException e) {
+                        //e.printStackTrace();
+                    }
+                    heads.put(key, w.getStreamingHead());
+                }
+            }
+        }
+    }
+
+    // Build decimated copies of the samples for high notes on worker
+    // threads, wavetables playing the same sample with the same loop
+    // share them
+    private void loadMipmaps(List<SoftInstrument> instruments) {
+        if (largemode || !sample_mipmaps)
+            return;
+        Map<List<Object>, List<ModelByteBufferWavetable>> groups
+                = new HashMap<List<Object>, List<ModelByteBufferWavetable>>();
+        for (SoftInstrument instrument : instruments) {
+            for (SoftPerformer performer : instrument.getPerformers()) {
+                for (ModelOscillator osc : performer.oscillators) {
+                    if (!(osc instanceof ModelByteBufferWavetable))
+                        continue;
+                    ModelByteBufferWavetable w = (ModelByteBufferWavetable)osc;
+                    if (w.getBuffer() == null || w.getFormat() == null)
+                        continue;
+                    // Loops are filtered across, so they are part of the key
+                    List<Object> key = Arrays.<Object>asList(
+                            new SoftFloatSampleCache.Key(w.getBuffer(),
+                                    w.get8BitExtensionBuffer(), w.getFormat()),
+                            w.getLoopStart(), w.getLoopLength(),
+                            w.getLoopType());
+                    List<ModelByteBufferWavetable> group = groups.get(key);
+                    if (group == null) {
+                        group = new ArrayList<ModelByteBufferWavetable>();
+                        groups.put(key, group);
+                    }
+                    group.add(w);
+                }
+            }
+        }
+        final List<List<ModelByteBufferWavetable>> work
+                = new ArrayList<List<ModelByteBufferWavetable>>(groups.values());
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < work.size()) {
+                    List<ModelByteBufferWavetable> group = work.get(i);
+                    ModelByteBufferWavetable first = group.get(0);
+                    try {
+                        first.loadMipmaps();
+                    } catch (IOException e) {
+                        //e.printStackTrace();
+                    }
+                    for (ModelByteBufferWavetable w : group)
+                        w.setMipmaps(first.getMipmaps());
+                }
+            }
+        };
+
+        int nrofthreads = Math.min(Runtime.getRuntime().availableProcessors(),
+                work.size());
+        Thread[] threads = new Thread[Math.max(0, nrofthreads - 1)];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = JSSecurityManager.createThread(worker,
+                    "Gervill Mipmap Builder " + (i + 1), true, -1, true);
+        }
+        worker.run();
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    // Queue the samples to be decoded into the float sample cache by its
+    // filler thread, so that notes don't wait for or miss them later
+    private void fillSampleCache(List<SoftInstrument> instruments) {
+        if (sample_cache_reserved == 0)
+            return;
+        for (SoftInstrument instrument : instruments) {
+            for (SoftPerformer performer : instrument.getPerformers()) {
+                for (ModelOscillator osc : performer.oscillators) {
+                    if (osc instanceof ModelByteBufferWavetable
+                            && ((ModelByteBufferWavetable)osc)
+                                    .getCacheKey() != null)
+                        SoftFloatSampleCache.request(
+                                (ModelByteBufferWavetable)osc);
+                }
+            }
+        }
+    }
+
     private boolean loadSamples(List<ModelInstrument> instruments) {
-        if (largemode)
-            return true;
         List<ModelByteBuffer> buffers = new ArrayList<ModelByteBuffer>();
         for (ModelInstrument instrument : instruments)
             getBuffers(instrument, buffers);
+        if (largemode) {
+            // Streamed samples are read from a memory mapping,
+            // if mapping fails they are read from the file
+            try {
+                ModelByteBuffer.mapAll(buffers);
+            } catch (IOException e) {
+                //e.printStackTrace();
+            }
+            return true;
+        }
         try {
-            ModelByteBuffer.loadAll(buffers);
+            if (off_heap_samples)
+                ModelByteBuffer.loadAllOffHeap(buffers);
+            else
+                ModelByteBuffer.loadAll(buffers);
         } catch (IOException e) {
             return false;
         }
+        if (sample_dedup)
+            ModelByteBufferRegistry.share(buffers);
+        if (compressed_samples)
+            ModelByteBuffer.compressAll(getCompressibleRoots(instruments));
         return true;
     }
 
+    // Roots of the samples with the format they are played in, roots
+    // played in different formats or with 8 bit extensions are left out
+    private static Map<ModelByteBuffer, AudioFormat> getCompressibleRoots(
+            List<ModelInstrument> instruments) {
+        Map<ModelByteBuffer, AudioFormat> roots
+                = new HashMap<ModelByteBuffer, AudioFormat>();
+        Set<ModelByteBuffer> excluded = new HashSet<ModelByteBuffer>();
+        for (ModelInstrument instrument : instruments) {
+            for (ModelPerformer performer : instrument.getPerformers()) {
+                if (performer.getOscillators() == null)
+                    continue;
+                for (ModelOscillator osc : performer.getOscillators()) {
+                    if (!(osc instanceof ModelByteBufferWavetable))
+                        continue;
+                    ModelByteBufferWavetable w = (ModelByteBufferWavetable)osc;
+                    if (w.getBuffer() == null || w.getFormat() == null)
+                        continue;
+                    ModelByteBuffer root = w.getBuffer().getRoot();
+                    AudioFormat format = w.getFormat();
+                    AudioFormat prev = roots.get(root);
+                    if (w.get8BitExtensionBuffer() != null
+                            || !ModelCompressedSamples.isSupported(format)
+                            || (prev != null && !(prev.matches(format)
+                                    && format.matches(prev))))
+                        excluded.add(root);
+                    else
+                        roots.put(root, format);
+                }
+            }
+        }
+        roots.keySet().removeAll(excluded);
+        return roots;
+    }
+
+    /*
+     * Builds the SoftInstruments on worker threads and the calling thread,
+     * without holding control_mutex.
+     */
+    private static SoftInstrument[] prepareInstruments(
+            final List<ModelInstrument> instruments) {
+        final SoftInstrument[] softinstruments
+                = new SoftInstrument[instruments.size()];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<Throwable> failure
+                = new AtomicReference<Throwable>();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int i;
+                    while ((i = next.getAndIncrement()) < softinstruments.length)
+                        softinstruments[i]
+                                = new SoftInstrument(instruments.get(i));
+                } catch (Throwable t) {
+                    // Keep the first failure, it is rethrown by the caller
+                    failure.compareAndSet(null, t);
+                    next.set(softinstruments.length);
+                }
+            }
+        };
+
+        int nrofthreads = Math.min(Runtime.getRuntime().availableProcessors(),
+                softinstruments.length);
+        Thread[] threads = new Thread[Math.max(0, nrofthreads - 1)];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = JSSecurityManager.createThread(worker,
+                    "Gervill Instrument Loader " + (i + 1), true, -1, true);
+        }
+        worker.run();
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        return softinstruments;
+    }
+
     private boolean loadInstruments(List<ModelInstrument> instruments) {
         if (!isOpen())
             return false;
         if (!loadSamples(instruments))
             return false;
 
+        List<SoftInstrument> softinstruments
+                = Arrays.asList(prepareInstruments(instruments));
+        loadStreamingHeads(softinstruments);
+        loadMipmaps(softinstruments);
+        fillSampleCache(softinstruments);
+
         synchronized (control_mutex) {
             if (channels != null)
                 for (SoftChannel c : channels)
@@ -293,12 +559,11 @@ public final class SoftSynthesizer implements AudioSynthesizer,
                     c.current_instrument = null;
                     c.current_director = null;
                 }
-            for (Instrument instrument : instruments) {
+            for (SoftInstrument softins : softinstruments) {
+                ModelInstrument instrument = softins.getSourceInstrument();
                 String pat = patchToString(instrument.getPatch());
-                SoftInstrument softins
-                        = new SoftInstrument((ModelInstrument) instrument);
                 inslist.put(pat, softins);
-                loadedlist.put(pat, (ModelInstrument) instrument);
+                loadedlist.put(pat, instrument);
             }
         }
 
@@ -358,6 +623,28 @@ public final class SoftSynthesizer implements AudioSynthesizer,
         jitter_correction = (Boolean)items[11].value;
         reverb_light = (Boolean)items[12].value;
         load_default_soundbank = (Boolean)items[13].value;
+        render_threads = (Integer)items[14].value;
+        if (render_threads < 1)
+            render_threads = 1;
+        sample_accurate_events = (Boolean)items[15].value;
+        min_event_split = (Integer)items[16].value;
+        if (min_event_split < 1)
+            min_event_split = 1;
+        inaudible_threshold = (Float)items[17].value;
+        inaudible_gain = (float)Math.exp(
+                inaudible_threshold * (Math.log(10) / 20.0));
+        sample_cache_size = (Integer)items[18].value;
+        stream_head = (Integer)items[19].value;
+        sample_dedup = (Boolean)items[20].value;
+        off_heap_samples = (Boolean)items[21].value;
+        compressed_samples = (Boolean)items[22].value;
+        interpolation_lod = (Boolean)items[23].value;
+        sample_mipmaps = (Boolean)items[24].value;
+        direct_reading = (Boolean)items[25].value;
+        // Only the table based resamplers are worth trading down from
+        lod_enabled = interpolation_lod
+                && (resampler instanceof SoftSincResampler
+                || resampler instanceof SoftLanczosResampler);
     }
 
     private String patchToString(Patch patch) {
@@ -476,6 +763,14 @@ public final class SoftSynthesizer implements AudioSynthesizer,
         return voices;
     }
 
+    SoftVoiceIndex getVoiceIndex() {
+        return voiceindex;
+    }
+
+    SoftVoiceAllocator getVoiceAllocator() {
+        return voiceallocator;
+    }
+
     SoftTuning getTuning(Patch patch) {
         String t_id = patchToString(patch);
         SoftTuning tuning = tunings.get(t_id);
@@ -530,6 +825,23 @@ public final class SoftSynthesizer implements AudioSynthesizer,
         }
     }
 
+    /**
+     * Returns the number of active voices interpolating with linear, cubic
+     * and the selected interpolation, in that order.
+     */
+    public int[] getInterpolationVoiceCounts() {
+        int[] counts = new int[3];
+        if (!isOpen())
+            return counts;
+        synchronized (control_mutex) {
+            for (SoftVoice voice : voices)
+                if (voice.active)
+                    counts[!lod_enabled ? SoftVoice.LOD_FULL
+                            : voice.lod_tier]++;
+        }
+        return counts;
+    }
+
     @Override
     public VoiceStatus[] getVoiceStatus() {
         if (!isOpen()) {
@@ -993,6 +1305,74 @@ public final class SoftSynthesizer implements AudioSynthesizer,
         item.description = "Enabled/disable loading default soundbank";
         list.add(item);
 
+        item = new AudioSynthesizerPropertyInfo("render threads", o?render_threads:1);
+        item.description = "Number of threads used to render voices";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("sample accurate events", o && sample_accurate_events);
+        item.description = "Split control blocks at the sample offsets of "
+                + "all timestamped MIDI events, not only note on";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("min event split", o?min_event_split:32);
+        item.description = "Events closer than this many samples to a block "
+                + "split are processed together";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("inaudible threshold",
+                o?inaudible_threshold:Float.NEGATIVE_INFINITY);
+        item.description = "Level in dB below which voices are not rendered, "
+                + "they keep advancing but are not resampled, filtered "
+                + "or mixed, negative infinity turns this off";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("sample cache size", o?sample_cache_size:0);
+        item.description = "Size in MB this synthesizer adds to the "
+                + "process-wide cache of samples decoded to float, "
+                + "0 disables it";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("stream head", o?stream_head:0);
+        item.description = "In large mode, milliseconds at the start of each "
+                + "sample kept in memory while the rest is streamed from "
+                + "disk by a background thread, 0 disables streaming";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("sample deduplication", o && sample_dedup);
+        item.description = "Share loaded samples with identical content, "
+                + "also across soundbanks";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("off heap samples", o && off_heap_samples);
+        item.description = "Load samples into direct memory outside of the "
+                + "garbage collected heap, samples are then not "
+                + "deduplicated or cached as float";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("compressed samples", o && compressed_samples);
+        item.description = "Keep loaded 8 and 16 bit samples losslessly "
+                + "compressed in memory and decode them while they are "
+                + "played, samples are then not cached as float";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("interpolation lod", o && interpolation_lod);
+        item.description = "With sinc or lanczos interpolation, quiet, "
+                + "lowpass filtered or unpitched voices use linear or "
+                + "cubic interpolation instead";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("sample mipmaps", o && sample_mipmaps);
+        item.description = "Keep copies of loaded samples lowpass filtered "
+                + "and decimated by 2, 4 and 8, notes played an octave or "
+                + "more above the sample rate read from them";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("direct sample reading", o && direct_reading);
+        item.description = "Resample samples decoded in memory straight from "
+                + "their arrays with a 64 bit position, instead of "
+                + "streaming them through a sector buffer";
+        list.add(item);
+
         AudioSynthesizerPropertyInfo[] items;
         items = list.toArray(new AudioSynthesizerPropertyInfo[list.size()]);
 
@@ -1105,6 +1485,7 @@ public final class SoftSynthesizer implements AudioSynthesizer,
                     setFormat(line.getFormat());
                 }
 
+                realtime = true;
                 AudioInputStream ais = openStream(getFormat(), info);
 
                 weakstream = new WeakAudioStream(ais);
@@ -1176,6 +1557,7 @@ public final class SoftSynthesizer implements AudioSynthesizer,
                 if (isOpen()) {
                     close();
                 }
+                realtime = false;
                 // am: need MidiUnavailableException(Throwable) ctor!
                 MidiUnavailableException ex = new MidiUnavailableException(
                         "Can not open line");
@@ -1202,6 +1584,16 @@ public final class SoftSynthesizer implements AudioSynthesizer,
             open = true;
             implicitOpen = false;
 
+            if (!largemode && sample_cache_size > 0) {
+                sample_cache_reserved = (long)sample_cache_size << 20;
+                SoftFloatSampleCache.reserve(sample_cache_reserved);
+            }
+            if (largemode && stream_head > 0) {
+                // One ring buffer for each voice streaming a sample
+                stream_rings = maxpoly;
+                SoftDiskStreamer.getInstance().open(stream_rings);
+            }
+
             if (targetFormat != null)
                 setFormat(targetFormat);
 
@@ -1216,6 +1608,8 @@ public final class SoftSynthesizer implements AudioSynthesizer,
             voices = new SoftVoice[maxpoly];
             for (int i = 0; i < maxpoly; i++)
                 voices[i] = new SoftVoice(this);
+            voiceindex = new SoftVoiceIndex(voices, number_of_midi_channels);
+            voiceallocator = new SoftVoiceAllocator(number_of_midi_channels);
 
             mainmixer = new SoftMainMixer(this);
 
@@ -1253,14 +1647,16 @@ public final class SoftSynthesizer implements AudioSynthesizer,
             for (int i = 0; i < channels.length; i++)
                 external_channels[i].setChannel(channels[i]);
 
-            for (SoftVoice voice: getVoices())
+            for (SoftVoice voice: getVoices()) {
                 voice.resampler = resampler.openStreamer();
+                voice.resampler.setDirectReading(direct_reading);
+                voice.resampler.setRealtime(realtime);
+            }
 
             for (Receiver recv: getReceivers()) {
                 SoftReceiver srecv = ((SoftReceiver)recv);
-                srecv.open = open;
                 srecv.mainmixer = mainmixer;
-                srecv.midimessages = mainmixer.midimessages;
+                srecv.open = open;
             }
 
             return mainmixer.getInputStream();
@@ -1305,6 +1701,8 @@ public final class SoftSynthesizer implements AudioSynthesizer,
             implicitOpen = false;
             mainmixer = null;
             voices = null;
+            voiceindex = null;
+            voiceallocator = null;
             channels = null;
 
             if (external_channels != null)
@@ -1320,6 +1718,14 @@ public final class SoftSynthesizer implements AudioSynthesizer,
             loadedlist.clear();
             tunings.clear();
 
+            SoftFloatSampleCache.release(sample_cache_reserved);
+            sample_cache_reserved = 0;
+            if (stream_rings != 0) {
+                SoftDiskStreamer.getInstance().close(stream_rings);
+                stream_rings = 0;
+            }
+            realtime = false;
+
             while (recvslist.size() != 0)
                 recvslist.get(recvslist.size() - 1).close();
 
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2007, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package gervill.com.sun.media.sound;
+
+/**
+ * A concave or convex ModelStandardTransform sampled into a lookup table.
+ * Values between table points are linearly interpolated, values outside
+ * 0 to 1 are passed to the original transform.
+ */
+public final class SoftTransformTable implements ModelTransform {
+
+    // Table points fall on every 7 and 14 bit MIDI value
+    private static final int TABLE_SIZE = 16384;
+    // Indexed by direction, polarity and curve, created when first used
+    private static final SoftTransformTable[] tables
+            = new SoftTransformTable[8];
+    private final ModelStandardTransform exact;
+    private final double[] table = new double[TABLE_SIZE + 1];
+
+    private SoftTransformTable(ModelStandardTransform exact) {
+        this.exact = exact;
+        for (int i = 0; i <= TABLE_SIZE; i++)
+            table[i] = exact.transform(i / (double) TABLE_SIZE);
+    }
+
+    /*
+     * Returns a table driven replacement for transform,
+     * or transform itself if it can't be sampled.
+     */
+    public static ModelTransform getTransform(ModelTransform transform) {
+        if (!(transform instanceof ModelStandardTransform))
+            return transform;
+        ModelStandardTransform stransform = (ModelStandardTransform) transform;
+        int curve = stransform.getTransform();
+        if (curve != ModelStandardTransform.TRANSFORM_CONCAVE
+                && curve != ModelStandardTransform.TRANSFORM_CONVEX)
+            return transform;
+        boolean direction = stransform.getDirection();
+        boolean polarity = stransform.getPolarity();
+        int ix = (direction ? 4 : 0) | (polarity ? 2 : 0)
+                | (curve == ModelStandardTransform.TRANSFORM_CONVEX ? 1 : 0);
+        synchronized (tables) {
+            if (tables[ix] == null)
+                tables[ix] = new SoftTransformTable(new ModelStandardTransform(
+                        direction, polarity, curve));
+            return tables[ix];
+        }
+    }
+
+    @Override
+    public double transform(double value) {
+        if (!(value >= 0 && value <= 1))
+            return exact.transform(value);
+        double x = value * TABLE_SIZE;
+        int ix = (int) x;
+        if (ix == TABLE_SIZE)
+            return table[TABLE_SIZE];
+        double a = table[ix];
+        return a + (table[ix + 1] - a) * (x - ix);
+    }
+}
@@ -26,8 +26,6 @@ package gervill.com.sun.media.sound;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 
 import gervill.javax.sound.midi.VoiceStatus;
 
@@ -56,15 +54,37 @@ public final class SoftVoice extends VoiceStatus {
     int stealer_velocity = 0;
     boolean stealer_releaseTriggered = false;
     int voiceID = -1;
+    // Voice number and links maintained by SoftVoiceIndex
+    int index = -1;
+    boolean indexed = false;
+    int indexed_channel = 0;
+    int indexed_note = 0;
+    SoftVoice channel_prev = null;
+    SoftVoice channel_next = null;
+    SoftVoice note_prev = null;
+    SoftVoice note_next = null;
+    // Progress within a block rendered in segments, the mixer levels
+    // ramp from ramp_* at ramp_pos to out_mixer_* at the end of block.
+    private int segment_pos = 0;
+    private boolean segment_eof = false;
+    private int ramp_pos = 0;
+    private float ramp_left = 0;
+    private float ramp_right = 0;
+    private float ramp_effect1 = 0;
+    private float ramp_effect2 = 0;
+    // Stealing state maintained by SoftVoiceAllocator
+    boolean alloc_stealable = false;
+    boolean alloc_on = false;
+    int alloc_voiceID = -1;
+    int alloc_channel = 0;
     boolean sustain = false;
     boolean sostenuto = false;
     boolean portamento = false;
     private final SoftFilter filter_left;
     private final SoftFilter filter_right;
-    private final SoftProcess eg = new SoftEnvelopeGenerator();
-    private final SoftProcess lfo = new SoftLowFrequencyOscillator();
-    Map<String, SoftControl> objects =
-            new HashMap<String, SoftControl>();
+    private final SoftEnvelopeGenerator eg = new SoftEnvelopeGenerator();
+    private final SoftLowFrequencyOscillator lfo
+            = new SoftLowFrequencyOscillator();
     SoftSynthesizer synthesizer;
     SoftInstrument instrument;
     SoftPerformer performer;
@@ -77,6 +97,12 @@ public final class SoftVoice extends VoiceStatus {
     private ModelOscillatorStream osc_stream;
     private int osc_stream_nrofchannels;
     private float[][] osc_buff = new float[2][];
+    // Empty buffers, reading into them only advances the resampler
+    private float[][] osc_skip_buff = new float[2][];
+    // Set when all mixer levels are below the inaudible threshold
+    private boolean inaudible = false;
+    // Set when filtering was skipped, the filter state is then stale
+    private boolean filter_stale = false;
     private boolean osc_stream_off_transmitted = false;
     private boolean out_mixer_end = false;
     private float out_mixer_left = 0;
@@ -94,7 +120,10 @@ public final class SoftVoice extends VoiceStatus {
     // Pointer to source value
     private double[][][] connections_src = new double[50][3][];
     // Key-based override (if any)
-    private int[][] connections_src_kc = new int[50][3];
+    private int[][] connections_src_kc = null;
+    // Source and destination transforms
+    private ModelTransform[][] connections_src_transform = null;
+    private ModelTransform[] connections_dst_transform = null;
     // Pointer to destination value
     private double[][] connections_dst = new double[50][];
     private boolean soundoff = false;
@@ -103,130 +132,69 @@ public final class SoftVoice extends VoiceStatus {
     double[] co_noteon_keynumber = new double[1];
     double[] co_noteon_velocity = new double[1];
     double[] co_noteon_on = new double[1];
-    private final SoftControl co_noteon = new SoftControl() {
-        final double[] keynumber = co_noteon_keynumber;
-        final double[] velocity = co_noteon_velocity;
-        final double[] on = co_noteon_on;
-        @Override
-        public double[] get(int instance, String name) {
-            if (name == null)
-                return null;
-            if (name.equals("keynumber"))
-                return keynumber;
-            if (name.equals("velocity"))
-                return velocity;
-            if (name.equals("on"))
-                return on;
-            return null;
-        }
-    };
     private final double[] co_mixer_active = new double[1];
     private final double[] co_mixer_gain = new double[1];
     private final double[] co_mixer_pan = new double[1];
     private final double[] co_mixer_balance = new double[1];
     private final double[] co_mixer_reverb = new double[1];
     private final double[] co_mixer_chorus = new double[1];
-    private final SoftControl co_mixer = new SoftControl() {
-        final double[] active = co_mixer_active;
-        final double[] gain = co_mixer_gain;
-        final double[] pan = co_mixer_pan;
-        final double[] balance = co_mixer_balance;
-        final double[] reverb = co_mixer_reverb;
-        final double[] chorus = co_mixer_chorus;
-        @Override
-        public double[] get(int instance, String name) {
-            if (name == null)
-                return null;
-            if (name.equals("active"))
-                return active;
-            if (name.equals("gain"))
-                return gain;
-            if (name.equals("pan"))
-                return pan;
-            if (name.equals("balance"))
-                return balance;
-            if (name.equals("reverb"))
-                return reverb;
-            if (name.equals("chorus"))
-                return chorus;
-            return null;
-        }
-    };
     private final double[] co_osc_pitch = new double[1];
-    private final SoftControl co_osc = new SoftControl() {
-        final double[] pitch = co_osc_pitch;
-        @Override
-        public double[] get(int instance, String name) {
-            if (name == null)
-                return null;
-            if (name.equals("pitch"))
-                return pitch;
-            return null;
-        }
-    };
     private final double[] co_filter_freq = new double[1];
     private final double[] co_filter_type = new double[1];
     private final double[] co_filter_q = new double[1];
-    private final SoftControl co_filter = new SoftControl() {
-        final double[] freq = co_filter_freq;
-        final double[] ftype = co_filter_type;
-        final double[] q = co_filter_q;
-        @Override
-        public double[] get(int instance, String name) {
-            if (name == null)
-                return null;
-            if (name.equals("freq"))
-                return freq;
-            if (name.equals("type"))
-                return ftype;
-            if (name.equals("q"))
-                return q;
-            return null;
-        }
-    };
+    // Voice controls indexed by compiled slot, variables are
+    // in SoftPerformer.CONTROL_VARIABLES order
+    private final double[][][] co_slots = new double[][][] {
+        null, null, null,
+        {co_noteon_keynumber, co_noteon_velocity, co_noteon_on},
+        {co_osc_pitch},
+        {co_mixer_active, co_mixer_gain, co_mixer_pan, co_mixer_balance,
+                co_mixer_reverb, co_mixer_chorus},
+        {co_filter_freq, co_filter_type, co_filter_q}};
     SoftResamplerStreamer resampler;
+    // Interpolation level of detail, see SoftResamplerStreamer
+    static final int LOD_LINEAR = 0;
+    static final int LOD_CUBIC = 1;
+    static final int LOD_FULL = 2;
+    int lod_tier = LOD_FULL;
     private final int nrofchannels;
+    private SoftAudioBuffer[] render_buffers = null;
+    private boolean rendered = false;
+    private boolean render_eof = false;
 
     public SoftVoice(SoftSynthesizer synth) {
         synthesizer = synth;
         filter_left = new SoftFilter(synth.getFormat().getSampleRate());
         filter_right = new SoftFilter(synth.getFormat().getSampleRate());
+        filter_right.setSibling(filter_left);
         nrofchannels = synth.getFormat().getChannels();
     }
 
-    private int getValueKC(ModelIdentifier id) {
-        if (id.getObject().equals("midi_cc")) {
-            int ic = Integer.parseInt(id.getVariable());
-            if (ic != 0 && ic != 32) {
-                if (ic < 120)
-                    return ic;
-            }
-        } else if (id.getObject().equals("midi_rpn")) {
-            if (id.getVariable().equals("1"))
-                return 120; // Fine tuning
-            if (id.getVariable().equals("2"))
-                return 121; // Coarse tuning
-        }
-        return -1;
-    }
-
-    private double[] getValue(ModelIdentifier id) {
-        SoftControl o = objects.get(id.getObject());
-        if (o == null)
+    private double[] getValue(int slot) {
+        if (slot == -1)
             return null;
-        return o.get(id.getInstance(), id.getVariable());
-    }
-
-    private double transformValue(double value, ModelSource src) {
-        if (src.getTransform() != null)
-            return src.getTransform().transform(value);
-        else
-            return value;
+        int object = SoftPerformer.getSlotObject(slot);
+        int variable = SoftPerformer.getSlotVariable(slot);
+        switch (object) {
+        case SoftPerformer.CONTROL_MASTER:
+            return synthesizer.getMainMixer().co_master_slots[variable];
+        case SoftPerformer.CONTROL_EG:
+            return eg.get(SoftPerformer.getSlotInstance(slot), variable);
+        case SoftPerformer.CONTROL_LFO:
+            return lfo.get(SoftPerformer.getSlotInstance(slot), variable);
+        case SoftPerformer.CONTROL_NOTEON:
+        case SoftPerformer.CONTROL_OSC:
+        case SoftPerformer.CONTROL_MIXER:
+        case SoftPerformer.CONTROL_FILTER:
+            return co_slots[object][variable];
+        default:
+            return softchannel.getControl(noteOn_noteNumber, object, variable);
+        }
     }
 
-    private double transformValue(double value, ModelDestination dst) {
-        if (dst.getTransform() != null)
-            return dst.getTransform().transform(value);
+    private static double transformValue(double value, ModelTransform t) {
+        if (t != null)
+            return t.transform(value);
         else
             return value;
     }
@@ -258,25 +226,24 @@ public final class SoftVoice extends VoiceStatus {
             return;
 
         double value = conn.getScale();
+        ModelTransform[] src_t = connections_src_transform[ix];
         if (softchannel.keybasedcontroller_active == null) {
-            ModelSource[] srcs = conn.getSources();
-            for (int i = 0; i < srcs.length; i++) {
-                value *= transformValue(src[i][0], srcs[i]);
+            for (int i = 0; i < src_t.length; i++) {
+                value *= transformValue(src[i][0], src_t[i]);
                 if (value == 0)
                     break;
             }
         } else {
-            ModelSource[] srcs = conn.getSources();
             int[] src_kc = connections_src_kc[ix];
-            for (int i = 0; i < srcs.length; i++) {
+            for (int i = 0; i < src_t.length; i++) {
                 value *= transformValue(processKeyBasedController(src[i][0],
-                        src_kc[i]), srcs[i]);
+                        src_kc[i]), src_t[i]);
                 if (value == 0)
                     break;
             }
         }
 
-        value = transformValue(value, conn.getDestination());
+        value = transformValue(value, connections_dst_transform[ix]);
         dst[0] = dst[0] - connections_last[ix] + value;
         connections_last[ix] = value;
         // co_mixer_gain[0] = 0;
@@ -300,6 +267,8 @@ public final class SoftVoice extends VoiceStatus {
     void setNote(int noteNumber) {
         note = noteNumber;
         tunedKey = tuning.getTuning(noteNumber) / 100.0;
+        if (indexed)
+            synthesizer.getVoiceIndex().noteChanged(this);
     }
 
     void noteOn(int noteNumber, int velocity, int delay) {
@@ -312,6 +281,7 @@ public final class SoftVoice extends VoiceStatus {
         on = true;
         active = true;
         started = true;
+        rendered = false;
         // volume = velocity;
 
         noteOn_noteNumber = noteNumber;
@@ -322,6 +292,8 @@ public final class SoftVoice extends VoiceStatus {
         lastSoloMuteValue = 0;
 
         setNote(noteNumber);
+        synthesizer.getVoiceIndex().add(this);
+        synthesizer.getVoiceAllocator().update(this);
 
         if (performer.forcedKeynumber)
             co_noteon_keynumber[0] = 0;
@@ -347,16 +319,14 @@ public final class SoftVoice extends VoiceStatus {
         lfo.reset();
         filter_left.reset();
         filter_right.reset();
-
-        objects.put("master", synthesizer.getMainMixer().co_master);
-        objects.put("eg", eg);
-        objects.put("lfo", lfo);
-        objects.put("noteon", co_noteon);
-        objects.put("osc", co_osc);
-        objects.put("mixer", co_mixer);
-        objects.put("filter", co_filter);
+        filter_stale = false;
 
         connections = performer.connections;
+        connections_src_kc = performer.connections_src_kc;
+        connections_src_transform = performer.connections_src_transform;
+        connections_dst_transform = performer.connections_dst_transform;
+        int[][] src_slots = performer.connections_src_slot;
+        int[] dst_slots = performer.connections_dst_slot;
 
         if (connections_last == null
                 || connections_last.length < connections.length) {
@@ -365,7 +335,6 @@ public final class SoftVoice extends VoiceStatus {
         if (connections_src == null
                 || connections_src.length < connections.length) {
             connections_src = new double[connections.length][][];
-            connections_src_kc = new int[connections.length][];
         }
         if (connections_dst == null
                 || connections_dst.length < connections.length) {
@@ -379,22 +348,14 @@ public final class SoftVoice extends VoiceStatus {
                 if (connections_src[i] == null
                         || connections_src[i].length < srcs.length) {
                     connections_src[i] = new double[srcs.length][];
-                    connections_src_kc[i] = new int[srcs.length];
                 }
                 double[][] src = connections_src[i];
-                int[] src_kc = connections_src_kc[i];
-                connections_src[i] = src;
-                for (int j = 0; j < srcs.length; j++) {
-                    src_kc[j] = getValueKC(srcs[j].getIdentifier());
-                    src[j] = getValue(srcs[j].getIdentifier());
-                }
+                int[] src_slot = src_slots[i];
+                for (int j = 0; j < srcs.length; j++)
+                    src[j] = getValue(src_slot[j]);
             }
 
-            if (conn.getDestination() != null)
-                connections_dst[i] = getValue(conn.getDestination()
-                        .getIdentifier());
-            else
-                connections_dst[i] = null;
+            connections_dst[i] = getValue(dst_slots[i]);
         }
 
         for (int i = 0; i < connections.length; i++)
@@ -406,7 +367,8 @@ public final class SoftVoice extends VoiceStatus {
 
                 if (softchannel.keybasedcontroller_active == null) {
                     for (ModelSource src: connection.getSources()) {
-                        double x = getValue(src.getIdentifier())[0];
+                        double x = getValue(SoftPerformer.compileSlot(
+                                src.getIdentifier()))[0];
                         ModelTransform t = src.getTransform();
                         if (t == null)
                             value += x;
@@ -415,9 +377,10 @@ public final class SoftVoice extends VoiceStatus {
                     }
                 } else {
                     for (ModelSource src: connection.getSources()) {
-                        double x = getValue(src.getIdentifier())[0];
+                        ModelIdentifier id = src.getIdentifier();
+                        double x = getValue(SoftPerformer.compileSlot(id))[0];
                         x = processKeyBasedController(x,
-                                getValueKC(src.getIdentifier()));
+                                SoftPerformer.compileKeyBasedController(id));
                         ModelTransform t = src.getTransform();
                         if (t == null)
                             value += x;
@@ -430,7 +393,8 @@ public final class SoftVoice extends VoiceStatus {
                 ModelTransform t = dest.getTransform();
                 if (t != null)
                     value = t.transform(value);
-                getValue(dest.getIdentifier())[0] += value;
+                getValue(SoftPerformer.compileSlot(
+                        dest.getIdentifier()))[0] += value;
             }
         }
 
@@ -515,6 +479,7 @@ public final class SoftVoice extends VoiceStatus {
         if (co_noteon_on[0] < -0.5)
             return;
         on = false;
+        synthesizer.getVoiceAllocator().update(this);
 
         co_noteon_on[0] = -1;
 
@@ -530,12 +495,14 @@ public final class SoftVoice extends VoiceStatus {
     void soundOff() {
         on = false;
         soundoff = true;
+        synthesizer.getVoiceAllocator().update(this);
     }
 
     void noteOff(int velocity) {
         if (!on)
             return;
         on = false;
+        synthesizer.getVoiceAllocator().update(this);
 
         noteOff_velocity = velocity;
 
@@ -578,6 +545,8 @@ public final class SoftVoice extends VoiceStatus {
     void processControlLogic() {
         if (stopping) {
             active = false;
+            synthesizer.getVoiceIndex().remove(this);
+            synthesizer.getVoiceAllocator().update(this);
             stopping = false;
             audiostarted = false;
             instrument = null;
@@ -605,6 +574,7 @@ public final class SoftVoice extends VoiceStatus {
                 stealer_velocity = 0;
                 stealer_extendedConnectionBlocks = null;
                 stealer_channelmixer = null;
+                synthesizer.getVoiceAllocator().update(this);
             }
         }
         if (started) {
@@ -618,6 +588,7 @@ public final class SoftVoice extends VoiceStatus {
                     resampler.open((ModelWavetable)osc,
                             synthesizer.getFormat().getSampleRate());
                     osc_stream = resampler;
+                    lod_tier = LOD_FULL;
                 } catch (IOException e) {
                     //e.printStackTrace();
                 }
@@ -626,8 +597,10 @@ public final class SoftVoice extends VoiceStatus {
             }
             osc_attenuation = osc.getAttenuation();
             osc_stream_nrofchannels = osc.getChannels();
-            if (osc_buff == null || osc_buff.length < osc_stream_nrofchannels)
+            if (osc_buff == null || osc_buff.length < osc_stream_nrofchannels) {
                 osc_buff = new float[osc_stream_nrofchannels][];
+                osc_skip_buff = new float[osc_stream_nrofchannels][];
+            }
 
             if (osc_stream != null)
                 osc_stream.noteOn(softchannel, this, noteOn_noteNumber,
@@ -659,109 +632,148 @@ public final class SoftVoice extends VoiceStatus {
             eg.processControlLogic();
             lfo.processControlLogic();
 
-            for (int i = 0; i < performer.ctrl_connections.length; i++)
-                processConnection(performer.ctrl_connections[i]);
+            processOutputLogic();
+        }
+        if (started) {
+            last_out_mixer_left = out_mixer_left;
+            last_out_mixer_right = out_mixer_right;
+            last_out_mixer_effect1 = out_mixer_effect1;
+            last_out_mixer_effect2 = out_mixer_effect2;
+            started = false;
+        }
 
-            osc_stream.setPitch((float)co_osc_pitch[0]);
+    }
 
-            int filter_type = (int)co_filter_type[0];
-            double filter_freq;
+    // Update pitch, filter and mixer levels from the current
+    // modulation values, without advancing envelopes or LFOs.
+    private void processOutputLogic() {
+        for (int i = 0; i < performer.ctrl_connections.length; i++)
+            processConnection(performer.ctrl_connections[i]);
 
-            if (co_filter_freq[0] == 13500.0)
-                filter_freq = 19912.126958213175;
-            else
-                filter_freq = 440.0 * Math.exp(
-                        ((co_filter_freq[0]) - 6900.0) *
-                        (Math.log(2.0) / 1200.0));
-            /*
-            filter_freq = 440.0 * Math.pow(2.0,
-            ((co_filter_freq[0]) - 6900.0) / 1200.0);*/
-            /*
-             * double velocity = co_noteon_velocity[0]; if(velocity < 0.5)
-             * filter_freq *= ((velocity * 2)*0.75 + 0.25);
-             */
+        osc_stream.setPitch((float)co_osc_pitch[0]);
 
-            double q = co_filter_q[0] / 10.0;
-            filter_left.setFilterType(filter_type);
-            filter_left.setFrequency(filter_freq);
-            filter_left.setResonance(q);
-            filter_right.setFilterType(filter_type);
-            filter_right.setFrequency(filter_freq);
-            filter_right.setResonance(q);
+        int filter_type = (int)co_filter_type[0];
+        double filter_freq;
+
+        if (co_filter_freq[0] == 13500.0)
+            filter_freq = 19912.126958213175;
+        else
+            filter_freq = 440.0 * SoftFastMath.centsToRatio(
+                    co_filter_freq[0] - 6900.0);
+        /*
+        filter_freq = 440.0 * Math.pow(2.0,
+        ((co_filter_freq[0]) - 6900.0) / 1200.0);*/
+        /*
+         * double velocity = co_noteon_velocity[0]; if(velocity < 0.5)
+         * filter_freq *= ((velocity * 2)*0.75 + 0.25);
+         */
+
+        double q = co_filter_q[0] / 10.0;
+        filter_left.setFilterType(filter_type);
+        filter_left.setFrequency(filter_freq);
+        filter_left.setResonance(q);
+        filter_right.setFilterType(filter_type);
+        filter_right.setFrequency(filter_freq);
+        filter_right.setResonance(q);
+        /*
+        float gain = (float) Math.pow(10,
+        (-osc_attenuation + co_mixer_gain[0]) / 200.0);
+         */
+        float gain = (float)SoftFastMath.centibelsToGain(
+                -osc_attenuation + co_mixer_gain[0]);
+
+        if (co_mixer_gain[0] <= -960)
+            gain = 0;
+
+        if (soundoff) {
+            stopping = true;
+            gain = 0;
             /*
-            float gain = (float) Math.pow(10,
-            (-osc_attenuation + co_mixer_gain[0]) / 200.0);
+             * if(co_mixer_gain[0] > -960)
+             *   co_mixer_gain[0] -= 960;
              */
-            float gain = (float)Math.exp(
-                    (-osc_attenuation + co_mixer_gain[0])*(Math.log(10) / 200.0));
+        }
 
-            if (co_mixer_gain[0] <= -960)
-                gain = 0;
+        volume = (int)(Math.sqrt(gain) * 128);
 
-            if (soundoff) {
-                stopping = true;
-                gain = 0;
-                /*
-                 * if(co_mixer_gain[0] > -960)
-                 *   co_mixer_gain[0] -= 960;
-                 */
-            }
+        // gain *= 0.2;
 
-            volume = (int)(Math.sqrt(gain) * 128);
+        double pan = co_mixer_pan[0] * (1.0 / 1000.0);
+        // System.out.println("pan = " + pan);
+        if (pan < 0)
+            pan = 0;
+        else if (pan > 1)
+            pan = 1;
 
-            // gain *= 0.2;
+        if (pan == 0.5) {
+            out_mixer_left = gain * 0.7071067811865476f;
+            out_mixer_right = out_mixer_left;
+        } else {
+            out_mixer_left = gain * (float)SoftFastMath.cos(pan * Math.PI * 0.5);
+            out_mixer_right = gain * (float)SoftFastMath.sin(pan * Math.PI * 0.5);
+        }
 
-            double pan = co_mixer_pan[0] * (1.0 / 1000.0);
-            // System.out.println("pan = " + pan);
-            if (pan < 0)
-                pan = 0;
-            else if (pan > 1)
-                pan = 1;
+        double balance = co_mixer_balance[0] * (1.0 / 1000.0);
+        if (balance != 0.5) {
+            if (balance > 0.5)
+                out_mixer_left *= (1 - balance) * 2;
+            else
+                out_mixer_right *= balance * 2;
+        }
 
-            if (pan == 0.5) {
-                out_mixer_left = gain * 0.7071067811865476f;
-                out_mixer_right = out_mixer_left;
-            } else {
-                out_mixer_left = gain * (float)Math.cos(pan * Math.PI * 0.5);
-                out_mixer_right = gain * (float)Math.sin(pan * Math.PI * 0.5);
-            }
+        if (synthesizer.reverb_on) {
+            out_mixer_effect1 = (float)(co_mixer_reverb[0] * (1.0 / 1000.0));
+            out_mixer_effect1 *= gain;
+        } else
+            out_mixer_effect1 = 0;
+        if (synthesizer.chorus_on) {
+            out_mixer_effect2 = (float)(co_mixer_chorus[0] * (1.0 / 1000.0));
+            out_mixer_effect2 *= gain;
+        } else
+            out_mixer_effect2 = 0;
+        out_mixer_end = co_mixer_active[0] < 0.5;
+
+        if (synthesizer.lod_enabled && osc_stream == resampler)
+            updateInterpolation(filter_type, filter_freq);
 
-            double balance = co_mixer_balance[0] * (1.0 / 1000.0);
-            if (balance != 0.5) {
-                if (balance > 0.5)
-                    out_mixer_left *= (1 - balance) * 2;
-                else
-                    out_mixer_right *= balance * 2;
+        if (!on)
+            if (!osc_stream_off_transmitted) {
+                osc_stream_off_transmitted = true;
+                if (osc_stream != null)
+                    osc_stream.noteOff();
             }
+    }
 
-            if (synthesizer.reverb_on) {
-                out_mixer_effect1 = (float)(co_mixer_reverb[0] * (1.0 / 1000.0));
-                out_mixer_effect1 *= gain;
-            } else
-                out_mixer_effect1 = 0;
-            if (synthesizer.chorus_on) {
-                out_mixer_effect2 = (float)(co_mixer_chorus[0] * (1.0 / 1000.0));
-                out_mixer_effect2 *= gain;
-            } else
-                out_mixer_effect2 = 0;
-            out_mixer_end = co_mixer_active[0] < 0.5;
-
-            if (!on)
-                if (!osc_stream_off_transmitted) {
-                    osc_stream_off_transmitted = true;
-                    if (osc_stream != null)
-                        osc_stream.noteOff();
-                }
-
-        }
-        if (started) {
-            last_out_mixer_left = out_mixer_left;
-            last_out_mixer_right = out_mixer_right;
-            last_out_mixer_effect1 = out_mixer_effect1;
-            last_out_mixer_effect2 = out_mixer_effect2;
-            started = false;
-        }
+    // Pick the cheapest interpolation that is still transparent at the
+    // current level and lowpass cutoff. The resampler switches to it at
+    // its next sector, and goes lower by itself at 1:1 pitch.
+    private void updateInterpolation(int filter_type, double filter_freq) {
+        int tier = lod_tier;
+        float level = Math.max(
+                Math.max(Math.abs(out_mixer_left), Math.abs(out_mixer_right)),
+                Math.max(Math.abs(out_mixer_effect1),
+                        Math.abs(out_mixer_effect2)));
+        double level_db = level > 0 ? 20 * Math.log10(level) : -200;
+        int t = lodTier(level_db, -60, -40, 3, tier);
+        // A low cutoff removes most of what cubic interpolation leaves,
+        // but not images aliased into the passband, so it never goes
+        // down to linear
+        if ((filter_type & 0xF0) == 0 && !Double.isInfinite(co_filter_freq[0]))
+            t = Math.min(t, lodTier(Math.log(filter_freq),
+                    Double.NEGATIVE_INFINITY, Math.log(4000), 0.2, tier));
+        lod_tier = t;
+        resampler.setInterpolationTier(t);
+    }
 
+    // Tier of x for the thresholds t1 < t2, reaching a higher tier than
+    // the current one needs x to be h above the threshold
+    private static int lodTier(double x, double t1, double t2, double h,
+            int current) {
+        if (x < t1 + (current < LOD_CUBIC ? h : 0))
+            return LOD_LINEAR;
+        if (x < t2 + (current < LOD_FULL ? h : 0))
+            return LOD_CUBIC;
+        return LOD_FULL;
     }
 
     void mixAudioStream(SoftAudioBuffer in, SoftAudioBuffer out,
@@ -819,31 +831,291 @@ public final class SoftVoice extends VoiceStatus {
 
     }
 
-    void processAudioLogic(SoftAudioBuffer[] buffer) {
-        if (!audiostarted)
+    // True if the mixer levels ramping from the given values to the
+    // current ones are all below the inaudible threshold.
+    private boolean isInaudible(float left, float right, float effect1,
+                                float effect2) {
+        float t = synthesizer.inaudible_gain;
+        return Math.abs(left) < t && Math.abs(right) < t
+                && Math.abs(effect1) < t && Math.abs(effect2) < t
+                && Math.abs(out_mixer_left) < t
+                && Math.abs(out_mixer_right) < t
+                && Math.abs(out_mixer_effect1) < t
+                && Math.abs(out_mixer_effect2) < t;
+    }
+
+    // Prepare for rendering the current block in segments,
+    // called after processControlLogic.
+    void beginSegments() {
+        segment_pos = 0;
+        segment_eof = false;
+        ramp_pos = 0;
+        if (nrofchannels == 1)
+            out_mixer_left = (out_mixer_left + out_mixer_right) / 2;
+        ramp_left = last_out_mixer_left;
+        ramp_right = last_out_mixer_right;
+        ramp_effect1 = last_out_mixer_effect1;
+        ramp_effect2 = last_out_mixer_effect2;
+        inaudible = isInaudible(ramp_left, ramp_right, ramp_effect1,
+                ramp_effect2);
+    }
+
+    // Apply changes made by MIDI events at a block split, the mixer
+    // levels ramp from where they are now to the new values.
+    void splitControlLogic(int bufferlen) {
+        if (started) {
+            // Note on at this split
+            processControlLogic();
+            beginSegments();
+            return;
+        }
+        if (!audiostarted || segment_eof)
+            return;
+        float f = (segment_pos - ramp_pos) / (float)(bufferlen - ramp_pos);
+        ramp_left += (out_mixer_left - ramp_left) * f;
+        ramp_right += (out_mixer_right - ramp_right) * f;
+        ramp_effect1 += (out_mixer_effect1 - ramp_effect1) * f;
+        ramp_effect2 += (out_mixer_effect2 - ramp_effect2) * f;
+        ramp_pos = segment_pos;
+        processOutputLogic();
+        if (nrofchannels == 1)
+            out_mixer_left = (out_mixer_left + out_mixer_right) / 2;
+        inaudible = isInaudible(ramp_left, ramp_right, ramp_effect1,
+                ramp_effect2);
+    }
+
+    // Render and mix the voice up to block position block_to,
+    // or to the end of the block if last is set. Positions are
+    // shifted by the note on delay of the voice.
+    void processSegment(SoftAudioBuffer[] buffer, int block_to,
+                        boolean last) {
+        if (!audiostarted || segment_eof)
             return;
 
         int bufferlen = buffer[0].getSize();
-
-        try {
-            osc_buff[0] = buffer[SoftMainMixer.CHANNEL_LEFT_DRY].array();
-            if (nrofchannels != 1)
-                osc_buff[1] = buffer[SoftMainMixer.CHANNEL_RIGHT_DRY].array();
-            int ret = osc_stream.read(osc_buff, 0, bufferlen);
-            if (ret == -1) {
+        int from = segment_pos;
+        int to = bufferlen;
+        if (!last)
+            to = Math.max(0, Math.min(bufferlen, block_to - delay));
+
+        if (to > from) {
+            SoftAudioBuffer leftdry = buffer[SoftMainMixer.CHANNEL_LEFT_DRY];
+            SoftAudioBuffer rightdry = buffer[SoftMainMixer.CHANNEL_RIGHT_DRY];
+            if (!renderDryAudio(leftdry, rightdry, from, to - from)) {
                 stopping = true;
+                segment_eof = true;
                 return;
             }
-            if (ret != bufferlen) {
-                Arrays.fill(osc_buff[0], ret, bufferlen, 0f);
+            if (!inaudible)
+                mixSegment(buffer, leftdry, rightdry, from, to);
+            segment_pos = to;
+        }
+
+        if (last) {
+            last_out_mixer_left = out_mixer_left;
+            last_out_mixer_right = out_mixer_right;
+            last_out_mixer_effect1 = out_mixer_effect1;
+            last_out_mixer_effect2 = out_mixer_effect2;
+            if (out_mixer_end)
+                stopping = true;
+        }
+    }
+
+    private void mixSegment(SoftAudioBuffer[] buffer, SoftAudioBuffer leftdry,
+                            SoftAudioBuffer rightdry, int from, int to) {
+        SoftAudioBuffer left = buffer[SoftMainMixer.CHANNEL_LEFT];
+        SoftAudioBuffer right = buffer[SoftMainMixer.CHANNEL_RIGHT];
+        SoftAudioBuffer mono = buffer[SoftMainMixer.CHANNEL_MONO];
+        SoftAudioBuffer eff1 = buffer[SoftMainMixer.CHANNEL_EFFECT1];
+        SoftAudioBuffer eff2 = buffer[SoftMainMixer.CHANNEL_EFFECT2];
+
+        SoftAudioBuffer dleft = buffer[SoftMainMixer.CHANNEL_DELAY_LEFT];
+        SoftAudioBuffer dright = buffer[SoftMainMixer.CHANNEL_DELAY_RIGHT];
+        SoftAudioBuffer dmono = buffer[SoftMainMixer.CHANNEL_DELAY_MONO];
+        SoftAudioBuffer deff1 = buffer[SoftMainMixer.CHANNEL_DELAY_EFFECT1];
+        SoftAudioBuffer deff2 = buffer[SoftMainMixer.CHANNEL_DELAY_EFFECT2];
+
+        if (osc_stream_nrofchannels == 1)
+            rightdry = null;
+
+        if (nrofchannels == 1) {
+            mixAudioSegment(leftdry, left, dleft, ramp_left,
+                    out_mixer_left, from, to);
+            if (rightdry != null)
+                mixAudioSegment(rightdry, left, dleft, ramp_left,
+                        out_mixer_left, from, to);
+        } else if (rightdry == null && ramp_left == ramp_right
+                && out_mixer_left == out_mixer_right) {
+            mixAudioSegment(leftdry, mono, dmono, ramp_left,
+                    out_mixer_left, from, to);
+        } else {
+            mixAudioSegment(leftdry, left, dleft, ramp_left,
+                    out_mixer_left, from, to);
+            mixAudioSegment(rightdry != null ? rightdry : leftdry,
+                    right, dright, ramp_right, out_mixer_right, from, to);
+        }
+
+        if (rightdry == null) {
+            mixAudioSegment(leftdry, eff1, deff1, ramp_effect1,
+                    out_mixer_effect1, from, to);
+            mixAudioSegment(leftdry, eff2, deff2, ramp_effect2,
+                    out_mixer_effect2, from, to);
+        } else {
+            mixAudioSegment(leftdry, eff1, deff1, ramp_effect1 * 0.5f,
+                    out_mixer_effect1 * 0.5f, from, to);
+            mixAudioSegment(leftdry, eff2, deff2, ramp_effect2 * 0.5f,
+                    out_mixer_effect2 * 0.5f, from, to);
+            mixAudioSegment(rightdry, eff1, deff1, ramp_effect1 * 0.5f,
+                    out_mixer_effect1 * 0.5f, from, to);
+            mixAudioSegment(rightdry, eff2, deff2, ramp_effect2 * 0.5f,
+                    out_mixer_effect2 * 0.5f, from, to);
+        }
+    }
+
+    // Mix voice samples from..to, ramping the level from amp_from at
+    // ramp_pos to amp_to at the end of the block.
+    private void mixAudioSegment(SoftAudioBuffer in, SoftAudioBuffer out,
+                                 SoftAudioBuffer dout, float amp_from,
+                                 float amp_to, int from, int to) {
+        if (amp_from < 0.000000001 && amp_to < 0.000000001)
+            return;
+        int bufferlen = in.getSize();
+        float amp_delta = (amp_to - amp_from) / (bufferlen - ramp_pos);
+        float amp = amp_from + amp_delta * (from - ramp_pos);
+        float[] fin = in.array();
+        // Samples past bufferlen - delay go into the next block
+        int split = bufferlen - delay;
+        int end = Math.min(to, split);
+        if (from < end) {
+            float[] fout = out.array();
+            for (int i = from; i < end; i++) {
+                amp += amp_delta;
+                fout[i + delay] += fin[i] * amp;
+            }
+        }
+        int start = Math.max(from, split);
+        if (start < to) {
+            float[] fout = dout.array();
+            for (int i = start; i < to; i++) {
+                amp += amp_delta;
+                fout[i - split] += fin[i] * amp;
+            }
+        }
+    }
+
+    boolean isAudioStarted() {
+        return audiostarted;
+    }
+
+    private boolean renderDryAudio(SoftAudioBuffer leftdry,
+                                   SoftAudioBuffer rightdry, int offset,
+                                   int len) {
+        if (inaudible && osc_stream == resampler) {
+            // Only advance the oscillator, the output is not used
+            try {
+                if (osc_stream.read(osc_skip_buff, offset, len) == -1)
+                    return false;
+            } catch (IOException e) {
+                //e.printStackTrace();
+            }
+            filter_stale = true;
+            return true;
+        }
+
+        try {
+            osc_buff[0] = leftdry.array();
+            if (nrofchannels != 1)
+                osc_buff[1] = rightdry.array();
+            int ret = osc_stream.read(osc_buff, offset, len);
+            if (ret == -1)
+                return false;
+            if (ret != len) {
+                Arrays.fill(osc_buff[0], offset + ret, offset + len, 0f);
                 if (nrofchannels != 1)
-                    Arrays.fill(osc_buff[1], ret, bufferlen, 0f);
+                    Arrays.fill(osc_buff[1], offset + ret, offset + len, 0f);
             }
 
         } catch (IOException e) {
             //e.printStackTrace();
         }
 
+        if (inaudible) {
+            filter_stale = true;
+        } else if (!Double.isInfinite(co_filter_freq[0])) {
+            if (filter_stale) {
+                // Restart the filters from silence instead of
+                // from the state left when the voice became inaudible,
+                // the level ramps up from below the threshold.
+                filter_left.reset();
+                filter_right.reset();
+                filter_stale = false;
+            }
+            filter_left.processAudio(leftdry, offset, len);
+            if (osc_stream_nrofchannels != 1)
+                filter_right.processAudio(rightdry, offset, len);
+        }
+        return true;
+    }
+
+    // Render oscillator and filter output into the voice's private
+    // dry buffers, so it can be done on a worker thread ahead of
+    // processAudioLogic, which then only mixes the result.
+    void renderAudioLogic(int bufferlen) {
+        if (!audiostarted)
+            return;
+        if (render_buffers == null
+                || render_buffers[0].getSize() != bufferlen) {
+            render_buffers = new SoftAudioBuffer[2];
+            for (int i = 0; i < render_buffers.length; i++)
+                render_buffers[i] = new SoftAudioBuffer(bufferlen,
+                        synthesizer.getFormat());
+        }
+        inaudible = isInaudible(last_out_mixer_left, last_out_mixer_right,
+                last_out_mixer_effect1, last_out_mixer_effect2);
+        render_eof = !renderDryAudio(render_buffers[0], render_buffers[1],
+                0, bufferlen);
+        rendered = true;
+    }
+
+    void processAudioLogic(SoftAudioBuffer[] buffer) {
+        if (!audiostarted)
+            return;
+
+        SoftAudioBuffer leftdry;
+        SoftAudioBuffer rightdry;
+
+        if (rendered) {
+            rendered = false;
+            if (render_eof) {
+                stopping = true;
+                return;
+            }
+            leftdry = render_buffers[0];
+            rightdry = render_buffers[1];
+        } else {
+            inaudible = isInaudible(last_out_mixer_left, last_out_mixer_right,
+                    last_out_mixer_effect1, last_out_mixer_effect2);
+            leftdry = buffer[SoftMainMixer.CHANNEL_LEFT_DRY];
+            rightdry = buffer[SoftMainMixer.CHANNEL_RIGHT_DRY];
+            if (!renderDryAudio(leftdry, rightdry, 0, buffer[0].getSize())) {
+                stopping = true;
+                return;
+            }
+        }
+
+        if (inaudible) {
+            // Nothing to mix, only keep the levels up to date
+            if (nrofchannels == 1)
+                out_mixer_left = (out_mixer_left + out_mixer_right) / 2;
+            last_out_mixer_left = out_mixer_left;
+            last_out_mixer_right = out_mixer_right;
+            last_out_mixer_effect1 = out_mixer_effect1;
+            last_out_mixer_effect2 = out_mixer_effect2;
+            if (out_mixer_end)
+                stopping = true;
+            return;
+        }
+
         SoftAudioBuffer left = buffer[SoftMainMixer.CHANNEL_LEFT];
         SoftAudioBuffer right = buffer[SoftMainMixer.CHANNEL_RIGHT];
         SoftAudioBuffer mono = buffer[SoftMainMixer.CHANNEL_MONO];
@@ -856,18 +1128,9 @@ public final class SoftVoice extends VoiceStatus {
         SoftAudioBuffer deff1 = buffer[SoftMainMixer.CHANNEL_DELAY_EFFECT1];
         SoftAudioBuffer deff2 = buffer[SoftMainMixer.CHANNEL_DELAY_EFFECT2];
 
-        SoftAudioBuffer leftdry = buffer[SoftMainMixer.CHANNEL_LEFT_DRY];
-        SoftAudioBuffer rightdry = buffer[SoftMainMixer.CHANNEL_RIGHT_DRY];
-
         if (osc_stream_nrofchannels == 1)
             rightdry = null;
 
-        if (!Double.isInfinite(co_filter_freq[0])) {
-            filter_left.processAudio(leftdry);
-            if (rightdry != null)
-                filter_right.processAudio(rightdry);
-        }
-
         if (nrofchannels == 1) {
             out_mixer_left = (out_mixer_left + out_mixer_right) / 2;
             mixAudioStream(leftdry, left, dleft, last_out_mixer_left, out_mixer_left);
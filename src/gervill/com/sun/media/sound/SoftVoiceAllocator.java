@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2007, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package gervill.com.sun.media.sound;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Keeps the voices that can be stolen ordered by age (voiceID),
+ * split into released and held voices, per channel and in total.
+ * This lets SoftChannel pick the voice to steal without scanning
+ * every voice when all voices are in use.
+ * Must only be used within control_mutex synchronization.
+ */
+public final class SoftVoiceAllocator {
+
+    private static final Comparator<SoftVoice> ageComparator
+            = new Comparator<SoftVoice>() {
+        @Override
+        public int compare(SoftVoice a, SoftVoice b) {
+            if (a.alloc_voiceID != b.alloc_voiceID)
+                return a.alloc_voiceID < b.alloc_voiceID ? -1 : 1;
+            return a.index - b.index;
+        }
+    };
+
+    private final int nrofchannels;
+    private final TreeSet<SoftVoice> released;
+    private final TreeSet<SoftVoice> held;
+    private final List<TreeSet<SoftVoice>> channel_released;
+    private final List<TreeSet<SoftVoice>> channel_held;
+
+    public SoftVoiceAllocator(int nrofchannels) {
+        this.nrofchannels = nrofchannels;
+        released = new TreeSet<SoftVoice>(ageComparator);
+        held = new TreeSet<SoftVoice>(ageComparator);
+        channel_released = new ArrayList<TreeSet<SoftVoice>>(nrofchannels);
+        channel_held = new ArrayList<TreeSet<SoftVoice>>(nrofchannels);
+        for (int i = 0; i < nrofchannels; i++) {
+            channel_released.add(new TreeSet<SoftVoice>(ageComparator));
+            channel_held.add(new TreeSet<SoftVoice>(ageComparator));
+        }
+    }
+
+    /**
+     * Must be called when the active, on, stealer_channel, channel
+     * or voiceID state of a voice has changed.
+     */
+    void update(SoftVoice voice) {
+        boolean stealable = voice.active && voice.stealer_channel == null
+                && voice.channel >= 0 && voice.channel < nrofchannels;
+        if (voice.alloc_stealable == stealable) {
+            if (!stealable)
+                return;
+            if (voice.alloc_on == voice.on
+                    && voice.alloc_voiceID == voice.voiceID
+                    && voice.alloc_channel == voice.channel)
+                return;
+        }
+        if (voice.alloc_stealable) {
+            if (voice.alloc_on) {
+                held.remove(voice);
+                channel_held.get(voice.alloc_channel).remove(voice);
+            } else {
+                released.remove(voice);
+                channel_released.get(voice.alloc_channel).remove(voice);
+            }
+        }
+        voice.alloc_stealable = stealable;
+        if (!stealable)
+            return;
+        voice.alloc_on = voice.on;
+        voice.alloc_voiceID = voice.voiceID;
+        voice.alloc_channel = voice.channel;
+        if (voice.alloc_on) {
+            held.add(voice);
+            channel_held.get(voice.alloc_channel).add(voice);
+        } else {
+            released.add(voice);
+            channel_released.get(voice.alloc_channel).add(voice);
+        }
+    }
+
+    /**
+     * Returns the number of the voice to steal, or -1 if none.
+     *
+     * @param mode voice allocation mode, 0: default, 1: DLS static
+     * @param channel the channel that wants a voice
+     */
+    public int findVoiceToSteal(int mode, int channel) {
+        if (mode == 1) {
+            // DLS Static Voice Allocation
+
+            //  * priority ( 10, 1-9, 11-16)
+            // Search for channel to steal from,
+            // the highest melodic channel in use,
+            // but never lower than our own channel.
+            int steal_channel = channel;
+            for (int c = nrofchannels - 1; c >= 0; c--) {
+                if (c != 9 && (!channel_released.get(c).isEmpty()
+                        || !channel_held.get(c).isEmpty())) {
+                    if (steal_channel == 9 || c > steal_channel)
+                        steal_channel = c;
+                    break;
+                }
+            }
+            if (steal_channel < 0 || steal_channel >= nrofchannels)
+                return -1;
+
+            // Search for oldest voice in off state on steal_channel
+            if (!channel_released.get(steal_channel).isEmpty())
+                return channel_released.get(steal_channel).first().index;
+            // Search for oldest voice in on state on steal_channel
+            if (!channel_held.get(steal_channel).isEmpty())
+                return channel_held.get(steal_channel).first().index;
+            return -1;
+        }
+
+        // Default Voice Allocation
+        //  * Find voice that is off
+        //    and Find voice which has lowest voiceID ( oldest voice)
+        //  * Or find voice that is on
+        //    and Find voice which has lowest voiceID ( oldest voice)
+        if (!released.isEmpty())
+            return released.first().index;
+        if (!held.isEmpty())
+            return held.first().index;
+        return -1;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2007, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package gervill.com.sun.media.sound;
+
+/**
+ * Index of the active voices of a synthesizer.
+ * Active voices are kept in a bit set ordered by voice number,
+ * and in linked lists per channel and per channel and note,
+ * so lookups scale with the number of sounding voices
+ * rather than with maximum polyphony.
+ * Must only be used within control_mutex synchronization.
+ */
+public final class SoftVoiceIndex {
+
+    private final SoftVoice[] voices;
+    private final long[] activebits;
+    private int activecount = 0;
+    private final int nrofchannels;
+    private final SoftVoice[] channel_heads;
+    private final SoftVoice[] note_heads;
+
+    public SoftVoiceIndex(SoftVoice[] voices, int nrofchannels) {
+        this.voices = voices;
+        this.nrofchannels = nrofchannels;
+        activebits = new long[(voices.length + 63) >> 6];
+        channel_heads = new SoftVoice[nrofchannels];
+        note_heads = new SoftVoice[nrofchannels * 128];
+        for (int i = 0; i < voices.length; i++)
+            voices[i].index = i;
+    }
+
+    public int getActiveCount() {
+        return activecount;
+    }
+
+    /**
+     * Returns the number of the first active voice at or after
+     * <code>from</code>, or -1 if there is none.
+     */
+    public int nextActive(int from) {
+        int u = from >> 6;
+        if (u >= activebits.length)
+            return -1;
+        long word = activebits[u] & (-1L << (from & 63));
+        while (true) {
+            if (word != 0)
+                return (u << 6) + Long.numberOfTrailingZeros(word);
+            if (++u == activebits.length)
+                return -1;
+            word = activebits[u];
+        }
+    }
+
+    /**
+     * Returns the number of the first inactive voice at or after
+     * <code>from</code>, or -1 if there is none.
+     */
+    public int nextFree(int from) {
+        int u = from >> 6;
+        if (u >= activebits.length)
+            return -1;
+        long word = ~activebits[u] & (-1L << (from & 63));
+        while (true) {
+            if (word != 0) {
+                int ix = (u << 6) + Long.numberOfTrailingZeros(word);
+                return ix < voices.length ? ix : -1;
+            }
+            if (++u == activebits.length)
+                return -1;
+            word = ~activebits[u];
+        }
+    }
+
+    public SoftVoice getFirstVoice(int channel) {
+        if (channel < 0 || channel >= nrofchannels)
+            return null;
+        return channel_heads[channel];
+    }
+
+    public SoftVoice getFirstVoice(int channel, int note) {
+        if (channel < 0 || channel >= nrofchannels || note < 0 || note > 127)
+            return null;
+        return note_heads[channel * 128 + note];
+    }
+
+    void add(SoftVoice voice) {
+        if (voice.indexed)
+            remove(voice);
+        voice.indexed = true;
+        activebits[voice.index >> 6] |= 1L << (voice.index & 63);
+        activecount++;
+
+        voice.indexed_channel = voice.channel;
+        voice.indexed_note = voice.note;
+        if (voice.channel < 0 || voice.channel >= nrofchannels)
+            return;
+        SoftVoice head = channel_heads[voice.channel];
+        voice.channel_prev = null;
+        voice.channel_next = head;
+        if (head != null)
+            head.channel_prev = voice;
+        channel_heads[voice.channel] = voice;
+        linkNote(voice);
+    }
+
+    void remove(SoftVoice voice) {
+        if (!voice.indexed)
+            return;
+        voice.indexed = false;
+        activebits[voice.index >> 6] &= ~(1L << (voice.index & 63));
+        activecount--;
+
+        if (voice.indexed_channel < 0 || voice.indexed_channel >= nrofchannels)
+            return;
+        if (voice.channel_prev != null)
+            voice.channel_prev.channel_next = voice.channel_next;
+        else
+            channel_heads[voice.indexed_channel] = voice.channel_next;
+        if (voice.channel_next != null)
+            voice.channel_next.channel_prev = voice.channel_prev;
+        voice.channel_prev = null;
+        voice.channel_next = null;
+        unlinkNote(voice);
+    }
+
+    void noteChanged(SoftVoice voice) {
+        if (!voice.indexed || voice.indexed_note == voice.note)
+            return;
+        if (voice.indexed_channel < 0 || voice.indexed_channel >= nrofchannels) {
+            voice.indexed_note = voice.note;
+            return;
+        }
+        unlinkNote(voice);
+        voice.indexed_note = voice.note;
+        linkNote(voice);
+    }
+
+    private void linkNote(SoftVoice voice) {
+        int ix = voice.indexed_channel * 128 + voice.indexed_note;
+        SoftVoice head = note_heads[ix];
+        voice.note_prev = null;
+        voice.note_next = head;
+        if (head != null)
+            head.note_prev = voice;
+        note_heads[ix] = voice;
+    }
+
+    private void unlinkNote(SoftVoice voice) {
+        if (voice.note_prev != null)
+            voice.note_prev.note_next = voice.note_next;
+        else
+            note_heads[voice.indexed_channel * 128 + voice.indexed_note]
+                    = voice.note_next;
+        if (voice.note_next != null)
+            voice.note_next.note_prev = voice.note_prev;
+        voice.note_prev = null;
+        voice.note_next = null;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2007, 2013, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package gervill.com.sun.media.sound;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders the oscillator and filter stage of voices on a pool of
+ * worker threads. The calling thread takes part in the work and
+ * <code>render</code> returns when every voice has been rendered.
+ * Mixing of the rendered voices is left to the caller, so the summing
+ * order and therefore the output is the same as in serial rendering.
+ */
+public final class SoftVoiceRenderer implements Runnable {
+
+    private final Object lock = new Object();
+    private final AtomicInteger next = new AtomicInteger();
+    private final Thread[] threads;
+    private SoftVoice[] voices = null;
+    private int voicecount = 0;
+    private int bufferlen = 0;
+    private int pending = 0;
+    private long generation = 0;
+    private boolean active = true;
+    private Throwable failure = null;
+
+    public SoftVoiceRenderer(int nrofthreads) {
+        // The calling thread is one of the render threads.
+        threads = new Thread[nrofthreads - 1];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = JSSecurityManager.createThread(this,
+                    "Gervill Voice Renderer " + (i + 1), true,
+                    Thread.MAX_PRIORITY, true);
+        }
+    }
+
+    public void render(SoftVoice[] voices, int voicecount, int bufferlen) {
+        if (threads.length == 0 || voicecount < 2) {
+            for (int i = 0; i < voicecount; i++)
+                voices[i].renderAudioLogic(bufferlen);
+            return;
+        }
+
+        synchronized (lock) {
+            this.voices = voices;
+            this.voicecount = voicecount;
+            this.bufferlen = bufferlen;
+            next.set(0);
+            pending = threads.length;
+            generation++;
+            lock.notifyAll();
+        }
+
+        processVoices();
+
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (pending != 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            this.voices = null;
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        // Rethrow a worker failure on the calling thread, as it would
+        // have been thrown there in serial rendering.
+        Throwable t;
+        synchronized (lock) {
+            t = failure;
+            failure = null;
+        }
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+    }
+
+    private void processVoices() {
+        SoftVoice[] voices = this.voices;
+        int voicecount = this.voicecount;
+        int bufferlen = this.bufferlen;
+        int i;
+        while ((i = next.getAndIncrement()) < voicecount) {
+            try {
+                voices[i].renderAudioLogic(bufferlen);
+            } catch (Throwable t) {
+                // Keep the first failure and go on with the other
+                // voices, it is rethrown by render.
+                synchronized (lock) {
+                    if (failure == null)
+                        failure = t;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long seen = 0;
+        while (true) {
+            synchronized (lock) {
+                while (active && generation == seen) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        //e.printStackTrace();
+                    }
+                }
+                if (!active)
+                    return;
+                seen = generation;
+            }
+            try {
+                processVoices();
+            } finally {
+                synchronized (lock) {
+                    pending--;
+                    if (pending == 0)
+                        lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    public void close() {
+        synchronized (lock) {
+            active = false;
+            lock.notifyAll();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                //e.printStackTrace();
+            }
+        }
+    }
+}